@@ -0,0 +1,102 @@
+package com.company.sharefile.resource.api.v1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Carico sugli endpoint di download di un'istanza in esecuzione: ogni thread JMH è un client
+ * che scarica il file indicato, ognuno sulla propria connessione. SampleTime riporta la
+ * distribuzione delle latenze (p99), il numero di campioni al secondo la capacità.
+ * <p>
+ * Va eseguito due volte con lo stesso numero di client (-t), con l'istanza avviata con
+ * SHAREFILE_VIRTUAL_THREADS=true e poi false (worker pool):
+ * <pre>
+ * SHAREFILE_BENCH_URL=http://localhost:8080/api/v1/download/file/&lt;id&gt; SHAREFILE_BENCH_TOKEN=&lt;jwt&gt; \
+ *     ./gradlew jmh -Pjmh='DownloadLoadBenchmark -t 512'
+ * </pre>
+ * Le risposte diverse da 200 (503 per budget esaurito, timeout) sono contate a parte e
+ * stampate a fine iterazione.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 20)
+public class DownloadLoadBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Target {
+        private final AtomicLong failures = new AtomicLong();
+        private HttpClient client;
+        private HttpRequest request;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            String url = System.getenv("SHAREFILE_BENCH_URL");
+            if (url == null) {
+                throw new IllegalStateException("SHAREFILE_BENCH_URL is required");
+            }
+            client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofSeconds(10))
+                    .build();
+            HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(60)).GET();
+            String token = System.getenv("SHAREFILE_BENCH_TOKEN");
+            if (token != null) {
+                builder.header("Authorization", "Bearer " + token);
+            }
+            request = builder.build();
+        }
+
+        @TearDown(Level.Iteration)
+        public void reportFailures() {
+            long failed = failures.getAndSet(0);
+            if (failed > 0) {
+                System.out.printf("%n%d requests failed%n", failed);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public long download(Target target) throws InterruptedException {
+        try {
+            HttpResponse<InputStream> response = target.client.send(target.request, HttpResponse.BodyHandlers.ofInputStream());
+            try (InputStream body = response.body()) {
+                long bytes = body.transferTo(OutputStream.nullOutputStream());
+                if (response.statusCode() != 200) {
+                    target.failures.incrementAndGet();
+                }
+                return bytes;
+            }
+        } catch (IOException e) {
+            target.failures.incrementAndGet();
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.company.sharefile.service;
+
+import org.jboss.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput di upload e download di {@link AzureStorageService} a 10, 100 e 500 MB, con i
+ * trasferimenti paralleli di default (parallel) e con una sola richiesta alla volta
+ * (sequential, come prima delle opzioni di trasferimento). MB/s = ops/s * sizeMb.
+ * <p>
+ * Serve Azurite (docker compose) o un account reale in AZURE_STORAGE_CONNECTION_STRING:
+ * <pre>./gradlew jmh -Pjmh='AzureTransferBenchmark'</pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+public class AzureTransferBenchmark {
+
+    private static final String AZURITE = "UseDevelopmentStorage=true";
+
+    @Param({"10", "100", "500"})
+    int sizeMb;
+
+    @Param({"parallel", "sequential"})
+    String transfer;
+
+    private AzureStorageService storage;
+    private byte[] data;
+    private String downloadPath;
+    private final List<String> uploaded = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        boolean parallel = transfer.equals("parallel");
+        storage = new AzureStorageService();
+        storage.log = Logger.getLogger(AzureStorageService.class);
+        storage.connectionString = System.getenv().getOrDefault("AZURE_STORAGE_CONNECTION_STRING", AZURITE);
+        storage.containerName = "sharefile-benchmark";
+        storage.stagingContainerName = "sharefile-benchmark-staging";
+        // valori di default di application.properties
+        storage.blockSize = 4L << 20;
+        storage.maxSingleUploadSize = 32L << 20;
+        storage.largeFileThreshold = 100L << 20;
+        storage.largeBlockSize = 16L << 20;
+        storage.maxConcurrency = parallel ? 4 : 1;
+        storage.largeMaxConcurrency = parallel ? 8 : 1;
+        storage.downloadThreads = 32;
+        storage.virtualThreads = true;
+        storage.onStart(null);
+
+        data = new byte[sizeMb << 20];
+        new Random(42).nextBytes(data);
+        downloadPath = "benchmark/" + UUID.randomUUID();
+        storage.upload(downloadPath, new ByteArrayInputStream(data), (long) data.length, null);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteUploaded() {
+        uploaded.forEach(storage::delete);
+        uploaded.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        storage.delete(downloadPath);
+        storage.onStop(null);
+    }
+
+    @Benchmark
+    public void upload() {
+        String path = "benchmark/" + UUID.randomUUID();
+        storage.upload(path, new ByteArrayInputStream(data), (long) data.length, null);
+        uploaded.add(path);
+    }
+
+    @Benchmark
+    public long download() {
+        return storage.download(downloadPath, OutputStream.nullOutputStream());
+    }
+}
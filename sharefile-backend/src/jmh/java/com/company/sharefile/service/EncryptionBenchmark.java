@@ -0,0 +1,143 @@
+package com.company.sharefile.service;
+
+import com.company.sharefile.utils.CipherSuite;
+import org.jboss.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cifratura e decifratura di EncryptionService prima e dopo il riuso dei cipher, a 4 KB, 1 MB
+ * e 100 MB. I metodi *Baseline ripetono il codice originale (Base64, SecretKeySpec,
+ * Cipher.getInstance e SecureRandom nuovi a ogni chiamata, tutto il messaggio in memoria;
+ * senza i log INFO); gli altri usano il servizio attuale, sia sul formato legacy a messaggio
+ * unico sia su quello a segmenti, in sequenza (parallelism = 1). MB/s = ops/s * dimensione.
+ * Il tasso di allocazione si legge con il profiler gc:
+ * <pre>./gradlew jmh -Pjmh='EncryptionBenchmark -prof gc'</pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class EncryptionBenchmark {
+
+    private static final int IV_SIZE = 12;
+    private static final int TAG_SIZE = 128;
+
+    @Param({"4096", "1048576", "104857600"})
+    int size;
+
+    private EncryptionService encryptionService;
+    private byte[] plain;
+    private byte[] encrypted;
+    private byte[] encryptedSegments;
+    private String key;
+    private String noncePrefix;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        encryptionService = new EncryptionService();
+        encryptionService.log = Logger.getLogger(EncryptionService.class);
+        encryptionService.segmentSize = 65536;
+        encryptionService.cipherPoolSize = 64;
+        encryptionService.configuredParallelism = 1;
+        encryptionService.configuredSuite = CipherSuite.AES_256_GCM_STREAM.getId();
+        encryptionService.onStart(null);
+
+        plain = new byte[size];
+        new Random(42).nextBytes(plain);
+        key = encryptionService.generateKey();
+        noncePrefix = encryptionService.generateNoncePrefix();
+        encrypted = encryptionService.encrypt(new ByteArrayInputStream(plain), key).readAllBytes();
+        encryptedSegments = encryptionService.encryptSegments(CipherSuite.AES_256_GCM_STREAM, new ByteArrayInputStream(plain),
+                key, noncePrefix, encryptionService.segmentSize).readAllBytes();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        encryptionService.onStop(null);
+    }
+
+    @Benchmark
+    public byte[] encryptBaseline() throws IOException, GeneralSecurityException {
+        byte[] iv = new byte[IV_SIZE];
+        new SecureRandom().nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, baselineKey(), new GCMParameterSpec(TAG_SIZE, iv));
+        byte[] encryptedBytes = cipher.doFinal(new ByteArrayInputStream(plain).readAllBytes());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(iv);
+        output.write(encryptedBytes);
+        return output.toByteArray();
+    }
+
+    @Benchmark
+    public long encrypt() throws IOException {
+        try (InputStream stream = encryptionService.encrypt(new ByteArrayInputStream(plain), key)) {
+            return stream.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    @Benchmark
+    public long encryptSegments() throws IOException {
+        try (InputStream stream = encryptionService.encryptSegments(CipherSuite.AES_256_GCM_STREAM, new ByteArrayInputStream(plain),
+                key, noncePrefix, encryptionService.segmentSize)) {
+            return stream.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    @Benchmark
+    public byte[] decryptBaseline() throws GeneralSecurityException {
+        byte[] iv = new byte[IV_SIZE];
+        System.arraycopy(encrypted, 0, iv, 0, IV_SIZE);
+        byte[] ciphertext = new byte[encrypted.length - IV_SIZE];
+        System.arraycopy(encrypted, IV_SIZE, ciphertext, 0, ciphertext.length);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, baselineKey(), new GCMParameterSpec(TAG_SIZE, iv));
+        return cipher.doFinal(ciphertext);
+    }
+
+    @Benchmark
+    public byte[] decrypt() {
+        return encryptionService.decrypt(encrypted, key);
+    }
+
+    @Benchmark
+    public long decryptSegments() throws IOException {
+        try (InputStream stream = encryptionService.decryptSegments(CipherSuite.AES_256_GCM_STREAM, new ByteArrayInputStream(encryptedSegments),
+                key, noncePrefix, encryptionService.segmentSize)) {
+            return stream.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    private SecretKey baselineKey() {
+        return new SecretKeySpec(Base64.getDecoder().decode(key), "AES");
+    }
+}
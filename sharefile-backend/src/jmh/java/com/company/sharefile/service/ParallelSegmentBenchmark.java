@@ -0,0 +1,95 @@
+package com.company.sharefile.service;
+
+import com.company.sharefile.utils.CipherSuite;
+import org.jboss.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cifratura e decifratura a segmenti di 256 MB al variare del parallelismo del pool dei
+ * segmenti, per AES-GCM e ChaCha20-Poly1305. Con un solo thread JMH misura quanto scala un
+ * singolo stream sui core: GB/s = ops/s / 4. Con parallelism oltre i core disponibili il
+ * throughput deve restare piatto, non calare.
+ * <pre>./gradlew jmh -Pjmh='ParallelSegmentBenchmark -p suite=AES-256-GCM-STREAM'</pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ParallelSegmentBenchmark {
+
+    private static final int DATA_BYTES = 256 << 20;
+
+    @Param({"1", "2", "4", "8", "16"})
+    int parallelism;
+
+    @Param({"AES-256-GCM-STREAM", "CHACHA20-POLY1305-STREAM"})
+    String suite;
+
+    private EncryptionService encryptionService;
+    private CipherSuite cipherSuite;
+    private byte[] plain;
+    private byte[] encrypted;
+    private String key;
+    private String noncePrefix;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        encryptionService = new EncryptionService();
+        encryptionService.log = Logger.getLogger(EncryptionService.class);
+        encryptionService.segmentSize = 65536;
+        encryptionService.cipherPoolSize = 64;
+        encryptionService.configuredParallelism = parallelism;
+        encryptionService.configuredSuite = suite;
+        encryptionService.onStart(null);
+
+        cipherSuite = CipherSuite.fromId(suite);
+        plain = new byte[DATA_BYTES];
+        new Random(42).nextBytes(plain);
+        key = encryptionService.generateKey();
+        noncePrefix = encryptionService.generateNoncePrefix();
+        encrypted = encryptionService.encryptSegments(cipherSuite, new ByteArrayInputStream(plain),
+                key, noncePrefix, encryptionService.segmentSize).readAllBytes();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        encryptionService.onStop(null);
+    }
+
+    @Benchmark
+    public long encryptSegments() throws IOException {
+        try (InputStream stream = encryptionService.encryptSegments(cipherSuite, new ByteArrayInputStream(plain),
+                key, noncePrefix, encryptionService.segmentSize)) {
+            return stream.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    @Benchmark
+    public long decryptSegments() throws IOException {
+        try (InputStream stream = encryptionService.decryptSegments(cipherSuite, new ByteArrayInputStream(encrypted),
+                key, noncePrefix, encryptionService.segmentSize)) {
+            return stream.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.company.sharefile.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput del content-defined chunking su 64 MB di dati casuali, solo taglio (chunk) e
+ * taglio più SHA-256 di ogni chunk come in ChunkedStorageService.storeChunks (chunkAndHash).
+ * MB/s = ops/s * 64. Ogni thread ha i propri dati: il throughput per core è il totale
+ * diviso per i thread, al variare di -t.
+ * <pre>./gradlew jmh -Pjmh='FastCdcChunkerBenchmark -t 1'</pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class FastCdcChunkerBenchmark {
+
+    private static final int DATA_BYTES = 64 << 20;
+
+    // dimensione media del chunk; minima e massima come nei default (media / 4 e media * 4)
+    @Param({"262144", "1048576", "4194304"})
+    int averageChunkSize;
+
+    private byte[] data;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        data = new byte[DATA_BYTES];
+        new Random(42).nextBytes(data);
+    }
+
+    @Benchmark
+    public int chunk() throws IOException {
+        FastCdcChunker chunker = newChunker();
+        int chunks = 0;
+        while (chunker.next() != null) {
+            chunks++;
+        }
+        return chunks;
+    }
+
+    @Benchmark
+    public void chunkAndHash(Blackhole blackhole) throws IOException, NoSuchAlgorithmException {
+        FastCdcChunker chunker = newChunker();
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] chunk;
+        while ((chunk = chunker.next()) != null) {
+            blackhole.consume(digest.digest(chunk));
+        }
+    }
+
+    private FastCdcChunker newChunker() {
+        return new FastCdcChunker(new ByteArrayInputStream(data), averageChunkSize / 4, averageChunkSize, averageChunkSize * 4);
+    }
+}
@@ -83,6 +83,7 @@ public final class ValidationConstants {
     public static final long MIN_FILE_SIZE = 1L; // 1 byte
     public static final long MAX_FILE_SIZE_FREE = 2L * 1024 * 1024 * 1024; // 2GB
     public static final long MAX_FILE_SIZE_PREMIUM = 10L * 1024 * 1024 * 1024; // 10GB
+    public static final long MAX_UPLOAD_FILE_SIZE = 500L * 1024 * 1024; // 500MB
 
     // ========== STORAGE LIMITS ==========
     public static final long DEFAULT_STORAGE_QUOTA = 5L * 1024 * 1024 * 1024; // 5GB
@@ -0,0 +1,20 @@
+package com.company.sharefile.dto.v1.records.request;
+
+import jakarta.validation.constraints.*;
+
+public record DirectUploadRequestDTO(
+        @NotBlank(message = "fileName is required")
+        @Size(max = 255, message = "fileName max 255 characters")
+        String fileName,
+
+        @Size(max = 128, message = "Mime type must be less than 128 characters")
+        String mimeType,
+
+        @NotNull(message = "fileSize is required")
+        @Min(value = 1, message = "fileSize must be at least 1 byte")
+        Long fileSize,
+
+        @NotBlank(message = "checksum is required")
+        @Pattern(regexp = "^[a-fA-F0-9]{64}$", message = "Checksum must be a valid SHA-256 hex string")
+        String checksum
+) {}
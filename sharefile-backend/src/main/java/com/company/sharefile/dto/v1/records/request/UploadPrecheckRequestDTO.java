@@ -0,0 +1,23 @@
+package com.company.sharefile.dto.v1.records.request;
+
+import jakarta.validation.constraints.*;
+
+/**
+ * Precheck di deduplicazione: checksum (SHA-256 dell'intero file) oppure
+ * partialFingerprint (SHA-256 del primo e dell'ultimo MB) insieme alla dimensione.
+ */
+public record UploadPrecheckRequestDTO(
+        @NotBlank(message = "fileName is required")
+        @Size(max = 255, message = "fileName max 255 characters")
+        String fileName,
+
+        @NotNull(message = "fileSize is required")
+        @Min(value = 0, message = "fileSize cannot be negative")
+        Long fileSize,
+
+        @Pattern(regexp = "^[a-fA-F0-9]{64}$", message = "Checksum must be a valid SHA-256 hex string")
+        String checksum,
+
+        @Pattern(regexp = "^[a-fA-F0-9]{64}$", message = "Partial fingerprint must be a valid SHA-256 hex string")
+        String partialFingerprint
+) {}
@@ -0,0 +1,10 @@
+package com.company.sharefile.dto.v1.records.response;
+
+import java.util.List;
+
+public record BatchUploadResponseDTO(
+        int total,
+        int succeeded,
+        int failed,
+        List<BatchUploadResultDTO> results
+) {}
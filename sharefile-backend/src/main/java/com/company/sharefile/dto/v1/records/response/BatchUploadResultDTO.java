@@ -0,0 +1,32 @@
+package com.company.sharefile.dto.v1.records.response;
+
+import com.company.sharefile.entity.FileEntity;
+import com.company.sharefile.exception.ApiException;
+import com.company.sharefile.utils.UploadStatus;
+
+import java.util.UUID;
+
+/**
+ * Esito di un singolo file di un upload batch: in caso di errore fileId è null
+ * e errorCode contiene il codice interno.
+ */
+public record BatchUploadResultDTO(
+        String fileName,
+        boolean success,
+        UUID fileId,
+        Long fileSize,
+        String checksum,
+        UploadStatus uploadStatus,
+        String errorCode,
+        String message
+) {
+    public static BatchUploadResultDTO uploaded(FileEntity file) {
+        return new BatchUploadResultDTO(file.getFileName(), true, file.getId(), file.getFileSize(),
+                file.getChecksum(), file.getUploadStatus(), null, null);
+    }
+
+    public static BatchUploadResultDTO failed(String fileName, ApiException error) {
+        return new BatchUploadResultDTO(fileName, false, null, null, null, null,
+                error.getInternalDocumentationErrorCode(), error.getMessage());
+    }
+}
@@ -0,0 +1,9 @@
+package com.company.sharefile.dto.v1.records.response;
+
+/**
+ * Intervallo di byte inclusivo [start, end].
+ */
+public record ByteRangeDTO(
+        long start,
+        long end
+) {}
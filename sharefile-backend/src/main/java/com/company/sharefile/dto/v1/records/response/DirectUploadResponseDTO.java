@@ -0,0 +1,14 @@
+package com.company.sharefile.dto.v1.records.response;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * uploadUrl accetta un PUT con header "x-ms-blob-type: BlockBlob" (oppure Put Block /
+ * Put Block List per file grandi) fino a expiresAt.
+ */
+public record DirectUploadResponseDTO(
+        UUID uploadId,
+        String uploadUrl,
+        LocalDateTime expiresAt
+) {}
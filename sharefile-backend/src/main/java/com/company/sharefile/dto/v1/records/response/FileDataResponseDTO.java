@@ -1,9 +1,14 @@
 package com.company.sharefile.dto.v1.records.response;
 
+import com.company.sharefile.utils.SpoolBuffer;
+
+/**
+ * Contenuto pronto per il download: fileData va chiuso dopo l'invio.
+ */
 public record FileDataResponseDTO(
     String fileName,
     String mimeType,
     Long fileSize,
-    byte[] fileData
+    SpoolBuffer fileData
 ) {
 }
@@ -0,0 +1,43 @@
+package com.company.sharefile.dto.v1.records.response;
+
+import com.company.sharefile.utils.ByteRange;
+import com.company.sharefile.utils.ContentValidators;
+import com.company.sharefile.utils.ReleasableOutput;
+
+import java.util.List;
+
+/**
+ * Download con supporto a Range. ranges è null per il contenuto intero, vuota se nessun
+ * intervallo è soddisfacibile (416, senza body); con più intervalli il body è
+ * multipart/byteranges con il boundary indicato. fileSize è null se il contenuto intero
+ * viene generato in streaming (zip) e la dimensione non è nota.
+ * Il body trattiene budget o spool fino all'invio: chi lo restituisce al client deve
+ * chiamare {@link #release()} a fine richiesta, anche se il body non viene scritto.
+ */
+public record PartialContentDTO(
+    String fileName,
+    String mimeType,
+    Long fileSize,
+    ContentValidators validators,
+    List<ByteRange> ranges,
+    String boundary,
+    ReleasableOutput body
+) {
+    public void release() {
+        if(body != null){
+            body.release();
+        }
+    }
+
+    public boolean isSatisfiable() {
+        return ranges == null || !ranges.isEmpty();
+    }
+
+    /**
+     * Vero se la risposta contiene il primo byte, in qualunque intervallo: è un download nuovo,
+     * non una ripresa. Ogni download completo passa una volta dal byte 0.
+     */
+    public boolean coversFirstByte() {
+        return ranges == null || ranges.stream().anyMatch(range -> range.start() == 0);
+    }
+}
@@ -0,0 +1,10 @@
+package com.company.sharefile.dto.v1.records.response;
+
+public record TransferBudgetDTO(
+        long totalBytes,
+        long availableBytes,
+        long inUseBytes,
+        int queuedRequests,
+        long admittedRequests,
+        long rejectedRequests
+) {}
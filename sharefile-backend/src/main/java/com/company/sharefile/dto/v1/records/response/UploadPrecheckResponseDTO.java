@@ -0,0 +1,27 @@
+package com.company.sharefile.dto.v1.records.response;
+
+import com.company.sharefile.entity.FileEntity;
+
+import java.util.UUID;
+
+/**
+ * Esito del precheck: se uploadRequired è false il file è già stato creato (fileId)
+ * e il client non deve inviare il contenuto. candidateFound indica che l'impronta
+ * parziale corrisponde a un file esistente e conviene calcolare lo SHA-256 completo.
+ */
+public record UploadPrecheckResponseDTO(
+        boolean uploadRequired,
+        boolean candidateFound,
+        UUID fileId,
+        String fileName,
+        Long fileSize,
+        String checksum
+) {
+    public static UploadPrecheckResponseDTO uploadRequired(boolean candidateFound) {
+        return new UploadPrecheckResponseDTO(true, candidateFound, null, null, null, null);
+    }
+
+    public static UploadPrecheckResponseDTO deduplicated(FileEntity file) {
+        return new UploadPrecheckResponseDTO(false, true, file.getId(), file.getFileName(), file.getFileSize(), file.getChecksum());
+    }
+}
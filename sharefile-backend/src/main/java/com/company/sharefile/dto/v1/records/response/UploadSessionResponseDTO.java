@@ -0,0 +1,17 @@
+package com.company.sharefile.dto.v1.records.response;
+
+import com.company.sharefile.utils.UploadStatus;
+
+import java.util.List;
+import java.util.UUID;
+
+public record UploadSessionResponseDTO(
+        UUID sessionId,
+        String fileName,
+        Long fileSize,
+        Integer chunkSize,
+        Integer totalChunks,
+        UploadStatus status,
+        List<Integer> receivedChunks,
+        List<ByteRangeDTO> receivedRanges
+) {}
@@ -0,0 +1,116 @@
+package com.company.sharefile.entity;
+
+import com.company.sharefile.utils.CipherSuite;
+import com.company.sharefile.utils.CipherSuiteConverter;
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.*;
+import jakarta.validation.constraints.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Contenuto fisico salvato su Azure, identificato dal suo SHA-256.
+ * Più FileEntity (anche di utenti diversi) possono puntare allo stesso blob:
+ * refCount conta i riferimenti e quando arriva a zero il blob può essere eliminato.
+ * Il checksum è null finché il contenuto non è stato verificato (upload a chunk in corso).
+ */
+@Entity
+@Table(name = "blobs", indexes = {
+        @Index(name = "idx_blob_created_at", columnList = "created_at"),
+        @Index(name = "idx_blob_kek", columnList = "kek_id")
+})
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@EqualsAndHashCode(onlyExplicitlyIncluded = true, callSuper = false)
+@ToString(exclude = {"encryptionKey", "kek"})
+public class BlobEntity extends PanacheEntityBase {
+
+    @Id
+    @EqualsAndHashCode.Include
+    private UUID id;
+
+    @Column(name = "checksum_sha256", length = 64, unique = true)
+    @Pattern(regexp = "^[a-fA-F0-9]{64}$", message = "Checksum must be a valid SHA-256 hex string")
+    private String checksum;
+
+    @Column(name = "size_bytes", nullable = false)
+    @NotNull(message = "Blob size cannot be null")
+    @Min(value = 0, message = "Blob size cannot be negative")
+    private Long sizeBytes;
+
+    @Column(name = "storage_path", length = 512, nullable = false, unique = true)
+    @NotBlank(message = "Storage path cannot be blank")
+    @Size(max = 512, message = "Storage path must be less than 512 characters")
+    private String storagePath;
+
+    /**
+     * Chiave dati del blob, cifrata con la KEK dell'utente che l'ha caricato.
+     * Se kek è null la chiave è in chiaro (blob precedenti alla cifratura a busta).
+     */
+    @Column(name = "encryption_key", length = 512, nullable = false)
+    @NotBlank(message = "Encryption key cannot be blank")
+    @Size(max = 512, message = "Encryption key must be less than 512 characters")
+    private String encryptionKey;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "kek_id")
+    private UserKeyEntity kek;
+
+    @Convert(converter = CipherSuiteConverter.class)
+    @Column(name = "encryption_algorithm", length = 64, nullable = false)
+    @NotNull(message = "Encryption algorithm cannot be null")
+    private CipherSuite encryptionAlgorithm;
+
+    @Column(name = "encryption_iv", length = 32)
+    @Size(max = 32, message = "IV must be less than 32 characters")
+    private String encryptionIv;
+
+    /**
+     * Dimensione in chiaro dei segmenti per i blob cifrati a segmenti
+     * (upload a chunk). Null per i blob cifrati come unico messaggio GCM.
+     */
+    @Column(name = "encryption_segment_size")
+    @Min(value = 1, message = "Segment size must be positive")
+    private Integer encryptionSegmentSize;
+
+    /**
+     * Codec applicato prima della cifratura (zstd, deflate), null se non compresso.
+     */
+    @Column(name = "compression_codec", length = 16)
+    @Size(max = 16, message = "Compression codec must be less than 16 characters")
+    private String compressionCodec;
+
+    /**
+     * Byte effettivamente cifrati (dopo la compressione), escluso l'overhead di cifratura.
+     */
+    @Column(name = "stored_size_bytes")
+    @Min(value = 0, message = "Stored size cannot be negative")
+    private Long storedSizeBytes;
+
+    @Column(name = "ref_count", nullable = false)
+    @NotNull(message = "Reference count cannot be null")
+    @Min(value = 0, message = "Reference count cannot be negative")
+    private Long refCount;
+
+    @Column(name = "created_at", nullable = false, updatable = false)
+    private LocalDateTime createdAt;
+
+    @PrePersist
+    protected void prePersist() {
+        if (id == null) {
+            id = UUID.randomUUID();
+        }
+        if (createdAt == null) {
+            createdAt = LocalDateTime.now();
+        }
+    }
+
+    public static BlobEntity findByChecksum(String checksum) {
+        return find("checksum", checksum).firstResult();
+    }
+}
@@ -0,0 +1,101 @@
+package com.company.sharefile.entity;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.*;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Size;
+import lombok.*;
+import org.hibernate.annotations.OnDelete;
+import org.hibernate.annotations.OnDeleteAction;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Upload diretto verso lo storage: il client carica il file in chiaro sul blob di staging
+ * tramite un URL SAS di sola scrittura, il finalize lo verifica, lo cifra e crea il FileEntity.
+ */
+@Entity
+@Table(name = "direct_uploads",
+        indexes = {
+                @Index(name = "idx_direct_upload_user", columnList = "user_id"),
+                @Index(name = "idx_direct_upload_expires", columnList = "expires_at")
+        })
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@EqualsAndHashCode(onlyExplicitlyIncluded = true, callSuper = false)
+@ToString(exclude = {"user"})
+public class DirectUploadEntity extends PanacheEntityBase {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    @EqualsAndHashCode.Include
+    private UUID id;
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "user_id", nullable = false)
+    @OnDelete(action = OnDeleteAction.CASCADE)
+    @NotNull(message = "User cannot be null")
+    private UserEntity user;
+
+    @Column(name = "staging_path", nullable = false, unique = true, length = 512)
+    @NotNull(message = "Staging path cannot be null")
+    @Size(max = 512, message = "Staging path must be less than 512 characters")
+    private String stagingPath;
+
+    @Column(name = "file_name", nullable = false)
+    @NotNull(message = "File name cannot be null")
+    private String fileName;
+
+    @Column(name = "mime_type", length = 128)
+    private String mimeType;
+
+    @Column(name = "file_size", nullable = false)
+    @NotNull(message = "File size cannot be null")
+    @Min(value = 1, message = "File size must be positive")
+    private Long fileSize;
+
+    @Column(name = "checksum_sha256", nullable = false, length = 64)
+    @NotNull(message = "Checksum cannot be null")
+    private String checksum;
+
+    // prenotazione di quota presa alla creazione e confermata al finalize (QuotaService.reserveDurable)
+    @Column(name = "quota_reservation_id")
+    private UUID quotaReservationId;
+
+    // true mentre un finalize è in corso: impedisce due FileEntity per lo stesso staging
+    @Column(name = "finalizing", nullable = false)
+    private Boolean finalizing;
+
+    @Column(name = "expires_at", nullable = false)
+    @NotNull(message = "Expiry cannot be null")
+    private LocalDateTime expiresAt;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    @PrePersist
+    protected void prePersist() {
+        if (createdAt == null) {
+            createdAt = LocalDateTime.now();
+        }
+        if (finalizing == null) {
+            finalizing = false;
+        }
+    }
+
+    /**
+     * Riserva l'upload per il finalize: false se un altro finalize lo ha già preso.
+     */
+    public static boolean claim(UUID id) {
+        return update("finalizing = true where id = ?1 and finalizing = false", id) == 1;
+    }
+
+    public static void unclaim(UUID id) {
+        update("finalizing = false where id = ?1", id);
+    }
+}
@@ -0,0 +1,67 @@
+package com.company.sharefile.entity;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.*;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import lombok.*;
+import org.hibernate.annotations.OnDelete;
+import org.hibernate.annotations.OnDeleteAction;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Voce del manifest di un file salvato a chunk: il file è la concatenazione
+ * ordinata dei blob referenziati.
+ */
+@Entity
+@Table(name = "file_chunks",
+        uniqueConstraints = @UniqueConstraint(name = "uk_file_chunk_file_index", columnNames = {"file_id", "chunk_index"}),
+        indexes = {
+                @Index(name = "idx_file_chunk_blob", columnList = "blob_id")
+        })
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@EqualsAndHashCode(onlyExplicitlyIncluded = true, callSuper = false)
+@ToString(exclude = {"file", "blob"})
+public class FileChunkEntity extends PanacheEntityBase {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    @EqualsAndHashCode.Include
+    private UUID id;
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "file_id", nullable = false)
+    @OnDelete(action = OnDeleteAction.CASCADE)
+    @NotNull(message = "File cannot be null")
+    private FileEntity file;
+
+    @Column(name = "chunk_index", nullable = false)
+    @NotNull(message = "Chunk index cannot be null")
+    @Min(value = 0, message = "Chunk index cannot be negative")
+    private Integer chunkIndex;
+
+    @Column(name = "offset_bytes", nullable = false)
+    @NotNull(message = "Chunk offset cannot be null")
+    @Min(value = 0, message = "Chunk offset cannot be negative")
+    private Long offsetBytes;
+
+    @Column(name = "size_bytes", nullable = false)
+    @NotNull(message = "Chunk size cannot be null")
+    @Min(value = 1, message = "Chunk size must be positive")
+    private Long sizeBytes;
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "blob_id", nullable = false)
+    @NotNull(message = "Blob cannot be null")
+    private BlobEntity blob;
+
+    public static List<FileChunkEntity> findByFileOrdered(UUID fileId) {
+        return find("from FileChunkEntity c join fetch c.blob where c.file.id = ?1 order by c.chunkIndex", fileId).list();
+    }
+}
@@ -1,5 +1,6 @@
 package com.company.sharefile.entity;
 
+import com.company.sharefile.utils.StorageMode;
 import com.company.sharefile.utils.UploadStatus;
 import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
 import jakarta.persistence.*;
@@ -17,7 +18,9 @@ import java.util.UUID;
         @Index(name = "idx_file_created_at", columnList = "created_at"),
         @Index(name = "idx_file_deleted", columnList = "is_deleted"),
         @Index(name = "idx_file_checksum", columnList = "checksum_sha256"),
-        @Index(name = "idx_file_status", columnList = "upload_status")
+        @Index(name = "idx_file_fingerprint", columnList = "file_size, partial_fingerprint"),
+        @Index(name = "idx_file_status", columnList = "upload_status"),
+        @Index(name = "idx_file_blob", columnList = "blob_id")
 })
 @Getter
 @Setter
@@ -25,7 +28,7 @@ import java.util.UUID;
 @AllArgsConstructor
 @Builder
 @EqualsAndHashCode(onlyExplicitlyIncluded = true, callSuper = false)
-@ToString(exclude = {"createdBy"})
+@ToString(exclude = {"createdBy", "blob"})
 public class FileEntity extends PanacheEntityBase {
 
     @Id
@@ -57,43 +60,56 @@ public class FileEntity extends PanacheEntityBase {
     @Size(max = 128, message = "Mime type must be less than 128 characters")
     private String mimeType;
 
-    @Column(name = "checksum_sha256", length = 64, unique = true, nullable = false)
+    @Column(name = "checksum_sha256", length = 64, nullable = false)
     @NotBlank(message = "Checksum cannot be blank")
     @Size(max = 64, message = "SHA-256 checksum must be exactly 64 characters")
     @Pattern(regexp = "^[a-fA-F0-9]{64}$", message = "Checksum must be a valid SHA-256 hex string")
     @EqualsAndHashCode.Include
     private String checksum;
 
+    /**
+     * SHA-256 del primo e dell'ultimo MB del file, vedi {@link com.company.sharefile.utils.PartialFingerprint}.
+     */
+    @Column(name = "partial_fingerprint", length = 64)
+    @Size(max = 64, message = "Partial fingerprint must be exactly 64 characters")
+    private String partialFingerprint;
+
 
     @Enumerated(EnumType.STRING)
     @Column(name = "upload_status", nullable = false, length = 32)
     @NotNull(message = "Upload status cannot be null")
     private UploadStatus uploadStatus = UploadStatus.PENDING;
 
-    @Column(name = "storage_path", length = 512)
-    @Size(max = 512, message = "Storage path must be less than 512 characters")
-    private String storagePath;
-
+    /**
+     * Contenuto fisico del file, condiviso tra tutti i file con lo stesso checksum.
+     * Null per i file eliminati (il riferimento viene rilasciato) e per quelli salvati a chunk.
+     */
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "blob_id")
+    private BlobEntity blob;
+
+    /**
+     * BLOB: contenuto in {@link #blob}; CHUNKED: manifest di chunk in {@link FileChunkEntity}.
+     */
+    @Enumerated(EnumType.STRING)
+    @Column(name = "storage_mode", length = 16)
+    private StorageMode storageMode = StorageMode.BLOB;
 
     @Column(name = "uploaded_at")
     private LocalDateTime uploadedAt;
 
-    @Column(name = "encryption_key", length = 512)
-    @Size(max = 512, message = "Encryption key must be less than 512 characters")
-    private String encryptionKey;
+    // inizio del commit di una sessione di upload (stato COMMITTING), per riconoscere i commit interrotti
+    @Column(name = "commit_started_at")
+    private LocalDateTime commitStartedAt;
 
-    @Column(name = "encryption_iv", length = 32)
-    @Size(max = 32, message = "IV must be less than 32 characters")
-    private String encryptionIv;
+    // prenotazione di quota di una sessione di upload, confermata al commit (QuotaService.reserveDurable)
+    @Column(name = "quota_reservation_id")
+    private UUID quotaReservationId;
 
     @Column(name = "is_encrypted", nullable = false)
     @NotNull(message = "Encryption status cannot be null")
     private Boolean isEncrypted = false;
 
-    @Column(name = "encryption_algorithm", length = 64)
-    @Size(max = 64, message = "Encryption algorithm must be less than 64 characters")
-    private String encryptionAlgorithm;
-
 
     @Column(name = "is_virus_scanned", nullable = false)
     @NotNull(message = "Virus scan status cannot be null")
@@ -115,9 +131,8 @@ public class FileEntity extends PanacheEntityBase {
         if (createdAt == null) {
             createdAt = LocalDateTime.now();
         }
-        // Se encryption abilitata, imposta algoritmo default
-        if (Boolean.TRUE.equals(isEncrypted) && encryptionAlgorithm == null) {
-            encryptionAlgorithm = "AES-256-GCM";
+        if (storageMode == null) {
+            storageMode = StorageMode.BLOB;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,57 @@
+package com.company.sharefile.entity;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.*;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import lombok.*;
+import org.hibernate.annotations.OnDelete;
+import org.hibernate.annotations.OnDeleteAction;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Riga del registro delle prenotazioni di quota: byte riservati da un upload in corso
+ * (o da un credito locale di un'istanza). users.reserved_storage_bytes è la somma delle
+ * righe dell'utente; le righe scadute vengono rilasciate dal job di pulizia, così una
+ * prenotazione persa (crash, rollback) non blocca la quota per sempre.
+ * Le righe vengono scritte solo con query native in QuotaService.
+ */
+@Entity
+@Table(name = "quota_reservations",
+        indexes = {
+                @Index(name = "idx_quota_reservation_user", columnList = "user_id"),
+                @Index(name = "idx_quota_reservation_expires", columnList = "expires_at")
+        })
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@EqualsAndHashCode(onlyExplicitlyIncluded = true, callSuper = false)
+@ToString(exclude = {"user"})
+public class QuotaReservationEntity extends PanacheEntityBase {
+
+    @Id
+    @EqualsAndHashCode.Include
+    private UUID id;
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "user_id", nullable = false)
+    @OnDelete(action = OnDeleteAction.CASCADE)
+    @NotNull(message = "User cannot be null")
+    private UserEntity user;
+
+    @Column(name = "bytes", nullable = false)
+    @NotNull(message = "Reserved bytes cannot be null")
+    @Min(value = 0, message = "Reserved bytes cannot be negative")
+    private Long bytes;
+
+    @Column(name = "expires_at", nullable = false)
+    @NotNull(message = "Expiry cannot be null")
+    private LocalDateTime expiresAt;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+}
@@ -0,0 +1,106 @@
+package com.company.sharefile.entity;
+
+import com.company.sharefile.utils.ScanJobStatus;
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.*;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import lombok.*;
+import org.hibernate.annotations.OnDelete;
+import org.hibernate.annotations.OnDeleteAction;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Coda persistente delle scansioni antivirus: una riga per file da scansionare, creata nella
+ * stessa transazione che rende il file utilizzabile ed eliminata quando il verdetto è salvato.
+ * I worker prendono i job con FOR UPDATE SKIP LOCKED, quindi più istanze possono condividere la coda.
+ */
+@Entity
+@Table(name = "scan_jobs",
+        uniqueConstraints = @UniqueConstraint(name = "uk_scan_job_file", columnNames = {"file_id"}),
+        indexes = {
+                @Index(name = "idx_scan_job_status_available", columnList = "status, available_at")
+        })
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@EqualsAndHashCode(onlyExplicitlyIncluded = true, callSuper = false)
+@ToString(exclude = {"file"})
+public class ScanJobEntity extends PanacheEntityBase {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    @EqualsAndHashCode.Include
+    private UUID id;
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "file_id", nullable = false)
+    @OnDelete(action = OnDeleteAction.CASCADE)
+    @NotNull(message = "File cannot be null")
+    private FileEntity file;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "status", nullable = false, length = 16)
+    @NotNull(message = "Status cannot be null")
+    private ScanJobStatus status;
+
+    @Column(name = "attempts", nullable = false)
+    @Min(value = 0, message = "Attempts cannot be negative")
+    private Integer attempts;
+
+    @Column(name = "available_at", nullable = false)
+    private LocalDateTime availableAt;
+
+    @Column(name = "locked_at")
+    private LocalDateTime lockedAt;
+
+    @Column(name = "last_error", length = 512)
+    private String lastError;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    @PrePersist
+    protected void prePersist() {
+        if (createdAt == null) {
+            createdAt = LocalDateTime.now();
+        }
+        if (availableAt == null) {
+            availableAt = createdAt;
+        }
+        if (status == null) {
+            status = ScanJobStatus.QUEUED;
+        }
+        if (attempts == null) {
+            attempts = 0;
+        }
+    }
+
+    /**
+     * Prende fino a limit job pronti e li marca RUNNING; i job già presi da un'altra
+     * transazione vengono saltati invece di attendere il lock.
+     */
+    @SuppressWarnings("unchecked")
+    public static List<UUID> claim(int limit) {
+        return getEntityManager().createNativeQuery(
+                        "UPDATE scan_jobs SET status = 'RUNNING', locked_at = now(), attempts = attempts + 1 " +
+                                "WHERE id IN (SELECT id FROM scan_jobs WHERE status = 'QUEUED' AND available_at <= now() " +
+                                "ORDER BY available_at LIMIT ?1 FOR UPDATE SKIP LOCKED) " +
+                                "RETURNING id", UUID.class)
+                .setParameter(1, limit)
+                .getResultList();
+    }
+
+    /**
+     * Rimette in coda i job RUNNING da più di lockTimeout (worker interrotto o istanza terminata).
+     */
+    public static int requeueStale(LocalDateTime lockedBefore) {
+        return update("status = ?1 where status = ?2 and lockedAt < ?3",
+                ScanJobStatus.QUEUED, ScanJobStatus.RUNNING, lockedBefore);
+    }
+}
@@ -0,0 +1,115 @@
+package com.company.sharefile.entity;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.*;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import lombok.*;
+import org.hibernate.annotations.OnDelete;
+import org.hibernate.annotations.OnDeleteAction;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Chunk ricevuto per una sessione di upload: ogni chunk corrisponde a un blocco
+ * Azure già caricato (staged) ma non ancora committato.
+ * Il SHA-256 del chunk in chiaro viene fissato prima della cifratura: indice, chiave e
+ * prefisso del nonce della sessione non vengono mai riusati per un contenuto diverso.
+ */
+@Entity
+@Table(name = "upload_chunks",
+        uniqueConstraints = @UniqueConstraint(name = "uk_upload_chunk_file_index", columnNames = {"file_id", "chunk_index"}),
+        indexes = {
+                @Index(name = "idx_upload_chunk_file", columnList = "file_id")
+        })
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@EqualsAndHashCode(onlyExplicitlyIncluded = true, callSuper = false)
+@ToString(exclude = {"file"})
+public class UploadChunkEntity extends PanacheEntityBase {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    @EqualsAndHashCode.Include
+    private UUID id;
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "file_id", nullable = false)
+    @OnDelete(action = OnDeleteAction.CASCADE)
+    @NotNull(message = "File cannot be null")
+    private FileEntity file;
+
+    @Column(name = "chunk_index", nullable = false)
+    @NotNull(message = "Chunk index cannot be null")
+    @Min(value = 0, message = "Chunk index cannot be negative")
+    private Integer chunkIndex;
+
+    @Column(name = "size_bytes", nullable = false)
+    @NotNull(message = "Chunk size cannot be null")
+    @Min(value = 1, message = "Chunk size must be positive")
+    private Long sizeBytes;
+
+    @Column(name = "block_id", nullable = false, length = 64)
+    @NotNull(message = "Block id cannot be null")
+    private String blockId;
+
+    @Column(name = "checksum", length = 64)
+    private String checksum;
+
+    // null finché il blocco non è stato caricato su Azure
+    @Column(name = "staged_at")
+    private LocalDateTime stagedAt;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    @PrePersist
+    protected void prePersist() {
+        if (createdAt == null) {
+            createdAt = LocalDateTime.now();
+        }
+    }
+
+    public static List<UploadChunkEntity> findByFileOrdered(UUID fileId) {
+        return find("file.id = ?1 and stagedAt is not null order by chunkIndex", fileId).list();
+    }
+
+    /**
+     * Associa il contenuto al chunk prima della cifratura. La prima richiesta fissa il checksum,
+     * invii successivi o paralleli dello stesso indice ne leggono il valore: restituisce il
+     * checksum registrato, null per le righe precedenti all'introduzione del campo.
+     */
+    public static String claim(UUID fileId, int chunkIndex, long sizeBytes, String blockId, String checksum) {
+        getEntityManager().createNativeQuery(
+                        "INSERT INTO upload_chunks (id, file_id, chunk_index, size_bytes, block_id, checksum, created_at) " +
+                                "VALUES (gen_random_uuid(), ?1, ?2, ?3, ?4, ?5, now()) " +
+                                "ON CONFLICT (file_id, chunk_index) DO NOTHING")
+                .setParameter(1, fileId)
+                .setParameter(2, chunkIndex)
+                .setParameter(3, sizeBytes)
+                .setParameter(4, blockId)
+                .setParameter(5, checksum)
+                .executeUpdate();
+        return (String) getEntityManager().createNativeQuery(
+                        "SELECT checksum FROM upload_chunks WHERE file_id = ?1 AND chunk_index = ?2")
+                .setParameter(1, fileId)
+                .setParameter(2, chunkIndex)
+                .getSingleResult();
+    }
+
+    public static void markStaged(UUID fileId, int chunkIndex) {
+        update("stagedAt = ?1 where file.id = ?2 and chunkIndex = ?3", LocalDateTime.now(), fileId, chunkIndex);
+    }
+
+    /**
+     * Le righe create prima di checksum e staged_at venivano scritte solo dopo il caricamento del blocco.
+     */
+    public static int markLegacyStaged() {
+        return update("stagedAt = createdAt where stagedAt is null and checksum is null");
+    }
+}
@@ -4,6 +4,7 @@ import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
 import jakarta.persistence.*;
 import jakarta.validation.constraints.*;
 import lombok.*;
+import org.hibernate.annotations.ColumnDefault;
 
 import java.time.LocalDateTime;
 
@@ -66,11 +67,19 @@ public class UserEntity extends PanacheEntityBase {
     @JoinColumn(name = "storage_plan_id")
     private PlanEntity storagePlan;
 
-    @Column(name = "used_storage_bytes", nullable = false)
+    // Contatori di quota aggiornati solo con UPDATE atomici (QuotaService/UserService):
+    // non aggiornabili dall'entità, così il salvataggio di un utente letto prima non li sovrascrive
+    @Column(name = "used_storage_bytes", nullable = false, updatable = false)
     @NotNull(message = "Used storage cannot be null")
     @Min(value = 0, message = "Used storage cannot be negative")
     private Long usedStorageBytes = 0L;
 
+    // Byte riservati dagli upload in corso (somma delle righe di quota_reservations)
+    @Column(name = "reserved_storage_bytes", nullable = false, updatable = false)
+    @ColumnDefault("0")
+    @Min(value = 0, message = "Reserved storage cannot be negative")
+    private Long reservedStorageBytes = 0L;
+
     @Column(name = "email_notifications", nullable = false)
     @NotNull(message = "Email notifications setting cannot be null")
     private Boolean emailNotifications = true;
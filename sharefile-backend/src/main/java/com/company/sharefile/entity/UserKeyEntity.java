@@ -34,6 +34,9 @@ public class UserKeyEntity extends PanacheEntityBase {
     @OnDelete(action = OnDeleteAction.CASCADE)
     private UserEntity user;
 
+    /**
+     * KEK dell'utente, cifrata con la master key dell'applicazione.
+     */
     @Column(name = "encryption_key", length = 512, nullable = false)
     @NotNull
     @Size(max = 512, message = "Encryption key must be less than 512 characters")
@@ -68,7 +71,7 @@ public class UserKeyEntity extends PanacheEntityBase {
         return isActive && revokedAt == null;
     }
 
-
-
-
+    public static UserKeyEntity findActiveByUser(UUID userId) {
+        return find("user.id = ?1 and isActive = true and revokedAt is null order by createdAt desc", userId).firstResult();
+    }
 }
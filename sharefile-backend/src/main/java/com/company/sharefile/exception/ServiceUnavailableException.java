@@ -0,0 +1,17 @@
+package com.company.sharefile.exception;
+
+import jakarta.ws.rs.core.Response;
+import lombok.Getter;
+
+/**
+ * 503 con header Retry-After: il servizio è sovraccarico e la richiesta può essere ritentata.
+ */
+@Getter
+public class ServiceUnavailableException extends ApiException {
+    private final long retryAfterSeconds;
+
+    public ServiceUnavailableException(String message, long retryAfterSeconds, String internalDocumentationErrorCode) {
+        super(message, Response.Status.SERVICE_UNAVAILABLE, internalDocumentationErrorCode);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+}
@@ -2,6 +2,8 @@ package com.company.sharefile.mapper;
 
 import com.company.sharefile.dto.v1.records.response.ErrorResponseDTO;
 import com.company.sharefile.exception.ApiException;
+import com.company.sharefile.exception.ServiceUnavailableException;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.ext.ExceptionMapper;
@@ -30,10 +32,13 @@ public class ApiExceptionMapper implements ExceptionMapper<ApiException> {
 
         );
 
-        return Response
+        Response.ResponseBuilder response = Response
                 .status(status)
                 .entity(errorDTO)
-                .type(MediaType.APPLICATION_JSON)
-                .build();
+                .type(MediaType.APPLICATION_JSON);
+        if (exception instanceof ServiceUnavailableException unavailable) {
+            response.header(HttpHeaders.RETRY_AFTER, unavailable.getRetryAfterSeconds());
+        }
+        return response.build();
     }
 }
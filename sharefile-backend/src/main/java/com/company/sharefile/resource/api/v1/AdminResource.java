@@ -0,0 +1,32 @@
+package com.company.sharefile.resource.api.v1;
+
+import com.company.sharefile.config.ValidationConstants;
+import com.company.sharefile.service.TransferBudgetService;
+import jakarta.annotation.security.RolesAllowed;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.eclipse.microprofile.openapi.annotations.Operation;
+import org.eclipse.microprofile.openapi.annotations.tags.Tag;
+
+@Path("v1/admin")
+@Produces(MediaType.APPLICATION_JSON)
+@Tag(name = "Admin", description = "Operazioni di amministrazione")
+@RolesAllowed(ValidationConstants.ROLE_ADMIN)
+public class AdminResource {
+    @Inject
+    TransferBudgetService transferBudgetService;
+
+    @GET
+    @Path("/transfer-budget")
+    @Operation(
+            summary = "Stato del budget dei trasferimenti",
+            description = "Byte in uso e disponibili, richieste in coda, ammesse e rifiutate"
+    )
+    public Response getTransferBudget() {
+        return Response.ok(transferBudgetService.getStatus()).build();
+    }
+}
@@ -1,11 +1,15 @@
 package com.company.sharefile.resource.api.v1;
 
+import com.company.sharefile.dto.v1.records.response.PartialContentDTO;
 import com.company.sharefile.entity.FileEntity;
 import com.company.sharefile.exception.ApiException;
 import com.company.sharefile.service.FileService;
+import com.company.sharefile.utils.ContentValidators;
 import io.quarkus.oidc.runtime.OidcJwtCallerPrincipal;
 import io.quarkus.security.Authenticated;
 import io.quarkus.security.identity.SecurityIdentity;
+import io.smallrye.common.annotation.RunOnVirtualThread;
+import io.vertx.ext.web.RoutingContext;
 import jakarta.inject.Inject;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.ws.rs.*;
@@ -19,6 +23,7 @@ import java.util.UUID;
 
 @Path("v1/download")
 @Authenticated
+@RunOnVirtualThread
 public class DownloadResource {
 
     @Inject
@@ -30,11 +35,18 @@ public class DownloadResource {
     @Inject
     SecurityIdentity securityIdentity;
 
+    @Inject
+    RoutingContext routingContext;
+
 
     @GET
     @Path("/file/{fileId}")
     @Produces(MediaType.APPLICATION_OCTET_STREAM)
-    public Response downloadFile(@PathParam("fileId") String fileId){
+    public Response downloadFile(@PathParam("fileId") String fileId,
+                                 @HeaderParam("Range") String range,
+                                 @HeaderParam("If-Range") String ifRange,
+                                 @HeaderParam("If-None-Match") String ifNoneMatch,
+                                 @HeaderParam("If-Modified-Since") String ifModifiedSince){
         log.infof("Received download request for fileId: %s", fileId);
 
         OidcJwtCallerPrincipal principal = (OidcJwtCallerPrincipal) securityIdentity.getPrincipal();
@@ -49,17 +61,22 @@ public class DownloadResource {
             );
         }
 
+        fileService.checkDownloadable(fileEntity);
+
+        // il client ha già questa versione: si risponde prima di leggere il blob da Azure
+        ContentValidators validators = FileService.validators(fileEntity);
+        if(validators.notModified(ifNoneMatch, ifModifiedSince)){
+            return PartialContentResponses.notModified(validators).build();
+        }
+
         log.infof("Preparing file %s for download", fileEntity.getFileName());
 
-        byte[] decryptedData = fileService.downloadFileAsBytes(fileId, keycloakId);
+        // decifrato al volo mentre viene inviato: il primo byte parte senza attendere tutto il file
+        PartialContentDTO content = fileService.streamFile(fileId, keycloakId, range, ifRange);
 
-        return Response.ok(decryptedData)
+        return PartialContentResponses.of(content, routingContext)
                 .header("Content-Disposition",
                         String.format("attachment; filename=\"%s.%s\"", fileEntity.getFileName(),fileEntity.getMimeType().split("/")[1]))
-                .header("Content-Type",
-                        fileEntity.getMimeType() != null ?
-                                fileEntity.getMimeType() : MediaType.APPLICATION_OCTET_STREAM)
-                .header("Content-Length", decryptedData.length)
                 .header("X-File-ID", fileEntity.getId())
                 .header("X-File-Checksum", fileEntity.getChecksum())
                 .build();
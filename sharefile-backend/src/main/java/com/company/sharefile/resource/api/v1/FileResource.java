@@ -0,0 +1,42 @@
+package com.company.sharefile.resource.api.v1;
+
+import com.company.sharefile.service.FileService;
+import io.quarkus.oidc.runtime.OidcJwtCallerPrincipal;
+import io.quarkus.security.Authenticated;
+import io.quarkus.security.identity.SecurityIdentity;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.eclipse.microprofile.jwt.Claims;
+import org.jboss.logging.Logger;
+
+@Path("v1/files")
+@Produces(MediaType.APPLICATION_JSON)
+@Authenticated
+public class FileResource {
+
+    @Inject
+    Logger log;
+
+    @Inject
+    FileService fileService;
+
+    @Inject
+    SecurityIdentity securityIdentity;
+
+    @DELETE
+    @Path("/{fileId}")
+    public Response deleteFile(@PathParam("fileId") String fileId) {
+        log.infof("Received delete request for fileId: %s", fileId);
+
+        OidcJwtCallerPrincipal principal = (OidcJwtCallerPrincipal) securityIdentity.getPrincipal();
+        String keycloakId = principal.getClaim(Claims.sub.name());
+
+        fileService.deleteFile(fileId, keycloakId);
+        return Response.noContent().build();
+    }
+}
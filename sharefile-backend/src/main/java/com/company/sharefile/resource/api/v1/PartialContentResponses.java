@@ -0,0 +1,70 @@
+package com.company.sharefile.resource.api.v1;
+
+import com.company.sharefile.dto.v1.records.response.PartialContentDTO;
+import com.company.sharefile.utils.ByteRange;
+import com.company.sharefile.utils.ContentValidators;
+import io.vertx.ext.web.RoutingContext;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * Risposte 200/206/304/416 per i download che supportano Range e richieste condizionali.
+ */
+final class PartialContentResponses {
+
+    private PartialContentResponses() {
+    }
+
+    /**
+     * Budget e spool del body vengono restituiti a fine richiesta anche se il body non viene
+     * scritto: HEAD, errore prima dell'invio, client disconnesso.
+     */
+    static Response.ResponseBuilder of(PartialContentDTO content, RoutingContext routingContext) {
+        routingContext.addEndHandler(ignored -> content.release());
+        Response.ResponseBuilder response;
+        if(!content.isSatisfiable()){
+            return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header("Accept-Ranges", "bytes")
+                    .header("Content-Range", ByteRange.unsatisfiedContentRange(content.fileSize()));
+        }
+        if(content.ranges() == null){
+            response = Response.ok(content.body())
+                    .header("Content-Type", content.mimeType());
+            if(content.fileSize() != null){
+                response.header("Content-Length", content.fileSize());
+            }
+        }else if(content.boundary() == null){
+            ByteRange range = content.ranges().get(0);
+            response = Response.status(Response.Status.PARTIAL_CONTENT).entity(content.body())
+                    .header("Content-Type", content.mimeType())
+                    .header("Content-Range", range.contentRange(content.fileSize()))
+                    .header("Content-Length", range.length());
+        }else{
+            response = Response.status(Response.Status.PARTIAL_CONTENT).entity(content.body())
+                    .header("Content-Type", "multipart/byteranges; boundary=" + content.boundary())
+                    .header("Content-Length", ByteRange.multipartLength(content.ranges(), content.boundary(),
+                            content.mimeType(), content.fileSize()));
+        }
+        response.header("Accept-Ranges", "bytes");
+        return withValidators(response, content.validators());
+    }
+
+    /**
+     * 304: nessun body, ma gli stessi validatori della risposta 200.
+     */
+    static Response.ResponseBuilder notModified(ContentValidators validators) {
+        return withValidators(Response.notModified(), validators);
+    }
+
+    private static Response.ResponseBuilder withValidators(Response.ResponseBuilder response, ContentValidators validators) {
+        if(validators == null){
+            return response;
+        }
+        if(validators.etag() != null){
+            response.header("ETag", validators.etag());
+        }
+        if(validators.lastModified() != null){
+            response.header("Last-Modified", validators.lastModifiedHeader());
+        }
+        return response;
+    }
+}
@@ -1,16 +1,19 @@
 package com.company.sharefile.resource.api.v1;
 
 import com.company.sharefile.dto.v1.records.request.TransferRequestDTO;
-import com.company.sharefile.dto.v1.records.response.FileDataResponseDTO;
+import com.company.sharefile.dto.v1.records.response.PartialContentDTO;
 import com.company.sharefile.dto.v1.records.response.TransferResponseDTO;
 import com.company.sharefile.entity.FileEntity;
 import com.company.sharefile.entity.TransferEntity;
 import com.company.sharefile.exception.ApiException;
 import com.company.sharefile.service.FileService;
 import com.company.sharefile.service.TransferService;
+import com.company.sharefile.utils.ContentValidators;
 import io.quarkus.oidc.runtime.OidcJwtCallerPrincipal;
 import io.quarkus.security.Authenticated;
 import io.quarkus.security.identity.SecurityIdentity;
+import io.smallrye.common.annotation.RunOnVirtualThread;
+import io.vertx.ext.web.RoutingContext;
 import jakarta.annotation.security.PermitAll;
 import jakarta.inject.Inject;
 import jakarta.validation.Valid;
@@ -33,6 +36,8 @@ public class TransferResource {
     SecurityIdentity securityIdentity;
     @Inject
     FileService fileService;
+    @Inject
+    RoutingContext routingContext;
 
     @POST
     @Authenticated
@@ -64,21 +69,31 @@ public class TransferResource {
     @Path("/{shareLink}/download/{accessToken}")
     @Produces({MediaType.APPLICATION_OCTET_STREAM, "application/zip"})
     @PermitAll
+    @RunOnVirtualThread
     public Response downloadTransfer(
         @PathParam("shareLink") String shareLink,
         @PathParam("accessToken") String accessToken,
-        @QueryParam("email") String recipientEmail)
+        @QueryParam("email") String recipientEmail,
+        @HeaderParam("Range") String range,
+        @HeaderParam("If-Range") String ifRange,
+        @HeaderParam("If-None-Match") String ifNoneMatch,
+        @HeaderParam("If-Modified-Since") String ifModifiedSince)
     {
 
         log.infof("Received download request for shareLink: %s", shareLink);
         try{
-            FileDataResponseDTO fileData = transferService.download(shareLink, recipientEmail,accessToken);
-            return Response.ok(fileData.fileData())
+            // il client ha già questa versione: nessun download contato, nessun blob letto
+            ContentValidators validators = transferService.validators(shareLink, recipientEmail, accessToken);
+            if(validators != null && validators.notModified(ifNoneMatch, ifModifiedSince)){
+                return PartialContentResponses.notModified(validators).build();
+            }
+            PartialContentDTO content = transferService.download(shareLink, recipientEmail, accessToken, range, ifRange);
+            return PartialContentResponses.of(content, routingContext)
                     .header("Content-Disposition",
-                            String.format("attachment; filename=\"%s\"", fileData.fileName()))
-                    .header("Content-Type", fileData.mimeType())
-                    .header("Content-Length", fileData.fileSize())
+                            String.format("attachment; filename=\"%s\"", content.fileName()))
                     .build();
+        }catch(ApiException e){
+            throw e;
         }catch(Exception e){
             throw new ApiException(
                     String.format("Error downloading from shareLink: %s", shareLink),
@@ -1,27 +1,45 @@
 package com.company.sharefile.resource.api.v1;
 
+import com.company.sharefile.config.ValidationConstants;
+import com.company.sharefile.dto.v1.records.request.DirectUploadRequestDTO;
+import com.company.sharefile.dto.v1.records.request.UploadPrecheckRequestDTO;
+import com.company.sharefile.dto.v1.records.request.UploadSessionRequestDTO;
+import com.company.sharefile.dto.v1.records.response.BatchUploadResponseDTO;
+import com.company.sharefile.dto.v1.records.response.DirectUploadResponseDTO;
+import com.company.sharefile.dto.v1.records.response.UploadPrecheckResponseDTO;
+import com.company.sharefile.dto.v1.records.response.UploadSessionResponseDTO;
 import com.company.sharefile.entity.FileEntity;
 import com.company.sharefile.exception.ApiException;
+import com.company.sharefile.service.BatchUploadService;
+import com.company.sharefile.service.DirectUploadService;
 import com.company.sharefile.service.FileService;
+import com.company.sharefile.service.UploadSessionService;
 import io.quarkus.oidc.runtime.OidcJwtCallerPrincipal;
 import io.quarkus.security.Authenticated;
 import io.quarkus.security.identity.SecurityIdentity;
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.inject.Inject;
+import jakarta.validation.Valid;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotNull;
 import jakarta.validation.constraints.Size;
 import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import org.eclipse.microprofile.jwt.Claims;
 import org.jboss.logging.Logger;
+import org.jboss.resteasy.reactive.RestForm;
+import org.jboss.resteasy.reactive.multipart.FileUpload;
 
-import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.List;
+import java.util.UUID;
 
 @Path("v1/upload")
 @Produces(MediaType.APPLICATION_JSON)
 @Authenticated
+@RunOnVirtualThread
 public class UploadResource {
 
     @Inject
@@ -30,6 +48,15 @@ public class UploadResource {
     @Inject
     FileService fileService;
 
+    @Inject
+    UploadSessionService uploadSessionService;
+
+    @Inject
+    BatchUploadService batchUploadService;
+
+    @Inject
+    DirectUploadService directUploadService;
+
     @Inject
     SecurityIdentity securityIdentity;
 
@@ -47,6 +74,9 @@ public class UploadResource {
             @DefaultValue("application/octet-stream")
             String mimeType,
 
+            @HeaderParam(HttpHeaders.CONTENT_LENGTH)
+            Long contentLength,
+
             @NotNull InputStream fileData) {
         log.infof("Received upload request for file: %s", fileName);
         try{
@@ -62,11 +92,8 @@ public class UploadResource {
                 );
             }
 
-            byte[] fileBytes = fileData.readAllBytes();
-            long fileSize = fileBytes.length;
-            log.infof("   File size: %d bytes", fileSize);
-
-            if(fileSize > 500 * 1024 * 1024){ // 500 MB limit
+            log.infof("   Declared file size: %s bytes", contentLength);
+            if(contentLength != null && contentLength > ValidationConstants.MAX_UPLOAD_FILE_SIZE){ // 500 MB limit
                 throw new ApiException(
                         String.format("File %s exceeds the maximum allowed size of 500MB", sanitizedFileName),
                         Response.Status.BAD_REQUEST,
@@ -74,8 +101,8 @@ public class UploadResource {
                 );
             }
 
-            InputStream inputStream = new ByteArrayInputStream(fileBytes);
-            FileEntity uploadedFile = fileService.uploadFile(inputStream,sanitizedFileName,fileSize, mimeType, keycloakId);
+            // Lo stream viene passato direttamente al service: nessuna copia del file in memoria
+            FileEntity uploadedFile = fileService.uploadFile(fileData, sanitizedFileName, contentLength, mimeType, keycloakId);
 
             log.infof("REST: File uploaded successfully - ID: %s, Name: %s",
                     uploadedFile.getId(), uploadedFile.getFileName());
@@ -83,6 +110,8 @@ public class UploadResource {
             return Response.status(Response.Status.CREATED)
                     .entity(uploadedFile)
                     .build();
+        }catch (ApiException e){
+            throw e;
         }catch (Exception e){
             throw new ApiException(
                     String.format("Error reading file data: %s", e.getMessage()),
@@ -93,5 +122,104 @@ public class UploadResource {
 
     }
 
+    /**
+     * Upload multipart di più file (parte "files", ripetuta): 201 se tutti i file sono stati
+     * salvati, 207 con l'esito di ogni file se qualcuno è fallito.
+     */
+    @POST
+    @Path("/batch")
+    @Consumes(MediaType.MULTIPART_FORM_DATA)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response uploadBatch(@RestForm("files") List<FileUpload> files) {
+        log.infof("Received batch upload request with %d files", files != null ? files.size() : 0);
+        BatchUploadResponseDTO batch = batchUploadService.uploadBatch(files, currentKeycloakId());
+        return Response.status(batch.failed() == 0 ? Response.Status.CREATED.getStatusCode() : 207)
+                .entity(batch)
+                .build();
+    }
+
+    @POST
+    @Path("/precheck")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response precheckUpload(@Valid UploadPrecheckRequestDTO request) {
+        log.infof("Received upload precheck for file: %s", request.fileName());
+        UploadPrecheckResponseDTO precheck = fileService.precheckUpload(request, currentKeycloakId());
+        return Response.status(precheck.uploadRequired() ? Response.Status.OK : Response.Status.CREATED)
+                .entity(precheck)
+                .build();
+    }
+
+    @POST
+    @Path("/sessions")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response createUploadSession(@Valid UploadSessionRequestDTO request) {
+        log.infof("Received upload session request for file: %s", request.fileName());
+        UploadSessionResponseDTO session = uploadSessionService.createSession(request, currentKeycloakId());
+        return Response.status(Response.Status.CREATED)
+                .entity(session)
+                .build();
+    }
+
+    @GET
+    @Path("/sessions/{sessionId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getUploadSession(@PathParam("sessionId") UUID sessionId) {
+        return Response.ok(uploadSessionService.getSession(sessionId, currentKeycloakId())).build();
+    }
+
+    @PUT
+    @Path("/sessions/{sessionId}/chunks/{chunkIndex}")
+    @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+    public Response uploadChunk(
+            @PathParam("sessionId") UUID sessionId,
+            @PathParam("chunkIndex") int chunkIndex,
+            @NotNull InputStream chunkData) {
+        log.debugf("Received chunk %d for upload session %s", chunkIndex, sessionId);
+        uploadSessionService.uploadChunk(sessionId, chunkIndex, chunkData, currentKeycloakId());
+        return Response.noContent().build();
+    }
+
+    @POST
+    @Path("/sessions/{sessionId}/commit")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response commitUploadSession(@PathParam("sessionId") UUID sessionId) {
+        log.infof("Received commit for upload session %s", sessionId);
+        FileEntity uploadedFile = uploadSessionService.commitSession(sessionId, currentKeycloakId());
+        return Response.status(Response.Status.CREATED)
+                .entity(uploadedFile)
+                .build();
+    }
 
+    /**
+     * Upload diretto su storage: restituisce un URL SAS di sola scrittura per il blob di staging.
+     */
+    @POST
+    @Path("/direct")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response createDirectUpload(@Valid DirectUploadRequestDTO request) {
+        log.infof("Received direct upload request for file: %s", request.fileName());
+        DirectUploadResponseDTO upload = directUploadService.createDirectUpload(request, currentKeycloakId());
+        return Response.status(Response.Status.CREATED)
+                .entity(upload)
+                .build();
+    }
+
+    @POST
+    @Path("/direct/{uploadId}/finalize")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response finalizeDirectUpload(@PathParam("uploadId") UUID uploadId) {
+        log.infof("Received finalize for direct upload %s", uploadId);
+        FileEntity uploadedFile = directUploadService.finalizeDirectUpload(uploadId, currentKeycloakId());
+        return Response.status(Response.Status.CREATED)
+                .entity(uploadedFile)
+                .build();
+    }
+
+    private String currentKeycloakId() {
+        OidcJwtCallerPrincipal principal = (OidcJwtCallerPrincipal) securityIdentity.getPrincipal();
+        return principal.getClaim(Claims.sub.name());
+    }
 }
@@ -1,10 +1,24 @@
 package com.company.sharefile.service;
 
+import com.azure.core.util.Context;
 import com.azure.storage.blob.BlobClient;
 import com.azure.storage.blob.BlobContainerClient;
 import com.azure.storage.blob.BlobServiceClient;
 import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.models.ParallelTransferOptions;
+import com.azure.storage.blob.options.BlobInputStreamOptions;
+import com.azure.storage.blob.options.BlobParallelUploadOptions;
+import com.azure.storage.blob.options.BlockBlobCommitBlockListOptions;
+import com.azure.storage.blob.sas.BlobSasPermission;
+import com.azure.storage.blob.sas.BlobServiceSasSignatureValues;
+import com.azure.storage.blob.specialized.BlockBlobClient;
 import com.company.sharefile.exception.ApiException;
+import com.company.sharefile.utils.TransferThreads;
+import io.quarkus.runtime.ShutdownEvent;
 import io.quarkus.runtime.StartupEvent;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.enterprise.event.Observes;
@@ -14,9 +28,17 @@ import jakarta.ws.rs.core.Response;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.logging.Logger;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.OffsetDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 @ApplicationScoped
 public class AzureStorageService {
@@ -30,8 +52,41 @@ public class AzureStorageService {
     @ConfigProperty(name = "azure.storage.container-name")
     String containerName;
 
+    // Container degli upload diretti (contenuto in chiaro, eliminato al finalize o alla scadenza)
+    @ConfigProperty(name = "azure.storage.staging-container-name", defaultValue = "sharefile-staging")
+    String stagingContainerName;
+
+    // Trasferimenti paralleli: i file fino a large-file-threshold usano i valori di default,
+    // quelli più grandi blocchi più grandi e più connessioni
+    @ConfigProperty(name = "azure.storage.transfer.block-size", defaultValue = "4194304")
+    long blockSize;
+
+    @ConfigProperty(name = "azure.storage.transfer.max-concurrency", defaultValue = "4")
+    int maxConcurrency;
+
+    @ConfigProperty(name = "azure.storage.transfer.max-single-upload-size", defaultValue = "33554432")
+    long maxSingleUploadSize;
+
+    @ConfigProperty(name = "azure.storage.transfer.large-file-threshold", defaultValue = "104857600")
+    long largeFileThreshold;
+
+    @ConfigProperty(name = "azure.storage.transfer.large-block-size", defaultValue = "16777216")
+    long largeBlockSize;
+
+    @ConfigProperty(name = "azure.storage.transfer.large-max-concurrency", defaultValue = "8")
+    int largeMaxConcurrency;
+
+    // Thread condivisi da tutti i download a range in corso
+    @ConfigProperty(name = "azure.storage.transfer.download-threads", defaultValue = "32")
+    int downloadThreads;
+
+    @ConfigProperty(name = "quarkus.virtual-threads.enabled", defaultValue = "true")
+    boolean virtualThreads;
+
     private BlobServiceClient blobServiceClient;
     private BlobContainerClient containerClient;
+    private BlobContainerClient stagingContainerClient;
+    private ExecutorService downloadExecutor;
 
     /**
      * Inizializza Azure Blob Service Client al startup
@@ -46,15 +101,10 @@ public class AzureStorageService {
                     .buildClient();
 
             // Ottieni o crea container
-            containerClient = blobServiceClient.getBlobContainerClient(containerName);
-
-            if (!containerClient.exists()) {
-                log.infof("Creazione container: %s", containerName);
-                containerClient.create();
-                log.infof("Container creato: %s", containerName);
-            } else {
-                log.infof("Container esistente: %s", containerName);
-            }
+            containerClient = ensureContainer(containerName);
+            stagingContainerClient = ensureContainer(stagingContainerName);
+
+            downloadExecutor = TransferThreads.fixedPool("azure-download", downloadThreads, virtualThreads);
 
         } catch (Exception e) {
             log.errorf(e, "Errore inizializzazione Azure Blob Storage");
@@ -62,16 +112,75 @@ public class AzureStorageService {
         }
     }
 
-    public void upload(String path, InputStream inputStream, long fileEncryptedSize, Map<String, String> metadata ) {
+    private BlobContainerClient ensureContainer(String name) {
+        BlobContainerClient client = blobServiceClient.getBlobContainerClient(name);
+        if (!client.exists()) {
+            log.infof("Creazione container: %s", name);
+            client.create();
+            log.infof("Container creato: %s", name);
+        } else {
+            log.infof("Container esistente: %s", name);
+        }
+        return client;
+    }
+
+    void onStop(@Observes ShutdownEvent ev) {
+        if (downloadExecutor != null) {
+            downloadExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Opzioni di trasferimento per dimensione: se la dimensione non è nota si usano i valori di default.
+     */
+    private ParallelTransferOptions transferOptions(Long size) {
+        boolean large = size != null && size > largeFileThreshold;
+        return new ParallelTransferOptions()
+                .setBlockSizeLong(large ? largeBlockSize : blockSize)
+                .setMaxConcurrency(large ? largeMaxConcurrency : maxConcurrency)
+                .setMaxSingleUploadSizeLong(maxSingleUploadSize);
+    }
+
+    /**
+     * Memoria usata dall'SDK per un upload in streaming: sotto maxSingleUploadSize il contenuto
+     * viene bufferizzato intero, sopra un blocco per ogni richiesta parallela più quello in lettura.
+     */
+    public long uploadBufferBytes(Long expectedSize) {
+        if(expectedSize != null && expectedSize <= maxSingleUploadSize){
+            return expectedSize;
+        }
+        ParallelTransferOptions options = transferOptions(expectedSize);
+        return options.getBlockSizeLong() * (options.getMaxConcurrency() + 1);
+    }
+
+    /**
+     * Memoria usata da {@link #openInputStream(String)}: un blocco alla volta.
+     */
+    public long streamBufferBytes(Long size) {
+        return transferOptions(size).getBlockSizeLong();
+    }
+
+    /**
+     * Upload in streaming: la lunghezza non serve, l'SDK legge lo stream a blocchi
+     * e li carica come block blob in parallelo, quindi la memoria usata è limitata a
+     * blockSize * maxConcurrency e non dipende dalla dimensione del file.
+     *
+     * @param expectedSize dimensione attesa (se nota) usata solo per scegliere le opzioni di trasferimento
+     */
+    public void upload(String path, InputStream inputStream, Long expectedSize, Map<String, String> metadata) {
         try{
             log.infof("Uploading file: %s", path);
             BlobClient blobClient = containerClient.getBlobClient(path);
-            blobClient.upload(inputStream, fileEncryptedSize,true );
+            BlobParallelUploadOptions options = new BlobParallelUploadOptions(inputStream)
+                    .setParallelTransferOptions(transferOptions(expectedSize));
             if(metadata != null && !metadata.isEmpty()){
-                blobClient.setMetadata(metadata);
+                options.setMetadata(metadata);
             }
+            blobClient.uploadWithResponse(options, null, Context.NONE);
             log.infof("File uploaded successfully: %s", path);
 
+        }catch(ApiException e){
+            throw e;
         }catch(Exception e){
             throw new ApiException(
                     String.format("Error uploading file to Azure Blob Storage: %s", path),
@@ -81,27 +190,226 @@ public class AzureStorageService {
         }
     }
 
+    /**
+     * Carica un blocco non ancora committato: ricaricare lo stesso blockId lo sovrascrive,
+     * quindi i retry dei chunk sono idempotenti.
+     */
+    public void stageBlock(String path, String blockId, byte[] data) {
+        try{
+            log.debugf("Staging block %s for file: %s", blockId, path);
+            BlockBlobClient blockBlobClient = containerClient.getBlobClient(path).getBlockBlobClient();
+            blockBlobClient.stageBlock(blockId, new ByteArrayInputStream(data), data.length);
+        }catch(Exception e){
+            throw new ApiException(
+                    String.format("Error staging block %s on Azure Blob Storage: %s", blockId, path),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-004"
+            );
+        }
+    }
+
+    public void commitBlockList(String path, List<String> blockIds, Map<String, String> metadata) {
+        try{
+            log.infof("Committing %d blocks for file: %s", blockIds.size(), path);
+            BlockBlobClient blockBlobClient = containerClient.getBlobClient(path).getBlockBlobClient();
+            blockBlobClient.commitBlockListWithResponse(
+                    new BlockBlobCommitBlockListOptions(blockIds).setMetadata(metadata),
+                    null,
+                    Context.NONE
+            );
+        }catch(Exception e){
+            throw new ApiException(
+                    String.format("Error committing block list on Azure Blob Storage: %s", path),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-004"
+            );
+        }
+    }
+
+    public InputStream openInputStream(@Size(max = 512, message = "Storage path must be less than 512 characters") String storagePath) {
+        return openInputStream(containerClient, storagePath);
+    }
+
+    private InputStream openInputStream(BlobContainerClient container, String storagePath) {
+        try{
+            BlobClient blobClient = container.getBlobClient(storagePath);
+            BlobProperties properties = blobClient.getProperties();
+            ParallelTransferOptions options = transferOptions(properties.getBlobSize());
+            return blobClient.openInputStream(new BlobInputStreamOptions()
+                    .setBlockSize(options.getBlockSizeLong().intValue())
+                    .setRequestConditions(new BlobRequestConditions().setIfMatch(properties.getETag())));
+        }catch(Exception e){
+            throw new ApiException(
+                    String.format("Error opening file from Azure Blob Storage: %s", storagePath),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-005"
+            );
+        }
+    }
+
+    /**
+     * Legge solo count byte a partire da offset (lettura a intervallo lato Azure).
+     */
+    public InputStream openRangeInputStream(@Size(max = 512, message = "Storage path must be less than 512 characters") String storagePath, long offset, long count) {
+        try{
+            BlobClient blobClient = containerClient.getBlobClient(storagePath);
+            ParallelTransferOptions options = transferOptions(count);
+            return blobClient.openInputStream(new BlobInputStreamOptions()
+                    .setRange(new BlobRange(offset, count))
+                    .setBlockSize((int) Math.min(count, options.getBlockSizeLong())));
+        }catch(Exception e){
+            throw new ApiException(
+                    String.format("Error opening range %d+%d of %s from Azure Blob Storage", offset, count, storagePath),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-005"
+            );
+        }
+    }
+
+    public void setMetadata(String path, Map<String, String> metadata) {
+        try{
+            containerClient.getBlobClient(path).setMetadata(metadata);
+        }catch(Exception e){
+            throw new ApiException(
+                    String.format("Error updating metadata on Azure Blob Storage: %s", path),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-004"
+            );
+        }
+    }
+
+    public void delete(String path) {
+        try{
+            log.infof("Deleting file: %s", path);
+            containerClient.getBlobClient(path).deleteIfExists();
+        }catch(Exception e){
+            throw new ApiException(
+                    String.format("Error deleting file from Azure Blob Storage: %s", path),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-006"
+            );
+        }
+    }
+
+    /**
+     * URL SAS per il blob di staging: solo create/write, nessuna lettura né elenco,
+     * valido fino a expiresAt. Richiede una connection string con account key.
+     */
+    public String generateStagingUploadUrl(String stagingPath, OffsetDateTime expiresAt) {
+        try{
+            BlobClient blobClient = stagingContainerClient.getBlobClient(stagingPath);
+            BlobSasPermission permission = new BlobSasPermission()
+                    .setCreatePermission(true)
+                    .setWritePermission(true);
+            String sas = blobClient.generateSas(new BlobServiceSasSignatureValues(expiresAt, permission));
+            return blobClient.getBlobUrl() + "?" + sas;
+        }catch(Exception e){
+            throw new ApiException(
+                    String.format("Error generating upload URL for staging blob: %s", stagingPath),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-004"
+            );
+        }
+    }
+
+    /**
+     * @return dimensione del blob di staging, null se il client non lo ha ancora caricato
+     */
+    public Long getStagingSize(String stagingPath) {
+        try{
+            return stagingContainerClient.getBlobClient(stagingPath).getProperties().getBlobSize();
+        }catch(BlobStorageException e){
+            if(e.getStatusCode() == 404){
+                return null;
+            }
+            throw new ApiException(
+                    String.format("Error reading staging blob properties: %s", stagingPath),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-005"
+            );
+        }
+    }
+
+    public InputStream openStagingInputStream(String stagingPath) {
+        return openInputStream(stagingContainerClient, stagingPath);
+    }
+
+    public void deleteStaging(String stagingPath) {
+        try{
+            log.debugf("Deleting staging blob: %s", stagingPath);
+            stagingContainerClient.getBlobClient(stagingPath).deleteIfExists();
+        }catch(Exception e){
+            throw new ApiException(
+                    String.format("Error deleting staging blob from Azure Blob Storage: %s", stagingPath),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-006"
+            );
+        }
+    }
+
     public byte[] downloadAsBytes(@Size(max = 512, message = "Storage path must be less than 512 characters") String storagePath) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        long size = download(storagePath, outputStream);
+        log.infof("Downloaded %d bytes from blob: %s", size, storagePath);
+        return outputStream.toByteArray();
+    }
 
+    /**
+     * Scarica il blob su output. Sopra maxSingleUploadSize il blob viene letto a range
+     * in parallelo (al massimo maxConcurrency blocchi in memoria) e scritto in ordine.
+     * Tutte le letture sono vincolate all'ETag iniziale, così un blob sovrascritto
+     * durante il download fa fallire il trasferimento invece di mescolare due versioni.
+     *
+     * @return numero di byte scaricati
+     */
+    public long download(@Size(max = 512, message = "Storage path must be less than 512 characters") String storagePath, OutputStream output) {
         try{
             log.infof("Downloading file: %s", storagePath);
 
             BlobClient blobClient = containerClient.getBlobClient(storagePath);
-            if(!blobClient.exists()){
-                throw new ApiException(
-                        String.format("File not found in Azure Blob Storage: %s", storagePath),
-                        Response.Status.NOT_FOUND,
-                        "LAM-404-001"
-                );
+            BlobProperties properties;
+            try{
+                properties = blobClient.getProperties();
+            }catch(BlobStorageException e){
+                if(e.getStatusCode() == 404){
+                    throw new ApiException(
+                            String.format("File not found in Azure Blob Storage: %s", storagePath),
+                            Response.Status.NOT_FOUND,
+                            "LAM-404-001"
+                    );
+                }
+                throw e;
             }
-            // Download in ByteArrayOutputStream
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            blobClient.downloadStream(outputStream);
-
-            byte[] data = outputStream.toByteArray();
-            log.infof("Downloaded %d bytes from blob: %s", data.length, storagePath);
-            return data;
-        }catch (Exception e){
+
+            long size = properties.getBlobSize();
+            BlobRequestConditions conditions = new BlobRequestConditions().setIfMatch(properties.getETag());
+            ParallelTransferOptions options = transferOptions(size);
+
+            if(size <= maxSingleUploadSize){
+                blobClient.downloadStreamWithResponse(output, null, null, conditions, false, null, Context.NONE);
+                return size;
+            }
+
+            long rangeSize = options.getBlockSizeLong();
+            int concurrency = options.getMaxConcurrency();
+            Deque<Future<byte[]>> window = new ArrayDeque<>(concurrency);
+            long nextOffset = 0;
+            try{
+                while(nextOffset < size || !window.isEmpty()){
+                    while(nextOffset < size && window.size() < concurrency){
+                        BlobRange range = new BlobRange(nextOffset, Math.min(rangeSize, size - nextOffset));
+                        window.addLast(downloadExecutor.submit(() -> downloadRange(blobClient, range, conditions)));
+                        nextOffset += range.getCount();
+                    }
+                    output.write(window.removeFirst().get());
+                }
+            }finally{
+                window.forEach(future -> future.cancel(true));
+            }
+            return size;
+        }catch(ApiException e){
+            throw e;
+        }catch(Exception e){
             throw new ApiException(
                     String.format("Error downloading file from Azure Blob Storage: %s", storagePath),
                     Response.Status.INTERNAL_SERVER_ERROR,
@@ -109,4 +417,10 @@ public class AzureStorageService {
             );
         }
     }
-}
\ No newline at end of file
+
+    private byte[] downloadRange(BlobClient blobClient, BlobRange range, BlobRequestConditions conditions) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(range.getCount().intValue());
+        blobClient.downloadStreamWithResponse(buffer, range, null, conditions, false, null, Context.NONE);
+        return buffer.toByteArray();
+    }
+}
@@ -0,0 +1,166 @@
+package com.company.sharefile.service;
+
+import com.company.sharefile.config.ValidationConstants;
+import com.company.sharefile.dto.v1.records.response.BatchUploadResponseDTO;
+import com.company.sharefile.dto.v1.records.response.BatchUploadResultDTO;
+import com.company.sharefile.entity.FileEntity;
+import com.company.sharefile.entity.UserEntity;
+import com.company.sharefile.exception.ApiException;
+import com.company.sharefile.utils.TransferThreads;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.core.Response;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+import org.jboss.resteasy.reactive.multipart.FileUpload;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Upload di più file in una sola richiesta multipart: autenticazione, lookup dell'utente
+ * e riserva della quota avvengono una volta per tutto il batch, poi ogni file passa
+ * nella pipeline di upload con parallelismo limitato. Un file che fallisce non interrompe
+ * gli altri: la risposta contiene un esito per ogni file.
+ */
+@ApplicationScoped
+public class BatchUploadService {
+    @Inject
+    Logger log;
+
+    @Inject
+    FileService fileService;
+
+    @Inject
+    UserService userService;
+
+    @Inject
+    QuotaService quotaService;
+
+    // File del batch elaborati in parallelo, condiviso tra tutte le richieste
+    @ConfigProperty(name = "sharefile.upload.batch.concurrency", defaultValue = "4")
+    int concurrency;
+
+    @ConfigProperty(name = "sharefile.upload.batch.max-files", defaultValue = "500")
+    int maxFiles;
+
+    @ConfigProperty(name = "quarkus.virtual-threads.enabled", defaultValue = "true")
+    boolean virtualThreads;
+
+    private ExecutorService uploadExecutor;
+
+    void onStart(@Observes StartupEvent ev) {
+        uploadExecutor = TransferThreads.fixedPool("batch-upload", concurrency, virtualThreads);
+    }
+
+    void onStop(@Observes ShutdownEvent ev) {
+        if(uploadExecutor != null){
+            uploadExecutor.shutdownNow();
+        }
+    }
+
+    public BatchUploadResponseDTO uploadBatch(List<FileUpload> files, String keycloakId) {
+        if(files == null || files.isEmpty() || files.size() > maxFiles){
+            throw new ApiException(
+                    String.format("A batch must contain between 1 and %d files", maxFiles),
+                    Response.Status.BAD_REQUEST,
+                    "LAM-400-009"
+            );
+        }
+
+        UserEntity user = userService.findByKeycloakId(keycloakId);
+        if(user == null){
+            throw new ApiException(
+                    String.format("user with keycloakId %s not found", keycloakId),
+                    Response.Status.NOT_FOUND,
+                    "LAM-404-003"
+            );
+        }
+
+        long reservedBytes = files.stream()
+                .filter(file -> file.size() <= ValidationConstants.MAX_UPLOAD_FILE_SIZE)
+                .mapToLong(FileUpload::size)
+                .sum();
+        log.infof("batch upload of %d files (%d bytes) for keycloakId %s", files.size(), reservedBytes, keycloakId);
+
+        // Riserva unica per tutto il batch, confermata alla fine solo per i byte dei file salvati
+        try(QuotaService.Reservation reservation = quotaService.reserve(user, reservedBytes)){
+            List<Future<BatchUploadResultDTO>> pending = new ArrayList<>(files.size());
+            for(FileUpload file : files){
+                pending.add(uploadExecutor.submit(() -> uploadOne(file, user)));
+            }
+
+            List<BatchUploadResultDTO> results = new ArrayList<>(files.size());
+            long storedBytes = 0;
+            for(int i = 0; i < pending.size(); i++){
+                BatchUploadResultDTO result = await(pending.get(i), files.get(i));
+                if(result.success()){
+                    storedBytes += result.fileSize();
+                }
+                results.add(result);
+            }
+            quotaService.commit(reservation, storedBytes);
+
+            int succeeded = (int) results.stream().filter(BatchUploadResultDTO::success).count();
+            log.infof("batch upload completed: %d/%d files stored", succeeded, results.size());
+            return new BatchUploadResponseDTO(results.size(), succeeded, results.size() - succeeded, results);
+        }
+    }
+
+    private BatchUploadResultDTO uploadOne(FileUpload file, UserEntity user) {
+        String fileName = file.fileName() != null ? file.fileName().trim() : null;
+        try{
+            if(fileName == null || fileName.isEmpty()){
+                throw new ApiException(
+                        "File name is required for every part of the batch",
+                        Response.Status.BAD_REQUEST,
+                        "LAM-400-001"
+                );
+            }
+            if(file.size() > ValidationConstants.MAX_UPLOAD_FILE_SIZE){
+                throw new ApiException(
+                        String.format("File %s exceeds the maximum allowed size of 500MB", fileName),
+                        Response.Status.BAD_REQUEST,
+                        "LAM-400-003"
+                );
+            }
+            String mimeType = file.contentType() != null ? file.contentType() : ValidationConstants.DEFAULT_MIME_TYPE;
+            try(InputStream data = Files.newInputStream(file.uploadedFile())){
+                FileEntity uploaded = fileService.uploadFile(data, fileName, file.size(), mimeType, user, false);
+                return BatchUploadResultDTO.uploaded(uploaded);
+            }
+        }catch(ApiException e){
+            return BatchUploadResultDTO.failed(fileName, e);
+        }catch(Exception e){
+            return BatchUploadResultDTO.failed(fileName, new ApiException(
+                    String.format("Errore durante l'upload del file %s", fileName),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-002"
+            ));
+        }
+    }
+
+    private BatchUploadResultDTO await(Future<BatchUploadResultDTO> result, FileUpload file) {
+        try{
+            return result.get();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            result.cancel(true);
+        }catch(ExecutionException e){
+            log.errorf(e.getCause(), "Unexpected error uploading %s", file.fileName());
+        }
+        return BatchUploadResultDTO.failed(file.fileName(), new ApiException(
+                String.format("Errore durante l'upload del file %s", file.fileName()),
+                Response.Status.INTERNAL_SERVER_ERROR,
+                "LAM-500-002"
+        ));
+    }
+}
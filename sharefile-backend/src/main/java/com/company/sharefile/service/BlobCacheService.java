@@ -0,0 +1,517 @@
+package com.company.sharefile.service;
+
+import com.company.sharefile.entity.BlobEntity;
+import com.company.sharefile.entity.FileChunkEntity;
+import com.company.sharefile.entity.FileEntity;
+import com.company.sharefile.utils.CacheIndex;
+import com.company.sharefile.utils.StorageMode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Cache su disco locale dei blob cifrati (così come sono su Azure): i file scaricati da molti
+ * destinatari vengono letti da Azure una volta sola. Le voci sono per storage path e valgono
+ * solo se il checksum coincide; il contenuto resta cifrato, la decifratura avviene a valle
+ * come per una lettura da Azure.
+ * <p>
+ * Un miss riempie la cache mentre il blob viene inviato al primo richiedente (il primo byte
+ * non aspetta il download completo); le richieste concorrenti per lo stesso blob attendono
+ * quel riempimento invece di scaricarlo di nuovo, fino a fill-wait. Un riempimento interrotto
+ * viene scartato. L'indice è in memoria: all'avvio la directory viene svuotata.
+ */
+@ApplicationScoped
+public class BlobCacheService {
+    @Inject
+    Logger log;
+
+    @Inject
+    AzureStorageService azureStorageService;
+
+    @Inject
+    MeterRegistry meterRegistry;
+
+    @ConfigProperty(name = "sharefile.blob-cache.enabled", defaultValue = "true")
+    boolean enabled;
+
+    @ConfigProperty(name = "sharefile.blob-cache.directory", defaultValue = "${java.io.tmpdir}/sharefile-blob-cache")
+    String directory;
+
+    @ConfigProperty(name = "sharefile.blob-cache.max-bytes", defaultValue = "10737418240")
+    long maxBytes;
+
+    // I blob più grandi vengono sempre letti da Azure
+    @ConfigProperty(name = "sharefile.blob-cache.max-entry-bytes", defaultValue = "1073741824")
+    long maxEntryBytes;
+
+    // lru | tinylfu
+    @ConfigProperty(name = "sharefile.blob-cache.policy", defaultValue = "tinylfu")
+    String policy;
+
+    @ConfigProperty(name = "sharefile.blob-cache.fill-wait", defaultValue = "30S")
+    Duration fillWait;
+
+    private record CachedBlob(String checksum, long bytes, Path file) {
+    }
+
+    private Path cacheDirectory;
+    private CacheIndex<String, CachedBlob> index;
+    private final Map<String, CompletableFuture<Boolean>> fills = new ConcurrentHashMap<>();
+    private final AtomicLong cachedBytes = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private Counter hits;
+    private Counter misses;
+    private Counter servedBytes;
+    private Counter evictions;
+
+    void onStart(@Observes StartupEvent ev) {
+        hits = meterRegistry.counter("sharefile.blob-cache.hits");
+        misses = meterRegistry.counter("sharefile.blob-cache.misses");
+        servedBytes = meterRegistry.counter("sharefile.blob-cache.served.bytes");
+        evictions = meterRegistry.counter("sharefile.blob-cache.evictions");
+        meterRegistry.gauge("sharefile.blob-cache.size.bytes", cachedBytes);
+        meterRegistry.gauge("sharefile.blob-cache.hit-ratio", this, BlobCacheService::hitRatio);
+        if(!enabled){
+            return;
+        }
+        cacheDirectory = Paths.get(directory);
+        try{
+            Files.createDirectories(cacheDirectory);
+            try(Stream<Path> files = Files.list(cacheDirectory)){
+                files.forEach(BlobCacheService::deleteQuietly);
+            }
+        }catch(IOException e){
+            log.errorf(e, "Unable to prepare blob cache directory %s, cache disabled", cacheDirectory);
+            return;
+        }
+        index = CacheIndex.create(policy, maxBytes, CachedBlob::bytes, (storagePath, cached) -> {
+            evictions.increment();
+            cachedBytes.addAndGet(-cached.bytes());
+            deleteQuietly(cached.file());
+        });
+        log.infof("blob cache enabled in %s (%d bytes, %s)", cacheDirectory, maxBytes, policy);
+    }
+
+    /**
+     * Come {@link AzureStorageService#openInputStream(String)}, dalla cache se possibile.
+     */
+    public InputStream openInputStream(BlobEntity blob) {
+        if(!isCacheable(blob)){
+            return azureStorageService.openInputStream(blob.getStoragePath());
+        }
+        InputStream cached = openCachedOrAwait(blob, 0, Long.MAX_VALUE);
+        if(cached != null){
+            return cached;
+        }
+        Fill fill = startFill(blob);
+        if(fill == null){
+            // un'altra richiesta ha iniziato il riempimento nel frattempo
+            cached = openCachedOrAwait(blob, 0, Long.MAX_VALUE);
+            if(cached != null){
+                return cached;
+            }
+            miss();
+            return azureStorageService.openInputStream(blob.getStoragePath());
+        }
+        miss();
+        try{
+            return new FillingInputStream(azureStorageService.openInputStream(blob.getStoragePath()), fill);
+        }catch(RuntimeException e){
+            fill.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Come {@link AzureStorageService#openRangeInputStream(String, long, long)}. Un miss non
+     * riempie la cache: servirebbe scaricare tutto il blob per leggerne una parte.
+     */
+    public InputStream openRangeInputStream(BlobEntity blob, long offset, long count) {
+        if(isCacheable(blob)){
+            InputStream cached = openCached(blob, offset, count);
+            if(cached != null){
+                return cached;
+            }
+            miss();
+        }
+        return azureStorageService.openRangeInputStream(blob.getStoragePath(), offset, count);
+    }
+
+    /**
+     * Come {@link AzureStorageService#download(String, OutputStream)}: in caso di miss il
+     * download parallelo a range di Azure riempie anche la cache.
+     */
+    public long download(BlobEntity blob, OutputStream output) {
+        if(!isCacheable(blob)){
+            return azureStorageService.download(blob.getStoragePath(), output);
+        }
+        Long copied = copyCached(blob, output);
+        if(copied != null){
+            return copied;
+        }
+        Fill fill = startFill(blob);
+        if(fill == null){
+            copied = copyCached(blob, output);
+            if(copied != null){
+                return copied;
+            }
+            miss();
+            return azureStorageService.download(blob.getStoragePath(), output);
+        }
+        miss();
+        try{
+            long size = azureStorageService.download(blob.getStoragePath(), new FilterOutputStream(output) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    fill.write(b, off, len);
+                }
+            });
+            fill.complete();
+            return size;
+        }finally{
+            fill.abort();
+        }
+    }
+
+    private Long copyCached(BlobEntity blob, OutputStream output) {
+        try(InputStream cached = openCachedOrAwait(blob, 0, Long.MAX_VALUE)){
+            return cached != null ? cached.transferTo(output) : null;
+        }catch(IOException e){
+            throw new IllegalStateException(String.format("Error reading cached blob %s: %s", blob.getStoragePath(), e.getMessage()), e);
+        }
+    }
+
+    public byte[] downloadAsBytes(BlobEntity blob) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        download(blob, output);
+        return output.toByteArray();
+    }
+
+    public void evict(String storagePath) {
+        if(index == null){
+            return;
+        }
+        CachedBlob cached = index.remove(storagePath);
+        if(cached != null){
+            cachedBytes.addAndGet(-cached.bytes());
+            deleteQuietly(cached.file());
+        }
+    }
+
+    /**
+     * Libera i blob dei file indicati (ad esempio di un transfer scaduto).
+     */
+    public void evictFiles(Collection<FileEntity> files) {
+        if(index == null){
+            return;
+        }
+        for(FileEntity file : files){
+            if(file.getStorageMode() == StorageMode.CHUNKED){
+                FileChunkEntity.findByFileOrdered(file.getId()).forEach(chunk -> evict(chunk.getBlob().getStoragePath()));
+            }else if(file.getBlob() != null){
+                evict(file.getBlob().getStoragePath());
+            }
+        }
+    }
+
+    private boolean isCacheable(BlobEntity blob) {
+        return index != null && blob.getChecksum() != null && blob.getSizeBytes() <= maxEntryBytes;
+    }
+
+    /**
+     * Se il blob è in riempimento da parte di un'altra richiesta aspetta che finisca
+     * (al massimo fill-wait) e poi lo legge dalla cache.
+     */
+    private InputStream openCachedOrAwait(BlobEntity blob, long offset, long count) {
+        InputStream cached = openCached(blob, offset, count);
+        if(cached != null){
+            return cached;
+        }
+        CompletableFuture<Boolean> running = fills.get(blob.getStoragePath());
+        if(running == null){
+            return null;
+        }
+        try{
+            if(!running.get(fillWait.toMillis(), TimeUnit.MILLISECONDS)){
+                return null;
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            return null;
+        }catch(Exception e){
+            return null;
+        }
+        return openCached(blob, offset, count);
+    }
+
+    private InputStream openCached(BlobEntity blob, long offset, long count) {
+        CachedBlob cached = index.get(blob.getStoragePath());
+        if(cached == null){
+            return null;
+        }
+        if(!cached.checksum().equals(blob.getChecksum())){
+            evict(blob.getStoragePath());
+            return null;
+        }
+        try{
+            FileChannel channel = FileChannel.open(cached.file(), StandardOpenOption.READ);
+            channel.position(offset);
+            hit();
+            return new CachedInputStream(Channels.newInputStream(channel), Math.min(count, cached.bytes() - offset));
+        }catch(IOException e){
+            // eliminato da un'eviction concorrente
+            log.debugf("cached blob %s no longer readable: %s", blob.getStoragePath(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return null se un'altra richiesta sta già riempiendo la cache per questo blob
+     *         (o se il file temporaneo non si può creare)
+     */
+    private Fill startFill(BlobEntity blob) {
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        if(fills.putIfAbsent(blob.getStoragePath(), done) != null){
+            return null;
+        }
+        try{
+            Path temp = Files.createTempFile(cacheDirectory, "fill-", ".tmp");
+            return new Fill(blob.getStoragePath(), blob.getChecksum(), temp, Files.newOutputStream(temp), done);
+        }catch(IOException e){
+            log.warnf("Unable to start blob cache fill for %s: %s", blob.getStoragePath(), e.getMessage());
+            fills.remove(blob.getStoragePath(), done);
+            done.complete(false);
+            return null;
+        }
+    }
+
+    private void hit() {
+        hits.increment();
+        hitCount.incrementAndGet();
+    }
+
+    private void miss() {
+        misses.increment();
+        missCount.incrementAndGet();
+    }
+
+    private double hitRatio() {
+        long total = hitCount.get() + missCount.get();
+        return total == 0 ? 0 : (double) hitCount.get() / total;
+    }
+
+    private Path entryFile(String storagePath, String checksum) {
+        try{
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] name = digest.digest((storagePath + "\n" + checksum).getBytes(StandardCharsets.UTF_8));
+            return cacheDirectory.resolve(HexFormat.of().formatHex(name) + ".blob");
+        }catch(Exception e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try{
+            Files.deleteIfExists(file);
+        }catch(IOException e){
+            // rimosso al prossimo avvio
+        }
+    }
+
+    /**
+     * Riempimento di una voce: scrive su un file temporaneo e lo rende visibile con un rename
+     * atomico solo se il blob è stato letto per intero.
+     */
+    private final class Fill {
+        private final String storagePath;
+        private final String checksum;
+        private final Path temp;
+        private final OutputStream out;
+        private final CompletableFuture<Boolean> done;
+        private long bytes;
+        private boolean failed;
+
+        Fill(String storagePath, String checksum, Path temp, OutputStream out, CompletableFuture<Boolean> done) {
+            this.storagePath = storagePath;
+            this.checksum = checksum;
+            this.temp = temp;
+            this.out = out;
+            this.done = done;
+        }
+
+        // un errore di scrittura (disco pieno) annulla il riempimento, non il download
+        void write(byte[] b, int off, int len) {
+            if(failed){
+                return;
+            }
+            try{
+                out.write(b, off, len);
+                bytes += len;
+                failed = bytes > maxEntryBytes;
+            }catch(IOException e){
+                log.warnf("Blob cache fill for %s failed: %s", storagePath, e.getMessage());
+                failed = true;
+            }
+        }
+
+        void complete() {
+            finish(!failed);
+        }
+
+        void abort() {
+            finish(false);
+        }
+
+        private void finish(boolean keep) {
+            if(done.isDone()){
+                return;
+            }
+            boolean stored = false;
+            try{
+                out.close();
+                if(keep){
+                    Path file = entryFile(storagePath, checksum);
+                    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    cachedBytes.addAndGet(bytes);
+                    CachedBlob previous = index.put(storagePath, new CachedBlob(checksum, bytes, file));
+                    if(previous != null){
+                        cachedBytes.addAndGet(-previous.bytes());
+                        if(!previous.file().equals(file)){
+                            deleteQuietly(previous.file());
+                        }
+                    }
+                    stored = true;
+                }
+            }catch(IOException e){
+                log.warnf("Unable to store %s in blob cache: %s", storagePath, e.getMessage());
+            }finally{
+                deleteQuietly(temp);
+                fills.remove(storagePath, done);
+                done.complete(stored);
+            }
+        }
+    }
+
+    /**
+     * Inoltra il blob letto da Azure e lo copia nella cache; il riempimento vale solo
+     * se lo stream arriva alla fine.
+     */
+    private static final class FillingInputStream extends FilterInputStream {
+        private final Fill fill;
+
+        FillingInputStream(InputStream in, Fill fill) {
+            super(in);
+            this.fill = fill;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if(read > 0){
+                fill.write(b, off, read);
+            }else if(read < 0){
+                fill.complete();
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // i byte saltati non arrivano alla cache
+            fill.abort();
+            return in.skip(n);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try{
+                in.close();
+            }finally{
+                fill.abort();
+            }
+        }
+    }
+
+    /**
+     * Lettura dalla cache limitata alla parte richiesta, conteggiata nei byte serviti.
+     */
+    private final class CachedInputStream extends FilterInputStream {
+        private long remaining;
+
+        CachedInputStream(InputStream in, long remaining) {
+            super(in);
+            this.remaining = remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(remaining <= 0){
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if(read > 0){
+                remaining -= read;
+                servedBytes.increment(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.company.sharefile.service;
+
+import com.company.sharefile.entity.BlobEntity;
+import com.company.sharefile.exception.ApiException;
+import com.company.sharefile.utils.CipherSuite;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.Status;
+import jakarta.transaction.Synchronization;
+import jakarta.transaction.TransactionSynchronizationRegistry;
+import jakarta.transaction.Transactional;
+import jakarta.ws.rs.core.Response;
+import org.jboss.logging.Logger;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gestione dei blob deduplicati: registrazione dei nuovi contenuti, reference counting
+ * e rilascio dello storage quando nessun file punta più al blob.
+ * Tutti i cambi di refCount sono UPDATE atomici sul database.
+ */
+@ApplicationScoped
+public class BlobService {
+    @Inject
+    Logger log;
+
+    @Inject
+    EntityManager entityManager;
+
+    @Inject
+    AzureStorageService azureStorageService;
+
+    @Inject
+    BlobCacheService blobCacheService;
+
+    @Inject
+    TransactionSynchronizationRegistry transactionRegistry;
+
+    @Inject
+    MeterRegistry meterRegistry;
+
+    private final AtomicLong physicalBytes = new AtomicLong();
+    private final AtomicLong logicalBytes = new AtomicLong();
+    private final AtomicLong compressionSavedBytes = new AtomicLong();
+    private Counter dedupHits;
+    private Counter dedupBytes;
+
+    void onStart(@Observes StartupEvent ev) {
+        migrateLegacyFiles();
+        normalizeCipherSuites();
+
+        meterRegistry.gauge("sharefile.dedup.physical.bytes", physicalBytes);
+        meterRegistry.gauge("sharefile.dedup.logical.bytes", logicalBytes);
+        meterRegistry.gauge("sharefile.dedup.saved.bytes", this, service -> service.logicalBytes.get() - service.physicalBytes.get());
+        meterRegistry.gauge("sharefile.dedup.ratio", this, service -> {
+            long physical = service.physicalBytes.get();
+            return physical > 0 ? (double) service.logicalBytes.get() / physical : 1.0;
+        });
+        meterRegistry.gauge("sharefile.compression.saved.bytes", compressionSavedBytes);
+        dedupHits = meterRegistry.counter("sharefile.dedup.hits");
+        dedupBytes = meterRegistry.counter("sharefile.dedup.hits.bytes");
+
+        refreshStats();
+    }
+
+    /**
+     * Registra un blob appena caricato. Se esiste già un blob con lo stesso checksum
+     * (anche caricato in parallelo) viene incrementato il suo refCount e restituito quello:
+     * in tal caso il chiamante deve eliminare lo storage appena scritto.
+     */
+    @Transactional
+    public BlobEntity registerUploaded(BlobEntity uploaded) {
+        UUID id = (UUID) entityManager.createNativeQuery(
+                        "INSERT INTO blobs (id, checksum_sha256, size_bytes, storage_path, encryption_key, " +
+                                "encryption_algorithm, encryption_iv, encryption_segment_size, compression_codec, stored_size_bytes, " +
+                                "kek_id, ref_count, created_at) " +
+                                "VALUES (?1, ?2, ?3, ?4, ?5, ?6, ?7, ?8, ?9, ?10, CAST(?11 AS uuid), 1, now()) " +
+                                "ON CONFLICT (checksum_sha256) DO UPDATE SET ref_count = blobs.ref_count + 1 " +
+                                "RETURNING id", UUID.class)
+                .setParameter(1, uploaded.getId())
+                .setParameter(2, uploaded.getChecksum())
+                .setParameter(3, uploaded.getSizeBytes())
+                .setParameter(4, uploaded.getStoragePath())
+                .setParameter(5, uploaded.getEncryptionKey())
+                .setParameter(6, uploaded.getEncryptionAlgorithm().getId())
+                .setParameter(7, uploaded.getEncryptionIv())
+                .setParameter(8, uploaded.getEncryptionSegmentSize())
+                .setParameter(9, uploaded.getCompressionCodec())
+                .setParameter(10, uploaded.getStoredSizeBytes())
+                // come testo: un UUID null non ha un tipo da cui Hibernate possa dedurre il binding
+                .setParameter(11, uploaded.getKek() != null ? uploaded.getKek().getId().toString() : null)
+                .getSingleResult();
+
+        if(!id.equals(uploaded.getId())){
+            recordDedupHit(uploaded.getSizeBytes());
+        }
+        return BlobEntity.findById(id);
+    }
+
+    /**
+     * Aggiunge un riferimento a un blob esistente. Fallisce se il blob sta per essere
+     * eliminato (refCount già a zero).
+     */
+    @Transactional
+    public BlobEntity acquire(BlobEntity blob) {
+        int updated = BlobEntity.update("refCount = refCount + 1 where id = ?1 and refCount > 0", blob.getId());
+        if(updated == 0){
+            throw new ApiException(
+                    String.format("Blob %s is no longer available", blob.getId()),
+                    Response.Status.CONFLICT,
+                    "LAM-409-006"
+            );
+        }
+        recordDedupHit(blob.getSizeBytes());
+        return blob;
+    }
+
+    /**
+     * Riferimento al blob con questo checksum, se esiste ed è ancora vivo; null altrimenti.
+     */
+    @Transactional
+    public BlobEntity acquireByChecksum(String checksum) {
+        BlobEntity blob = BlobEntity.findByChecksum(checksum);
+        if(blob == null){
+            return null;
+        }
+        int updated = BlobEntity.update("refCount = refCount + 1 where id = ?1 and refCount > 0", blob.getId());
+        if(updated == 0){
+            return null;
+        }
+        recordDedupHit(blob.getSizeBytes());
+        return blob;
+    }
+
+    /**
+     * Rilascia un riferimento. Se era l'ultimo la riga viene eliminata nella stessa
+     * transazione (solo se nel frattempo nessuno ha acquisito il blob) e lo storage
+     * viene cancellato dopo il commit.
+     */
+    @Transactional
+    public void release(BlobEntity blob) {
+        // i riferimenti appena rimossi devono arrivare al db prima del delete della riga
+        entityManager.flush();
+        BlobEntity.update("refCount = refCount - 1 where id = ?1 and refCount > 0", blob.getId());
+        long deleted = BlobEntity.delete("id = ?1 and refCount = 0", blob.getId());
+        if(deleted == 0){
+            return;
+        }
+        deleteStorageAfterCompletion(blob.getStoragePath(), true);
+        log.infof("blob %s released, storage %s scheduled for deletion", blob.getId(), blob.getStoragePath());
+    }
+
+    /**
+     * Storage reso superfluo dalla transazione corrente (copia di un contenuto già registrato):
+     * il blob su Azure viene eliminato solo dopo il commit.
+     */
+    public void deleteStorageOnCommit(String storagePath) {
+        deleteStorageAfterCompletion(storagePath, true);
+    }
+
+    private void deleteStorageAfterCompletion(String storagePath, boolean onCommit) {
+        transactionRegistry.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if((status == Status.STATUS_COMMITTED) != onCommit){
+                    return;
+                }
+                blobCacheService.evict(storagePath);
+                try{
+                    azureStorageService.delete(storagePath);
+                }catch(Exception e){
+                    log.errorf(e, "Unable to delete unreferenced blob %s", storagePath);
+                }
+            }
+        });
+    }
+
+    @Scheduled(every = "${sharefile.dedup.stats-interval:60s}", identity = "refresh-dedup-stats")
+    void refreshStats() {
+        Object[] totals = (Object[]) entityManager.createQuery(
+                        "select coalesce(sum(b.sizeBytes), 0), coalesce(sum(b.sizeBytes * b.refCount), 0) " +
+                                "from BlobEntity b where b.checksum is not null and b.refCount > 0")
+                .getSingleResult();
+        physicalBytes.set(((Number) totals[0]).longValue());
+        logicalBytes.set(((Number) totals[1]).longValue());
+
+        Number saved = (Number) entityManager.createQuery(
+                        "select coalesce(sum(b.sizeBytes - b.storedSizeBytes), 0) from BlobEntity b " +
+                                "where b.compressionCodec is not null and b.storedSizeBytes is not null")
+                .getSingleResult();
+        compressionSavedBytes.set(saved.longValue());
+    }
+
+    private void recordDedupHit(long sizeBytes) {
+        dedupHits.increment();
+        dedupBytes.increment(sizeBytes);
+    }
+
+    /**
+     * Riporta all'id canonico le varianti del nome dell'algoritmo scritte dalle versioni precedenti.
+     */
+    private void normalizeCipherSuites() {
+        QuarkusTransaction.requiringNew().run(() -> {
+            int updated = entityManager.createNativeQuery(
+                            "UPDATE blobs SET encryption_algorithm = ?1 WHERE encryption_algorithm IN ('AES-GCM-256', 'AES_256_GCM')")
+                    .setParameter(1, CipherSuite.AES_256_GCM.getId())
+                    .executeUpdate();
+            if(updated > 0){
+                log.infof("normalized cipher suite id of %d blobs", updated);
+            }
+        });
+    }
+
+    /**
+     * Migrazione dei file salvati prima dell'introduzione dei blob: storage path e chiave
+     * erano colonne di files. Crea un blob per ogni storage path e collega i file, poi rimuove
+     * il vincolo di unicità sul checksum di files (ora più file condividono lo stesso contenuto).
+     * Se il checksum ha già un blob (sotto un altro path) i file vengono collegati a quello,
+     * incrementandone il refCount, e la loro copia legacy viene eliminata dopo il commit.
+     */
+    private void migrateLegacyFiles() {
+        QuarkusTransaction.requiringNew().run(() -> {
+            entityManager.createNativeQuery(
+                    "DO $$ DECLARE c text; BEGIN " +
+                            "FOR c IN SELECT con.conname FROM pg_constraint con " +
+                            "JOIN pg_attribute att ON att.attrelid = con.conrelid AND att.attnum = ANY(con.conkey) " +
+                            "WHERE con.conrelid = 'files'::regclass AND con.contype = 'u' " +
+                            "AND att.attname = 'checksum_sha256' AND array_length(con.conkey, 1) = 1 LOOP " +
+                            "EXECUTE format('ALTER TABLE files DROP CONSTRAINT %I', c); " +
+                            "END LOOP; END $$").executeUpdate();
+
+            Number legacyColumns = (Number) entityManager.createNativeQuery(
+                            "SELECT count(*) FROM information_schema.columns " +
+                                    "WHERE table_name = 'files' AND column_name IN ('storage_path', 'encryption_key')")
+                    .getSingleResult();
+            if(legacyColumns.intValue() < 2){
+                return;
+            }
+
+            int created = entityManager.createNativeQuery(
+                    "INSERT INTO blobs (id, checksum_sha256, size_bytes, storage_path, encryption_key, " +
+                            "encryption_algorithm, encryption_iv, ref_count, created_at) " +
+                            "SELECT gen_random_uuid(), max(checksum_sha256), max(file_size), storage_path, max(encryption_key), " +
+                            "coalesce(max(encryption_algorithm), 'AES-256-GCM'), max(encryption_iv), count(*), min(created_at) " +
+                            "FROM files WHERE blob_id IS NULL AND storage_path IS NOT NULL AND encryption_key IS NOT NULL " +
+                            "AND is_deleted = false AND upload_status IN ('COMPLETED', 'DEDUPLICATED') " +
+                            "GROUP BY storage_path " +
+                            "ON CONFLICT DO NOTHING").executeUpdate();
+
+            int linked = entityManager.createNativeQuery(
+                    "UPDATE files f SET blob_id = b.id FROM blobs b " +
+                            "WHERE f.blob_id IS NULL AND f.storage_path = b.storage_path " +
+                            "AND f.is_deleted = false AND f.upload_status IN ('COMPLETED', 'DEDUPLICATED')").executeUpdate();
+
+            // una riga per file collegato: lo storage legacy, null se è anche lo storage di un blob
+            List<?> linkedByChecksum = entityManager.createNativeQuery(
+                    "WITH l AS (UPDATE files f SET blob_id = b.id FROM blobs b " +
+                            "WHERE f.blob_id IS NULL AND f.checksum_sha256 = b.checksum_sha256 AND b.ref_count > 0 " +
+                            "AND f.is_deleted = false AND f.upload_status IN ('COMPLETED', 'DEDUPLICATED') " +
+                            "RETURNING b.id AS blob_id, f.storage_path), " +
+                            "c AS (SELECT blob_id, count(*) AS n FROM l GROUP BY blob_id), " +
+                            "r AS (UPDATE blobs b SET ref_count = b.ref_count + c.n FROM c WHERE b.id = c.blob_id) " +
+                            "SELECT CASE WHEN EXISTS (SELECT 1 FROM blobs b WHERE b.storage_path = l.storage_path) " +
+                            "THEN NULL ELSE l.storage_path END FROM l", String.class)
+                    .getResultList();
+            linkedByChecksum.stream()
+                    .filter(Objects::nonNull)
+                    .distinct()
+                    .forEach(storagePath -> deleteStorageAfterCompletion((String) storagePath, true));
+
+            List<?> unlinked = entityManager.createNativeQuery(
+                    "SELECT CAST(id AS text) FROM files " +
+                            "WHERE blob_id IS NULL AND storage_path IS NOT NULL " +
+                            "AND is_deleted = false AND upload_status IN ('COMPLETED', 'DEDUPLICATED')", String.class)
+                    .getResultList();
+
+            if(created > 0 || linked > 0 || !linkedByChecksum.isEmpty()){
+                log.infof("Legacy files migrated: %d blobs created, %d files linked by storage path, %d by checksum",
+                        created, linked, linkedByChecksum.size());
+            }
+            if(!unlinked.isEmpty()){
+                log.warnf("%d legacy files could not be linked to a blob and cannot be downloaded: %s", unlinked.size(), unlinked);
+            }
+        });
+    }
+}
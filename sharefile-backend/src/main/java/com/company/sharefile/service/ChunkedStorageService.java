@@ -0,0 +1,385 @@
+package com.company.sharefile.service;
+
+import com.company.sharefile.entity.BlobEntity;
+import com.company.sharefile.entity.FileChunkEntity;
+import com.company.sharefile.entity.FileEntity;
+import com.company.sharefile.exception.ApiException;
+import com.company.sharefile.utils.ByteRange;
+import com.company.sharefile.utils.FastCdcChunker;
+import com.company.sharefile.utils.TransferThreads;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.transaction.Transactional;
+import jakarta.ws.rs.core.Response;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Storage a chunk con deduplicazione sub-file: lo stream viene spezzato con content-defined
+ * chunking e ogni chunk è un {@link BlobEntity} indirizzato dal suo SHA-256, quindi una nuova
+ * revisione di un file grande carica solo i chunk cambiati. Il file diventa un manifest
+ * ordinato di chunk ({@link FileChunkEntity}).
+ *
+ * Ogni chunk è compresso se conviene e cifrato con chiave propria nel formato a segmenti
+ * (un solo segmento).
+ */
+@ApplicationScoped
+public class ChunkedStorageService {
+    @Inject
+    Logger log;
+
+    @Inject
+    AzureStorageService azureStorageService;
+
+    @Inject
+    EncryptionService encryptionService;
+
+    @Inject
+    KeyService keyService;
+
+    @Inject
+    BlobService blobService;
+
+    @Inject
+    CompressionService compressionService;
+
+    @Inject
+    BlobCacheService blobCacheService;
+
+    @Inject
+    MeterRegistry meterRegistry;
+
+    @ConfigProperty(name = "sharefile.storage.chunked.enabled", defaultValue = "false")
+    boolean enabled;
+
+    // Sotto questa dimensione la dedup a chunk non vale il costo di un blob per chunk
+    @ConfigProperty(name = "sharefile.storage.chunked.min-file-size", defaultValue = "16777216")
+    long minFileSize;
+
+    @ConfigProperty(name = "sharefile.storage.chunked.min-chunk-size", defaultValue = "262144")
+    int minChunkSize;
+
+    @ConfigProperty(name = "sharefile.storage.chunked.avg-chunk-size", defaultValue = "1048576")
+    int averageChunkSize;
+
+    @ConfigProperty(name = "sharefile.storage.chunked.max-chunk-size", defaultValue = "4194304")
+    int maxChunkSize;
+
+    // Chunk cifrati e caricati in parallelo (memoria: concurrency * max-chunk-size)
+    @ConfigProperty(name = "sharefile.storage.chunked.concurrency", defaultValue = "4")
+    int concurrency;
+
+    @ConfigProperty(name = "quarkus.virtual-threads.enabled", defaultValue = "true")
+    boolean virtualThreads;
+
+    private ExecutorService transferExecutor;
+    private Counter newChunks;
+    private Counter dedupChunks;
+    private Counter newBytes;
+    private Counter dedupBytes;
+
+    void onStart(@Observes StartupEvent ev) {
+        transferExecutor = TransferThreads.fixedPool("chunk-transfer", concurrency, virtualThreads);
+        newChunks = meterRegistry.counter("sharefile.cdc.chunks", "result", "stored");
+        dedupChunks = meterRegistry.counter("sharefile.cdc.chunks", "result", "deduplicated");
+        newBytes = meterRegistry.counter("sharefile.cdc.bytes", "result", "stored");
+        dedupBytes = meterRegistry.counter("sharefile.cdc.bytes", "result", "deduplicated");
+        meterRegistry.gauge("sharefile.cdc.dedup.ratio", this, service -> {
+            double stored = service.newBytes.count();
+            return stored > 0 ? (stored + service.dedupBytes.count()) / stored : 1.0;
+        });
+    }
+
+    void onStop(@Observes ShutdownEvent ev) {
+        if(transferExecutor != null){
+            transferExecutor.shutdownNow();
+        }
+    }
+
+    public boolean shouldChunk(Long declaredSize) {
+        return enabled && declaredSize != null && declaredSize >= minFileSize;
+    }
+
+    /**
+     * Memoria massima di un upload a chunk: buffer del chunker più, per ogni upload in corso,
+     * chunk in chiaro e cifrato.
+     */
+    public long bufferBytes() {
+        return (long) maxChunkSize * (2L * concurrency + 1);
+    }
+
+    /**
+     * Spezza lo stream e carica su Azure i chunk non ancora presenti, senza transazione:
+     * qui non viene acquisito nessun riferimento. Il risultato va salvato con
+     * {@link #saveManifest(FileEntity, StoredChunks)} oppure scartato con
+     * {@link #discard(StoredChunks)}; se lo stream fallisce lo storage scritto viene eliminato subito.
+     */
+    public StoredChunks storeChunks(InputStream data, UUID userId, String mimeType) {
+        String codec = compressionService.codecFor(mimeType);
+        FastCdcChunker chunker = new FastCdcChunker(data, minChunkSize, averageChunkSize, maxChunkSize);
+        List<FileChunkEntity> manifest = new ArrayList<>();
+        List<BlobEntity> uploaded = new ArrayList<>();
+        Deque<Future<Void>> inFlight = new ArrayDeque<>();
+        long offset = 0;
+        try{
+            byte[] chunk;
+            while((chunk = chunker.next()) != null){
+                String checksum = sha256(chunk);
+                FileChunkEntity entry = FileChunkEntity.builder()
+                        .chunkIndex(manifest.size())
+                        .offsetBytes(offset)
+                        .sizeBytes((long) chunk.length)
+                        .build();
+                manifest.add(entry);
+                offset += chunk.length;
+
+                BlobEntity existing = QuarkusTransaction.joiningExisting().call(() -> BlobEntity.findByChecksum(checksum));
+                if(existing != null){
+                    entry.setBlob(existing);
+                    continue;
+                }
+
+                if(inFlight.size() >= concurrency){
+                    inFlight.removeFirst().get();
+                }
+                byte[] plain = chunk;
+                KeyService.DataKey dataKey = keyService.newDataKey(userId);
+                BlobEntity blob = BlobEntity.builder()
+                        .id(UUID.randomUUID())
+                        .checksum(checksum)
+                        .sizeBytes((long) chunk.length)
+                        .storagePath(String.format("chunks/%s/%s.enc", userId, UUID.randomUUID()))
+                        .encryptionKey(dataKey.wrappedKey())
+                        .kek(dataKey.kek())
+                        .encryptionIv(encryptionService.generateNoncePrefix())
+                        .encryptionAlgorithm(encryptionService.defaultSuite())
+                        .build();
+                entry.setBlob(blob);
+                uploaded.add(blob);
+                inFlight.addLast(transferExecutor.submit(() -> upload(blob, dataKey.key(), plain, codec)));
+            }
+            while(!inFlight.isEmpty()){
+                inFlight.removeFirst().get();
+            }
+            log.infof("stored %d chunks (%d bytes)", manifest.size(), offset);
+            return new StoredChunks(manifest, uploaded);
+        }catch(ApiException e){
+            awaitUploads(inFlight);
+            discard(new StoredChunks(manifest, uploaded));
+            throw e;
+        }catch(Exception e){
+            awaitUploads(inFlight);
+            discard(new StoredChunks(manifest, uploaded));
+            throw new ApiException(
+                    String.format("Error storing file chunks: %s", e.getMessage()),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-002"
+            );
+        }
+    }
+
+    /**
+     * Registra i chunk caricati, acquisisce un riferimento a quelli già presenti e associa il
+     * manifest al file (già persistito). Va chiamato nella transazione che salva il file:
+     * le copie rese superflue da un upload concorrente dello stesso contenuto vengono
+     * eliminate dopo il commit.
+     */
+    @Transactional
+    public void saveManifest(FileEntity file, StoredChunks stored) {
+        for(FileChunkEntity entry : stored.entries()){
+            BlobEntity blob = entry.getBlob();
+            BlobEntity referenced;
+            if(stored.uploaded().contains(blob)){
+                referenced = blobService.registerUploaded(blob);
+                if(referenced.getId().equals(blob.getId())){
+                    newChunks.increment();
+                    newBytes.increment(referenced.getSizeBytes());
+                }else{
+                    blobService.deleteStorageOnCommit(blob.getStoragePath());
+                    dedupChunks.increment();
+                    dedupBytes.increment(referenced.getSizeBytes());
+                }
+            }else{
+                referenced = blobService.acquire(blob);
+                dedupChunks.increment();
+                dedupBytes.increment(referenced.getSizeBytes());
+            }
+            FileChunkEntity.builder()
+                    .file(file)
+                    .chunkIndex(entry.getChunkIndex())
+                    .offsetBytes(entry.getOffsetBytes())
+                    .sizeBytes(entry.getSizeBytes())
+                    .blob(referenced)
+                    .build()
+                    .persist();
+        }
+    }
+
+    /**
+     * Elimina lo storage dei chunk caricati da {@link #storeChunks} e mai registrati
+     * (upload fallito prima o durante la transazione che salva il file).
+     */
+    public void discard(StoredChunks stored) {
+        for(BlobEntity blob : stored.uploaded()){
+            try{
+                azureStorageService.delete(blob.getStoragePath());
+            }catch(Exception e){
+                log.errorf(e, "Unable to delete orphan chunk %s", blob.getStoragePath());
+            }
+        }
+    }
+
+    /**
+     * Copia il manifest di un file esistente acquisendo un riferimento per ogni chunk.
+     */
+    @Transactional
+    public void copyManifest(FileEntity source, FileEntity target) {
+        for(FileChunkEntity entry : FileChunkEntity.findByFileOrdered(source.getId())){
+            FileChunkEntity.builder()
+                    .file(target)
+                    .chunkIndex(entry.getChunkIndex())
+                    .offsetBytes(entry.getOffsetBytes())
+                    .sizeBytes(entry.getSizeBytes())
+                    .blob(blobService.acquire(entry.getBlob()))
+                    .build()
+                    .persist();
+        }
+    }
+
+    /**
+     * Rimuove il manifest e rilascia i chunk: quelli non più referenziati vengono eliminati.
+     */
+    @Transactional
+    public void releaseChunks(FileEntity file) {
+        List<FileChunkEntity> manifest = FileChunkEntity.findByFileOrdered(file.getId());
+        FileChunkEntity.delete("file.id", file.getId());
+        for(FileChunkEntity entry : manifest){
+            blobService.release(entry.getBlob());
+        }
+    }
+
+    /**
+     * Manifest ordinato del file con i blob dei chunk già caricati: basta a ricomporlo
+     * anche fuori dalla transazione (e dalla sessione) che lo ha letto.
+     */
+    public List<FileChunkEntity> manifest(FileEntity file) {
+        return FileChunkEntity.findByFileOrdered(file.getId());
+    }
+
+    /**
+     * Ricompone il file in streaming: i chunk successivi vengono scaricati in parallelo
+     * mentre quello corrente viene decifrato e scritto.
+     */
+    public void writeTo(FileEntity file, OutputStream output) {
+        writeTo(file, manifest(file), output);
+    }
+
+    /**
+     * Come {@link #writeTo(FileEntity, OutputStream)} con un manifest letto in precedenza
+     * con {@link #manifest(FileEntity)}: non accede al database.
+     */
+    public void writeTo(FileEntity file, List<FileChunkEntity> manifest, OutputStream output) {
+        writeChunks(file, manifest, 0, Long.MAX_VALUE, output);
+    }
+
+    /**
+     * Come {@link #writeTo(FileEntity, OutputStream)} per un solo intervallo: vengono scaricati
+     * e decifrati solo i chunk che lo intersecano.
+     */
+    public void writeRange(FileEntity file, ByteRange range, OutputStream output) {
+        List<FileChunkEntity> manifest = FileChunkEntity.findByFileOrdered(file.getId()).stream()
+                .filter(entry -> entry.getOffsetBytes() <= range.end()
+                        && entry.getOffsetBytes() + entry.getSizeBytes() > range.start())
+                .toList();
+        writeChunks(file, manifest, range.start(), range.end() + 1, output);
+    }
+
+    // Scrive la parte [from, to) del file ricomposto dai chunk del manifest, in ordine
+    private void writeChunks(FileEntity file, List<FileChunkEntity> manifest, long from, long to, OutputStream output) {
+        Deque<Future<byte[]>> prefetch = new ArrayDeque<>();
+        int next = 0;
+        try{
+            for(FileChunkEntity entry : manifest){
+                while(next < manifest.size() && prefetch.size() < concurrency){
+                    BlobEntity chunkBlob = manifest.get(next++).getBlob();
+                    prefetch.addLast(transferExecutor.submit(() -> blobCacheService.downloadAsBytes(chunkBlob)));
+                }
+                BlobEntity blob = entry.getBlob();
+                byte[] encrypted = prefetch.removeFirst().get();
+                ByteArrayOutputStream decrypted = new ByteArrayOutputStream(blob.getEncryptionSegmentSize());
+                encryptionService.decryptSegments(blob.getEncryptionAlgorithm(), new ByteArrayInputStream(encrypted), keyService.dataKey(blob),
+                        blob.getEncryptionIv(), blob.getEncryptionSegmentSize(), decrypted);
+                byte[] plain = compressionService.decompress(decrypted.toByteArray(), blob.getCompressionCodec());
+                long offset = entry.getOffsetBytes();
+                int start = (int) Math.max(0, from - offset);
+                int end = (int) Math.min(plain.length, to - offset);
+                output.write(plain, start, end - start);
+            }
+        }catch(ApiException e){
+            prefetch.forEach(future -> future.cancel(true));
+            throw e;
+        }catch(Exception e){
+            prefetch.forEach(future -> future.cancel(true));
+            throw new ApiException(
+                    String.format("Error reading chunks of file %s: %s", file.getId(), e.getMessage()),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-004"
+            );
+        }
+    }
+
+    // I campi del blob scritti qui sono letti solo dopo Future.get() in storeChunks
+    private Void upload(BlobEntity blob, String key, byte[] plain, String codec) {
+        byte[] compressed = compressionService.compressIfSmaller(plain, codec);
+        byte[] stored = compressed != null ? compressed : plain;
+        blob.setCompressionCodec(compressed != null ? codec : null);
+        blob.setStoredSizeBytes((long) stored.length);
+        blob.setEncryptionSegmentSize(stored.length);
+        byte[] encrypted = encryptionService.encryptSegment(blob.getEncryptionAlgorithm(), stored, stored.length, key,
+                blob.getEncryptionIv(), 0, true);
+        azureStorageService.upload(blob.getStoragePath(), new ByteArrayInputStream(encrypted), (long) encrypted.length, null);
+        return null;
+    }
+
+    // Gli upload in corso devono terminare prima che il loro storage venga eliminato
+    private void awaitUploads(Deque<Future<Void>> inFlight) {
+        for(Future<Void> upload : inFlight){
+            try{
+                upload.get();
+            }catch(Exception e){
+                log.debugf("chunk upload failed: %s", e.getMessage());
+            }
+        }
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+
+    /**
+     * Manifest prodotto da {@link #storeChunks}: uploaded sono i blob scritti su Azure e non
+     * ancora registrati, gli altri chunk puntano a blob esistenti.
+     */
+    public record StoredChunks(List<FileChunkEntity> entries, List<BlobEntity> uploaded) {
+    }
+}
@@ -0,0 +1,207 @@
+package com.company.sharefile.service;
+
+import com.company.sharefile.exception.ApiException;
+import com.company.sharefile.utils.CompressingInputStream;
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.core.Response;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compressione prima della cifratura (dopo non è più possibile). Si applica solo ai mime type
+ * che non sono già compressi e solo se un campione iniziale del file si riduce abbastanza.
+ * Codec di default zstd; se la libreria nativa non è disponibile si usa deflate.
+ */
+@ApplicationScoped
+public class CompressionService {
+    public static final String ZSTD = "zstd";
+    public static final String DEFLATE = "deflate";
+
+    @Inject
+    Logger log;
+
+    @ConfigProperty(name = "sharefile.compression.enabled", defaultValue = "true")
+    boolean enabled;
+
+    @ConfigProperty(name = "sharefile.compression.codec", defaultValue = ZSTD)
+    String configuredCodec;
+
+    @ConfigProperty(name = "sharefile.compression.level", defaultValue = "3")
+    int level;
+
+    @ConfigProperty(name = "sharefile.compression.sample-size", defaultValue = "131072")
+    int sampleSize;
+
+    // Rapporto compresso/originale massimo sul campione per comprimere il file
+    @ConfigProperty(name = "sharefile.compression.max-ratio", defaultValue = "0.9")
+    double maxRatio;
+
+    // Formati già compressi: ricomprimerli costa CPU senza ridurre lo spazio
+    private static final List<String> INCOMPRESSIBLE_PREFIXES = List.of(
+            "image/jpeg", "image/png", "image/gif", "image/webp", "image/heic", "image/avif",
+            "video/", "audio/",
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-7z-compressed",
+            "application/x-rar-compressed", "application/vnd.rar", "application/x-bzip2", "application/x-xz",
+            "application/zstd", "application/pdf",
+            "application/vnd.openxmlformats-officedocument", "application/vnd.oasis.opendocument"
+    );
+
+    private String codec;
+
+    void onStart(@Observes StartupEvent ev) {
+        codec = configuredCodec;
+        if(ZSTD.equals(codec)){
+            try{
+                Zstd.compress(new byte[1]);
+            }catch(Throwable e){
+                log.warnf("zstd native library not available (%s), falling back to deflate", e.getMessage());
+                codec = DEFLATE;
+            }
+        }
+        log.infof("compression %s, codec %s", enabled ? "enabled" : "disabled", codec);
+    }
+
+    /**
+     * Codec da usare per un file con questo mime type, null se il file non va compresso.
+     */
+    public String codecFor(String mimeType) {
+        if(!enabled){
+            return null;
+        }
+        if(mimeType != null){
+            String normalized = mimeType.toLowerCase();
+            for(String prefix : INCOMPRESSIBLE_PREFIXES){
+                if(normalized.startsWith(prefix)){
+                    return null;
+                }
+            }
+        }
+        return codec;
+    }
+
+    /**
+     * Comprime lo stream se il mime type lo consente e il campione iniziale si riduce abbastanza.
+     * Il campione viene letto dalla sorgente e rimesso in testa allo stream restituito.
+     */
+    public CompressedStream compress(InputStream plain, String mimeType) {
+        String selected = codecFor(mimeType);
+        if(selected == null){
+            return new CompressedStream(null, plain);
+        }
+        try{
+            byte[] sample = plain.readNBytes(sampleSize);
+            InputStream full = new SequenceInputStream(new ByteArrayInputStream(sample), plain);
+            if(sample.length == 0 || compress(sample, selected).length > sample.length * maxRatio){
+                return new CompressedStream(null, full);
+            }
+            return new CompressedStream(selected, new CompressingInputStream(full, output -> compressor(selected, output)));
+        }catch(IOException e){
+            throw new ApiException(
+                    String.format("Error compressing data: %s", e.getMessage()),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-002"
+            );
+        }
+    }
+
+    /**
+     * Comprime un blocco in memoria; null se non si riduce abbastanza.
+     */
+    public byte[] compressIfSmaller(byte[] data, String selected) {
+        if(selected == null || data.length == 0){
+            return null;
+        }
+        try{
+            byte[] compressed = compress(data, selected);
+            return compressed.length <= data.length * maxRatio ? compressed : null;
+        }catch(IOException e){
+            log.warnf("compression failed, storing uncompressed: %s", e.getMessage());
+            return null;
+        }
+    }
+
+    public InputStream decompress(InputStream compressed, String selected) {
+        if(selected == null){
+            return compressed;
+        }
+        try{
+            return switch(selected){
+                case ZSTD -> new ZstdInputStream(compressed);
+                case DEFLATE -> new InflaterInputStream(compressed);
+                default -> throw new IOException("unknown codec " + selected);
+            };
+        }catch(IOException e){
+            throw new ApiException(
+                    String.format("Error decompressing data: %s", e.getMessage()),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-003"
+            );
+        }
+    }
+
+    public byte[] decompress(byte[] compressed, String selected) {
+        if(selected == null){
+            return compressed;
+        }
+        try(InputStream input = decompress(new ByteArrayInputStream(compressed), selected)){
+            return input.readAllBytes();
+        }catch(IOException e){
+            throw new ApiException(
+                    String.format("Error decompressing data: %s", e.getMessage()),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-003"
+            );
+        }
+    }
+
+    private byte[] compress(byte[] data, String selected) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2 + 64);
+        try(OutputStream compressor = compressor(selected, output)){
+            compressor.write(data);
+        }
+        return output.toByteArray();
+    }
+
+    private OutputStream compressor(String selected, OutputStream output) throws IOException {
+        return switch(selected){
+            case ZSTD -> new ZstdOutputStream(output, level);
+            case DEFLATE -> {
+                Deflater deflater = new Deflater(Math.max(1, Math.min(9, level)));
+                yield new DeflaterOutputStream(output, deflater, 64 * 1024) {
+                    @Override
+                    public void close() throws IOException {
+                        try{
+                            super.close();
+                        }finally{
+                            deflater.end();
+                        }
+                    }
+                };
+            }
+            default -> throw new IOException("unknown codec " + selected);
+        };
+    }
+
+    /**
+     * @param codec null se lo stream non è compresso
+     */
+    public record CompressedStream(String codec, InputStream stream) {
+    }
+}
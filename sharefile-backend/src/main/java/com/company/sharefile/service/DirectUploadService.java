@@ -0,0 +1,205 @@
+package com.company.sharefile.service;
+
+import com.company.sharefile.config.ValidationConstants;
+import com.company.sharefile.dto.v1.records.request.DirectUploadRequestDTO;
+import com.company.sharefile.dto.v1.records.response.DirectUploadResponseDTO;
+import com.company.sharefile.entity.DirectUploadEntity;
+import com.company.sharefile.entity.FileEntity;
+import com.company.sharefile.entity.UserEntity;
+import com.company.sharefile.exception.ApiException;
+import com.company.sharefile.utils.ChecksumVerifyingInputStream;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.transaction.Transactional;
+import jakarta.ws.rs.core.Response;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Upload diretti: il client carica il file su un blob di staging con un URL SAS di sola
+ * scrittura e a breve scadenza, senza passare dal backend. Il finalize rilegge lo staging
+ * dallo storage, ne verifica dimensione e checksum mentre lo cifra nel formato definitivo
+ * (stessa pipeline degli upload normali: compressione, chunking, deduplicazione) e crea il file.
+ */
+@ApplicationScoped
+public class DirectUploadService {
+    @Inject
+    Logger log;
+
+    @Inject
+    AzureStorageService azureStorageService;
+
+    @Inject
+    UserService userService;
+
+    @Inject
+    FileService fileService;
+
+    @Inject
+    QuotaService quotaService;
+
+    // Validità dell'URL SAS: il finalize è accettato fino alla stessa scadenza
+    @ConfigProperty(name = "sharefile.upload.direct.url-validity", defaultValue = "15M")
+    Duration urlValidity;
+
+    @Transactional
+    public DirectUploadResponseDTO createDirectUpload(DirectUploadRequestDTO request, String keycloakId) {
+        log.infof("creating direct upload for file %s, keycloakId %s", request.fileName(), keycloakId);
+
+        UserEntity user = userService.findByKeycloakId(keycloakId);
+        if(user == null){
+            throw new ApiException(
+                    String.format("user with keycloakId %s not found", keycloakId),
+                    Response.Status.NOT_FOUND,
+                    "LAM-404-003"
+            );
+        }
+
+        long fileSize = request.fileSize();
+        if(fileSize > ValidationConstants.MAX_UPLOAD_FILE_SIZE){
+            throw new ApiException(
+                    String.format("File %s exceeds the maximum allowed size of 500MB", request.fileName()),
+                    Response.Status.BAD_REQUEST,
+                    "LAM-400-003"
+            );
+        }
+
+        LocalDateTime expiresAt = LocalDateTime.now().plus(urlValidity);
+        // lo spazio è riservato prima di dare l'URL: senza quota il client non carica nulla
+        UUID reservationId = quotaService.reserveDurable(user, fileSize, expiresAt);
+        DirectUploadEntity upload = DirectUploadEntity.builder()
+                .user(user)
+                .stagingPath(String.format("%s/%s", user.getId(), UUID.randomUUID()))
+                .fileName(request.fileName().trim())
+                .mimeType(request.mimeType() != null ? request.mimeType() : ValidationConstants.DEFAULT_MIME_TYPE)
+                .fileSize(fileSize)
+                .checksum(request.checksum().toLowerCase())
+                .quotaReservationId(reservationId)
+                .expiresAt(expiresAt)
+                .build();
+        upload.persist();
+
+        String uploadUrl = azureStorageService.generateStagingUploadUrl(
+                upload.getStagingPath(), expiresAt.atZone(ZoneId.systemDefault()).toOffsetDateTime());
+        log.infof("direct upload %s created, expires at %s", upload.getId(), expiresAt);
+        return new DirectUploadResponseDTO(upload.getId(), uploadUrl, expiresAt);
+    }
+
+    /**
+     * Verifica e importa il blob di staging. Se il contenuto non corrisponde a quanto dichiarato
+     * lo staging viene eliminato e l'upload annullato; per gli altri errori l'upload resta
+     * finalizzabile fino alla scadenza.
+     */
+    public FileEntity finalizeDirectUpload(UUID uploadId, String keycloakId) {
+        DirectUploadEntity upload = DirectUploadEntity.find(
+                        "from DirectUploadEntity d join fetch d.user where d.id = ?1 and d.user.keycloakId = ?2",
+                        uploadId, keycloakId)
+                .firstResult();
+        if(upload == null){
+            throw new ApiException(
+                    String.format("Direct upload %s not found", uploadId),
+                    Response.Status.NOT_FOUND,
+                    "LAM-404-006"
+            );
+        }
+        if(upload.getExpiresAt().isBefore(LocalDateTime.now())){
+            throw new ApiException(
+                    String.format("Direct upload %s has expired", uploadId),
+                    Response.Status.GONE,
+                    "LAM-410-001"
+            );
+        }
+
+        Long stagedSize = azureStorageService.getStagingSize(upload.getStagingPath());
+        if(stagedSize == null){
+            throw new ApiException(
+                    String.format("Direct upload %s has not been uploaded yet", uploadId),
+                    Response.Status.CONFLICT,
+                    "LAM-409-007"
+            );
+        }
+        if(stagedSize.longValue() != upload.getFileSize()){
+            throw new ApiException(
+                    String.format("Direct upload %s size mismatch: expected %d bytes, found %d", uploadId, upload.getFileSize(), stagedSize),
+                    Response.Status.BAD_REQUEST,
+                    "LAM-400-010"
+            );
+        }
+
+        if(!QuarkusTransaction.requiringNew().call(() -> DirectUploadEntity.claim(uploadId))){
+            throw new ApiException(
+                    String.format("Direct upload %s is already being finalized", uploadId),
+                    Response.Status.CONFLICT,
+                    "LAM-409-004"
+            );
+        }
+
+        ChecksumVerifyingInputStream verified = null;
+        try(InputStream staged = azureStorageService.openStagingInputStream(upload.getStagingPath())){
+            verified = new ChecksumVerifyingInputStream(staged, upload.getChecksum(), upload.getFileSize());
+            FileEntity file = fileService.uploadFile(verified, upload.getFileName(), upload.getFileSize(), upload.getMimeType(), upload.getUser(),
+                    quotaService.resume(upload.getUser().getId(), upload.getQuotaReservationId(), upload.getFileSize()));
+            discard(upload);
+            log.infof("direct upload %s finalized: file %s", uploadId, file.getId());
+            return file;
+        }catch(Exception e){
+            // il verificatore può essere avvolto dall'SDK: l'esito della verifica fa fede
+            if(verified != null && verified.isMismatch()){
+                log.warnf("direct upload %s does not match the declared checksum, discarding", uploadId);
+                discard(upload);
+                throw new ApiException(
+                        String.format("Checksum mismatch for direct upload %s", uploadId),
+                        Response.Status.BAD_REQUEST,
+                        "LAM-400-010"
+                );
+            }
+            QuarkusTransaction.requiringNew().run(() -> DirectUploadEntity.unclaim(uploadId));
+            if(e instanceof ApiException apiException){
+                throw apiException;
+            }
+            throw new ApiException(
+                    String.format("Error finalizing direct upload %s: %s", uploadId, e.getMessage()),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-002"
+            );
+        }
+    }
+
+    /**
+     * Elimina gli upload diretti scaduti e mai finalizzati insieme al blob di staging.
+     * Quelli rimasti "in finalize" (processo interrotto) vengono rimossi dopo un giorno.
+     */
+    public int cleanupExpired() {
+        LocalDateTime now = LocalDateTime.now();
+        List<DirectUploadEntity> expired = DirectUploadEntity
+                .<DirectUploadEntity>find("expiresAt < ?1 and (finalizing = false or expiresAt < ?2)", now, now.minusDays(1))
+                .list();
+        int removed = 0;
+        for(DirectUploadEntity upload : expired){
+            try{
+                discard(upload);
+                removed++;
+            }catch(Exception e){
+                log.errorf(e, "Failed to cleanup direct upload: %s", upload.getId());
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Rimuove staging e upload; la prenotazione di quota, se non già confermata dal finalize, viene restituita.
+     */
+    private void discard(DirectUploadEntity upload) {
+        azureStorageService.deleteStaging(upload.getStagingPath());
+        QuarkusTransaction.requiringNew().run(() -> DirectUploadEntity.deleteById(upload.getId()));
+        quotaService.release(upload.getQuotaReservationId(), upload.getFileSize());
+    }
+}
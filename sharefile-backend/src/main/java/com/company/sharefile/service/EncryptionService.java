@@ -1,77 +1,157 @@
 package com.company.sharefile.service;
 
 import com.company.sharefile.exception.ApiException;
+import com.company.sharefile.utils.CipherSuite;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
 import jakarta.inject.Inject;
 import jakarta.validation.constraints.Size;
 import jakarta.ws.rs.core.Response;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.logging.Logger;
 
 import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
+import javax.crypto.CipherInputStream;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayDeque;
 import java.util.Base64;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @ApplicationScoped
 public class EncryptionService {
     @Inject
     Logger log;
 
-    private static final String ALGORITHM = "AES";
-    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
-    private static final int KEY_SIZE = 256;
+    // Dimensione dei segmenti in chiaro per i nuovi upload (formato STREAM)
+    @ConfigProperty(name = "sharefile.encryption.segment-size", defaultValue = "65536")
+    int segmentSize;
+
+    // Cipher inizializzati riusabili: Cipher.getInstance risolve il provider a ogni chiamata
+    @ConfigProperty(name = "sharefile.encryption.cipher-pool-size", defaultValue = "64")
+    int cipherPoolSize;
+
+    // Segmenti cifrati/decifrati in parallelo per stream (0 = numero di core)
+    @ConfigProperty(name = "sharefile.encryption.parallelism", defaultValue = "0")
+    int configuredParallelism;
+
+    // Suite per i nuovi blob: "auto" sceglie la più veloce su questa CPU all'avvio
+    @ConfigProperty(name = "sharefile.encryption.cipher-suite", defaultValue = "auto")
+    String configuredSuite;
+
+    // Pool e non ThreadLocal: con i virtual thread ogni richiesta ha un thread nuovo
+    private final Map<CipherSuite, CipherPool> ciphers = createPools();
+    private CipherSuite defaultSuite = CipherSuite.AES_256_GCM_STREAM;
+    private int parallelism = 1;
+    private ForkJoinPool segmentPool;
+
+    private static final int KEY_BYTES = 256 / 8;
     private static final int IV_SIZE = 12;
     private static final int TAG_SIZE = 128;
 
-    public String generateKey(){
-        try{
-            log.info("Generating encryption key...");
-            KeyGenerator keyGenerator = KeyGenerator.getInstance(ALGORITHM);
-            keyGenerator.init(KEY_SIZE, new SecureRandom());
-            SecretKey secretKey = keyGenerator.generateKey();
-
-            String encodedkey = Base64.getEncoder().encodeToString(secretKey.getEncoded());
-            log.info("Encryption key generated successfully.");
-            return encodedkey;
-        }catch(Exception e){
-            throw new ApiException(
-                    String.format("Error generating encryption key: %s", e.getMessage()),
-                    Response.Status.INTERNAL_SERVER_ERROR,
-                    "LAM-500-001"
-            );
+    // DRBG condiviso: NativePRNG legge /dev/urandom dentro un blocco synchronized a ogni
+    // chiamata, bloccando il carrier dei virtual thread; il DRBG accede al device solo al seed
+    private static final SecureRandom RANDOM = createRandom();
+
+    // Chiave usa e getta con cui vengono reinizializzati i cipher ChaCha20 prima di tornare nel pool
+    private static final SecretKey SCRUB_KEY = createScrubKey();
+
+    /**
+     * Formato a segmenti: ogni segmento è un messaggio AEAD indipendente con nonce
+     * = prefisso (7 byte) + indice segmento (4 byte) + flag ultimo segmento (1 byte),
+     * così i segmenti possono essere cifrati in qualsiasi ordine ma non riordinati o troncati.
+     * Tutti i segmenti tranne l'ultimo hanno la stessa dimensione, quindi il segmento N si
+     * trova a N * (segmentSize + tag) e può essere letto e decifrato da solo.
+     */
+    public static final int SEGMENT_TAG_BYTES = CipherSuite.TAG_BYTES;
+    private static final int NONCE_PREFIX_SIZE = 7;
+
+    void onStart(@Observes StartupEvent ev) {
+        parallelism = configuredParallelism > 0 ? configuredParallelism : Runtime.getRuntime().availableProcessors();
+        if(parallelism > 1){
+            // pool dedicato: i task sono solo CPU e non devono competere con il common pool
+            segmentPool = new ForkJoinPool(parallelism);
+        }
+        log.infof("segment encryption parallelism: %d", parallelism);
+        if("auto".equalsIgnoreCase(configuredSuite)){
+            defaultSuite = fastestSuite();
+        }else{
+            defaultSuite = CipherSuite.fromId(configuredSuite);
+            if(!defaultSuite.isSegmented()){
+                throw new IllegalStateException("sharefile.encryption.cipher-suite must be a segmented suite");
+            }
         }
+        log.infof("cipher suite for new uploads: %s", defaultSuite.getId());
     }
 
-    public InputStream encrypt(InputStream inputStream, String encodedKey) {
-        try{
-            log.info("Encrypting data...");
-
-            byte[] keyBytes = Base64.getDecoder().decode(encodedKey);
-            SecretKey secretKey = new SecretKeySpec(keyBytes, ALGORITHM);
+    void onStop(@Observes ShutdownEvent ev) {
+        if(segmentPool != null){
+            segmentPool.shutdownNow();
+        }
+    }
 
-            byte[] iv = new byte[IV_SIZE];
-            new SecureRandom().nextBytes(iv);
+    /**
+     * Memoria di uno stream a segmenti: la finestra elaborata in parallelo (in ingresso e in uscita),
+     * il segmento successivo letto in anticipo e quello in consegna al lettore.
+     */
+    public long streamBufferBytes(int segmentSize){
+        return (2L * parallelism + 2) * (segmentSize + SEGMENT_TAG_BYTES);
+    }
 
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-            GCMParameterSpec GCMspec = new GCMParameterSpec(TAG_SIZE, iv);
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey, GCMspec);
+    /**
+     * Suite con cui cifrare i nuovi blob.
+     */
+    public CipherSuite defaultSuite(){
+        return defaultSuite;
+    }
 
-            byte[] inputBytes = inputStream.readAllBytes();
-            byte[] encryptedBytes = cipher.doFinal(inputBytes);
+    public String generateKey(){
+        // KeyGenerator per AES restituisce byte casuali del generatore: lo usiamo direttamente
+        byte[] key = new byte[KEY_BYTES];
+        RANDOM.nextBytes(key);
+        return Base64.getEncoder().encodeToString(key);
+    }
 
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            output.write(iv);
-            output.write(encryptedBytes);
+    /**
+     * Cifra lo stream in modo incrementale: il risultato (IV + ciphertext + tag)
+     * viene prodotto man mano che viene letto, senza bufferizzare il file in memoria.
+     */
+    public InputStream encrypt(InputStream inputStream, String encodedKey) {
+        try{
+            byte[] iv = new byte[IV_SIZE];
+            RANDOM.nextBytes(iv);
 
-            log.info("Data encrypted successfully.");
-            return new ByteArrayInputStream(output.toByteArray());
+            // il cipher resta legato allo stream: non torna nel pool
+            Cipher cipher = borrowCipher(CipherSuite.AES_256_GCM);
+            cipher.init(Cipher.ENCRYPT_MODE, decodeKey(CipherSuite.AES_256_GCM, encodedKey), new GCMParameterSpec(TAG_SIZE, iv));
 
+            return new SequenceInputStream(
+                    new ByteArrayInputStream(iv),
+                    new CipherInputStream(inputStream, cipher)
+            );
 
         }catch(Exception e) {
             throw new ApiException(
@@ -82,28 +162,22 @@ public class EncryptionService {
         }
     }
 
+    /**
+     * Decifra in streaming il formato IV + ciphertext + tag. Il provider GCM del JDK
+     * rilascia il plaintext solo dopo aver verificato il tag, quindi il ciphertext
+     * viene comunque trattenuto internamente fino alla fine.
+     */
     public InputStream decrypt(InputStream input, String decodeKey){
         try {
-            log.info("Decrypting data...");
+            byte[] iv = input.readNBytes(IV_SIZE);
+            if(iv.length != IV_SIZE){
+                throw new IllegalStateException("encrypted data shorter than IV");
+            }
 
+            Cipher cipher = borrowCipher(CipherSuite.AES_256_GCM);
+            cipher.init(Cipher.DECRYPT_MODE, decodeKey(CipherSuite.AES_256_GCM, decodeKey), new GCMParameterSpec(TAG_SIZE, iv));
 
-            byte[] keyBytes = Base64.getDecoder().decode(decodeKey);
-            SecretKey secretKey = new SecretKeySpec(keyBytes, ALGORITHM);
-
-            byte[] allBytes = input.readAllBytes();
-            byte[] iv = new byte[IV_SIZE];
-            System.arraycopy(allBytes, 0, iv, 0, IV_SIZE);
-
-            byte[] encryptedBytes = new byte[allBytes.length - IV_SIZE];
-            System.arraycopy(allBytes, IV_SIZE, encryptedBytes, 0, encryptedBytes.length);
-
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-            GCMParameterSpec GCMspec = new GCMParameterSpec(TAG_SIZE, iv);
-            cipher.init(Cipher.DECRYPT_MODE, secretKey, GCMspec);
-
-            byte[] decryptedBytes = cipher.doFinal(encryptedBytes);
-            log.info("Data decrypted successfully.");
-            return new ByteArrayInputStream(decryptedBytes);
+            return new CipherInputStream(input, cipher);
         }catch(Exception e) {
             throw new ApiException(
                     String.format("Error decrypting data: %s", e.getMessage()),
@@ -116,29 +190,181 @@ public class EncryptionService {
 
     public byte[] decrypt(byte[] encryptedData, @Size(max = 512, message = "Encryption key must be less than 512 characters") String encryptionKey) {
         try{
-            log.infof("Decrypting data...");
-
-            byte[] keyBytes = Base64.getDecoder().decode(encryptionKey);
-            SecretKey secretKey = new SecretKeySpec(keyBytes, ALGORITHM);
+            Cipher cipher = borrowCipher(CipherSuite.AES_256_GCM);
+            cipher.init(Cipher.DECRYPT_MODE, decodeKey(CipherSuite.AES_256_GCM, encryptionKey), new GCMParameterSpec(TAG_SIZE, encryptedData, 0, IV_SIZE));
+            byte[] decryptedData = cipher.doFinal(encryptedData, IV_SIZE, encryptedData.length - IV_SIZE);
+            returnCipher(CipherSuite.AES_256_GCM, cipher);
+            return decryptedData;
+        }catch(Exception e){
+            throw new ApiException(
+                    String.format("Error decrypting data: %s", e.getMessage()),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-003"
+            );
+        }
+    }
 
+    /**
+     * Cifra una chiave (Base64) con una chiave di cifratura delle chiavi (KEK):
+     * il risultato è IV + chiave cifrata + tag, in Base64.
+     */
+    public String wrapKey(String encodedKey, String encodedKek){
+        try{
             byte[] iv = new byte[IV_SIZE];
-            System.arraycopy(encryptedData, 0, iv, 0, IV_SIZE);
+            RANDOM.nextBytes(iv);
+            Cipher cipher = borrowCipher(CipherSuite.AES_256_GCM);
+            cipher.init(Cipher.ENCRYPT_MODE, decodeKey(CipherSuite.AES_256_GCM, encodedKek), new GCMParameterSpec(TAG_SIZE, iv));
+            byte[] wrapped = ByteBuffer.allocate(IV_SIZE + KEY_BYTES + SEGMENT_TAG_BYTES)
+                    .put(iv)
+                    .put(cipher.doFinal(Base64.getDecoder().decode(encodedKey)))
+                    .array();
+            returnCipher(CipherSuite.AES_256_GCM, cipher);
+            return Base64.getEncoder().encodeToString(wrapped);
+        }catch(Exception e){
+            throw new ApiException(
+                    String.format("Error wrapping encryption key: %s", e.getMessage()),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-001"
+            );
+        }
+    }
 
-            byte[] ciphertext = new byte[encryptedData.length - IV_SIZE];
-            System.arraycopy(encryptedData, IV_SIZE, ciphertext, 0, ciphertext.length);
+    public String unwrapKey(String wrappedKey, String encodedKek){
+        return Base64.getEncoder().encodeToString(decrypt(Base64.getDecoder().decode(wrappedKey), encodedKek));
+    }
 
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-            GCMParameterSpec GCMspec = new GCMParameterSpec(TAG_SIZE, iv);
-            cipher.init(Cipher.DECRYPT_MODE, secretKey, GCMspec);
+    private static SecretKey createScrubKey(){
+        byte[] key = new byte[KEY_BYTES];
+        RANDOM.nextBytes(key);
+        return new SecretKeySpec(key, "ChaCha20");
+    }
 
-            byte[] decryptedData = cipher.doFinal(ciphertext);
+    private static SecureRandom createRandom(){
+        try{
+            return SecureRandom.getInstance("DRBG");
+        }catch(NoSuchAlgorithmException e){
+            return new SecureRandom();
+        }
+    }
 
-            log.infof("Decrypted successfully: %d bytes → %d bytes",
-                    encryptedData.length, decryptedData.length);
+    public int segmentSize(){
+        return segmentSize;
+    }
 
-            return decryptedData;
+    public static int segmentCount(long plainSize, int segmentSize){
+        // anche un file vuoto ha un segmento (solo tag)
+        return (int) Math.max(1, (plainSize + segmentSize - 1) / segmentSize);
+    }
+
+    public static long segmentOffset(int segmentIndex, int segmentSize){
+        return (long) segmentIndex * (segmentSize + SEGMENT_TAG_BYTES);
+    }
+
+    public static long encryptedSize(long plainSize, int segmentSize){
+        return plainSize + (long) segmentCount(plainSize, segmentSize) * SEGMENT_TAG_BYTES;
+    }
+
+    public String generateNoncePrefix(){
+        byte[] prefix = new byte[NONCE_PREFIX_SIZE];
+        RANDOM.nextBytes(prefix);
+        return Base64.getEncoder().encodeToString(prefix);
+    }
+
+    public byte[] encryptSegment(CipherSuite suite, byte[] plainSegment, int length, String encodedKey, String encodedNoncePrefix, int segmentIndex, boolean lastSegment){
+        try{
+            Cipher cipher = borrowCipher(suite);
+            cipher.init(Cipher.ENCRYPT_MODE, decodeKey(suite, encodedKey), segmentSpec(suite, decodePrefix(encodedNoncePrefix), segmentIndex, lastSegment));
+            byte[] encrypted = cipher.doFinal(plainSegment, 0, length);
+            returnCipher(suite, cipher);
+            return encrypted;
+        }catch(Exception e){
+            throw new ApiException(
+                    String.format("Error encrypting segment %d: %s", segmentIndex, e.getMessage()),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-002"
+            );
+        }
+    }
+
+    /**
+     * Decifra un singolo segmento letto a parte (accesso casuale): l'indice e il flag
+     * di ultimo segmento fanno parte del nonce, quindi un segmento spostato non si autentica.
+     */
+    public byte[] decryptSegment(CipherSuite suite, byte[] encryptedSegment, String encodedKey, String encodedNoncePrefix, int segmentIndex, boolean lastSegment){
+        try{
+            Cipher cipher = borrowCipher(suite);
+            cipher.init(Cipher.DECRYPT_MODE, decodeKey(suite, encodedKey), segmentSpec(suite, decodePrefix(encodedNoncePrefix), segmentIndex, lastSegment));
+            byte[] plain = cipher.doFinal(encryptedSegment);
+            returnCipher(suite, cipher);
+            return plain;
+        }catch(Exception e){
+            throw new ApiException(
+                    String.format("Error decrypting segment %d: %s", segmentIndex, e.getMessage()),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-003"
+            );
+        }
+    }
+
+    /**
+     * Cifra lo stream nel formato a segmenti man mano che viene letto: in memoria c'è al massimo
+     * una finestra di segmenti (vedi {@link #streamBufferBytes(int)}), indipendentemente
+     * dalla dimensione del file.
+     */
+    public InputStream encryptSegments(CipherSuite suite, InputStream plain, String encodedKey, String encodedNoncePrefix, int segmentSize){
+        try{
+            return new SegmentInputStream(suite, Cipher.ENCRYPT_MODE, plain, decodeKey(suite, encodedKey), decodePrefix(encodedNoncePrefix), segmentSize, 0, -1);
+        }catch(Exception e){
+            throw new ApiException(
+                    String.format("Error encrypting data: %s", e.getMessage()),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-002"
+            );
+        }
+    }
+
+    /**
+     * Decifra in streaming il formato a segmenti: ogni segmento è autenticato prima di essere
+     * restituito, con memoria costante (una finestra di segmenti).
+     */
+    public InputStream decryptSegments(CipherSuite suite, InputStream encrypted, String encodedKey, String encodedNoncePrefix, int segmentSize){
+        try{
+            return new SegmentInputStream(suite, Cipher.DECRYPT_MODE, encrypted, decodeKey(suite, encodedKey), decodePrefix(encodedNoncePrefix), segmentSize + SEGMENT_TAG_BYTES, 0, -1);
+        }catch(Exception e){
+            throw new ApiException(
+                    String.format("Error decrypting data: %s", e.getMessage()),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-003"
+            );
+        }
+    }
 
+    /**
+     * Decifra una parte del blob letta a intervallo, a partire dal segmento firstSegment.
+     * Serve il numero totale di segmenti: il flag di ultimo segmento va dedotto dal blob
+     * intero, non dalla fine dell'intervallo.
+     */
+    public InputStream decryptSegments(CipherSuite suite, InputStream encrypted, String encodedKey, String encodedNoncePrefix, int segmentSize, int firstSegment, int segmentCount){
+        try{
+            return new SegmentInputStream(suite, Cipher.DECRYPT_MODE, encrypted, decodeKey(suite, encodedKey), decodePrefix(encodedNoncePrefix),
+                    segmentSize + SEGMENT_TAG_BYTES, firstSegment, segmentCount);
+        }catch(Exception e){
+            throw new ApiException(
+                    String.format("Error decrypting data: %s", e.getMessage()),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-003"
+            );
+        }
+    }
 
+    /**
+     * Come {@link #decryptSegments(CipherSuite, InputStream, String, String, int)} scrivendo il plaintext su output.
+     */
+    public void decryptSegments(CipherSuite suite, InputStream encrypted, String encodedKey, String encodedNoncePrefix, int segmentSize, OutputStream output){
+        try(InputStream plain = decryptSegments(suite, encrypted, encodedKey, encodedNoncePrefix, segmentSize)){
+            plain.transferTo(output);
+        }catch(ApiException e){
+            throw e;
         }catch(Exception e){
             throw new ApiException(
                     String.format("Error decrypting data: %s", e.getMessage()),
@@ -147,4 +373,249 @@ public class EncryptionService {
             );
         }
     }
+
+    // le chiavi in chiaro non vengono trattenute qui: la cache delle DEK è in KeyService, con TTL e revoca
+    private static SecretKey decodeKey(CipherSuite suite, String encodedKey){
+        // il provider ChaCha20 rifiuta chiavi dichiarate AES
+        return new SecretKeySpec(Base64.getDecoder().decode(encodedKey), suite.getKeyAlgorithm());
+    }
+
+    private static byte[] decodePrefix(String encodedNoncePrefix){
+        return Base64.getDecoder().decode(encodedNoncePrefix);
+    }
+
+    private Map<CipherSuite, CipherPool> createPools(){
+        Map<CipherSuite, CipherPool> pools = new EnumMap<>(CipherSuite.class);
+        for(CipherSuite suite : CipherSuite.values()){
+            pools.put(suite, new CipherPool(suite));
+        }
+        return pools;
+    }
+
+    private Cipher borrowCipher(CipherSuite suite) throws GeneralSecurityException {
+        return ciphers.get(suite).borrow();
+    }
+
+    /**
+     * Rimette nel pool un cipher che ha completato doFinal: dopo un errore lo si scarta,
+     * GCM e ChaCha20-Poly1305 rifiutano di ripartire con lo stesso nonce.
+     */
+    private void returnCipher(CipherSuite suite, Cipher cipher){
+        ciphers.get(suite).release(cipher);
+    }
+
+    private static AlgorithmParameterSpec segmentSpec(CipherSuite suite, byte[] noncePrefix, int segmentIndex, boolean lastSegment){
+        byte[] nonce = ByteBuffer.allocate(IV_SIZE)
+                .put(noncePrefix)
+                .putInt(segmentIndex)
+                .put((byte) (lastSegment ? 1 : 0))
+                .array();
+        return suite.parameterSpec(nonce);
+    }
+
+    /**
+     * Micro-benchmark all'avvio: cifra qualche MB a segmenti con ogni suite e sceglie la più
+     * veloce (AES-GCM con AES-NI/CLMUL, ChaCha20-Poly1305 sulle CPU che ne sono prive).
+     */
+    private CipherSuite fastestSuite(){
+        byte[] segment = new byte[segmentSize];
+        RANDOM.nextBytes(segment);
+        String key = generateKey();
+        String prefix = generateNoncePrefix();
+        CipherSuite fastest = CipherSuite.AES_256_GCM_STREAM;
+        long best = Long.MAX_VALUE;
+        for(CipherSuite suite : CipherSuite.values()){
+            if(!suite.isSegmented()){
+                continue;
+            }
+            try{
+                // riscaldamento per far compilare al JIT gli intrinsic, poi il migliore di tre giri
+                int index = 0;
+                for(int i = 0; i < 256; i++){
+                    encryptSegment(suite, segment, segment.length, key, prefix, index++, false);
+                }
+                long elapsed = Long.MAX_VALUE;
+                for(int round = 0; round < 3; round++){
+                    long started = System.nanoTime();
+                    for(int i = 0; i < 128; i++){
+                        encryptSegment(suite, segment, segment.length, key, prefix, index++, false);
+                    }
+                    elapsed = Math.min(elapsed, System.nanoTime() - started);
+                }
+                log.debugf("cipher suite %s: %d MB/s", suite.getId(), 128L * segment.length * 1000 / Math.max(1, elapsed));
+                if(elapsed < best){
+                    best = elapsed;
+                    fastest = suite;
+                }
+            }catch(Exception e){
+                log.warnf("cipher suite %s not available: %s", suite.getId(), e.getMessage());
+            }
+        }
+        return fastest;
+    }
+
+    private final class CipherPool {
+        private final CipherSuite suite;
+        private final Queue<Cipher> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        CipherPool(CipherSuite suite) {
+            this.suite = suite;
+        }
+
+        Cipher borrow() throws GeneralSecurityException {
+            Cipher cipher = idle.poll();
+            if(cipher != null){
+                size.decrementAndGet();
+                return cipher;
+            }
+            return Cipher.getInstance(suite.getTransformation());
+        }
+
+        void release(Cipher cipher) {
+            if(suite.getKeyAlgorithm().equals("ChaCha20")){
+                // ChaCha20-Poly1305 rifiuta anche in decifratura la coppia chiave/nonce dell'ultimo
+                // init: due download dello stesso blob si scambierebbero il cipher e fallirebbero
+                try{
+                    byte[] nonce = new byte[IV_SIZE];
+                    RANDOM.nextBytes(nonce);
+                    cipher.init(Cipher.ENCRYPT_MODE, SCRUB_KEY, suite.parameterSpec(nonce));
+                }catch(GeneralSecurityException e){
+                    return;
+                }
+            }
+            if(size.incrementAndGet() <= cipherPoolSize){
+                idle.offer(cipher);
+            }else{
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Cifra o decifra uno stream a segmenti. I segmenti sono messaggi AEAD indipendenti, quindi
+     * fino a {@code window} segmenti vengono elaborati in parallelo sul pool di cifratura mentre
+     * lo stream sottostante viene letto; l'output resta nell'ordine originale.
+     * Con parallelismo 1 i segmenti vengono elaborati nel thread che legge.
+     */
+    private final class SegmentInputStream extends InputStream {
+        private final CipherSuite suite;
+        private final int mode;
+        private final InputStream in;
+        private final SecretKey key;
+        private final byte[] noncePrefix;
+        private final int inputSegmentSize;
+        private final int segmentCount;
+        private final Deque<Future<byte[]>> window = new ArrayDeque<>();
+        private byte[] lookahead;
+        private boolean lastRead;
+        private int segmentIndex;
+        private byte[] out = new byte[0];
+        private int position;
+
+        /**
+         * @param segmentCount segmenti totali del blob, -1 se lo stream arriva fino alla fine
+         *                     (l'ultimo segmento si riconosce dalla fine dello stream)
+         */
+        SegmentInputStream(CipherSuite suite, int mode, InputStream in, SecretKey key, byte[] noncePrefix,
+                           int inputSegmentSize, int firstSegment, int segmentCount) {
+            this.suite = suite;
+            this.mode = mode;
+            this.in = in;
+            this.key = key;
+            this.noncePrefix = noncePrefix;
+            this.inputSegmentSize = inputSegmentSize;
+            this.segmentIndex = firstSegment;
+            this.segmentCount = segmentCount;
+        }
+
+        /**
+         * Legge i segmenti successivi finché la finestra non è piena. Serve sempre il segmento
+         * dopo per sapere se quello corrente è l'ultimo (fa parte del nonce).
+         */
+        private void schedule() throws IOException {
+            while(!lastRead && window.size() < parallelism){
+                byte[] current = lookahead != null ? lookahead : in.readNBytes(inputSegmentSize);
+                lookahead = current.length == inputSegmentSize ? in.readNBytes(inputSegmentSize) : null;
+                boolean endOfStream = lookahead == null || lookahead.length == 0;
+                int index = segmentIndex++;
+                boolean lastSegment = segmentCount < 0 ? endOfStream : index == segmentCount - 1;
+                lastRead = endOfStream;
+                if(current.length == 0 && segmentCount >= 0){
+                    break;
+                }
+                if(parallelism > 1){
+                    window.addLast(segmentPool.submit(() -> process(current, index, lastSegment)));
+                    continue;
+                }
+                try{
+                    window.addLast(CompletableFuture.completedFuture(process(current, index, lastSegment)));
+                }catch(GeneralSecurityException e){
+                    window.addLast(CompletableFuture.failedFuture(e));
+                }
+            }
+        }
+
+        private byte[] process(byte[] segment, int index, boolean lastSegment) throws GeneralSecurityException {
+            // un segmento troncato, spostato o mancante non si autentica: doFinal fallisce
+            Cipher cipher = borrowCipher(suite);
+            cipher.init(mode, key, segmentSpec(suite, noncePrefix, index, lastSegment));
+            byte[] result = cipher.doFinal(segment);
+            returnCipher(suite, cipher);
+            return result;
+        }
+
+        private boolean fill() throws IOException {
+            while(position == out.length){
+                schedule();
+                Future<byte[]> next = window.pollFirst();
+                if(next == null){
+                    return false;
+                }
+                try{
+                    out = next.get();
+                    position = 0;
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while processing segments");
+                }catch(ExecutionException e){
+                    throw new IOException(e.getCause().getMessage(), e.getCause());
+                }catch(Exception e){
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? out[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0){
+                return 0;
+            }
+            if(!fill()){
+                return -1;
+            }
+            int n = Math.min(len, out.length - position);
+            System.arraycopy(out, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return out.length - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            window.forEach(future -> future.cancel(false));
+            window.clear();
+            in.close();
+        }
+    }
 }
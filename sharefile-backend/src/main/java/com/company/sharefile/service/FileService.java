@@ -1,26 +1,62 @@
 package com.company.sharefile.service;
 
+import com.company.sharefile.config.ValidationConstants;
+import com.company.sharefile.dto.v1.records.request.UploadPrecheckRequestDTO;
 import com.company.sharefile.dto.v1.records.response.FileDataResponseDTO;
+import com.company.sharefile.dto.v1.records.response.PartialContentDTO;
+import com.company.sharefile.dto.v1.records.response.UploadPrecheckResponseDTO;
+import com.company.sharefile.entity.BlobEntity;
+import com.company.sharefile.entity.FileChunkEntity;
 import com.company.sharefile.entity.FileEntity;
 import com.company.sharefile.entity.UserEntity;
 import com.company.sharefile.exception.ApiException;
+import com.company.sharefile.exception.ServiceUnavailableException;
+import com.company.sharefile.utils.ByteRange;
+import com.company.sharefile.utils.CipherSuite;
+import com.company.sharefile.utils.ContentValidators;
+import com.company.sharefile.utils.CountingInputStream;
+import com.company.sharefile.utils.PartialFingerprint;
+import com.company.sharefile.utils.ReleasableOutput;
+import com.company.sharefile.utils.SpoolBuffer;
+import com.company.sharefile.utils.StorageMode;
+import com.company.sharefile.utils.TransferThreads;
 import com.company.sharefile.utils.UploadStatus;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
 import jakarta.inject.Inject;
 import jakarta.transaction.Transactional;
 import jakarta.validation.constraints.NotBlank;
+import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.Hibernate;
 import org.jboss.logging.Logger;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -38,6 +74,58 @@ public class FileService {
     @Inject
     EncryptionService encryptionService;
 
+    @Inject
+    KeyService keyService;
+
+    @Inject
+    BlobService blobService;
+
+    @Inject
+    ChunkedStorageService chunkedStorageService;
+
+    @Inject
+    BlobCacheService blobCacheService;
+
+    @Inject
+    CompressionService compressionService;
+
+    @Inject
+    TransferBudgetService transferBudgetService;
+
+    @Inject
+    SpoolService spoolService;
+
+    @Inject
+    VirusScanService virusScanService;
+
+    @Inject
+    QuotaService quotaService;
+
+    // File letti e decifrati in anticipo mentre si scrive lo zip (per download)
+    @ConfigProperty(name = "sharefile.download.zip.prefetch", defaultValue = "2")
+    int zipPrefetch;
+
+    // Thread condivisi da tutti gli zip in corso
+    @ConfigProperty(name = "sharefile.download.zip.threads", defaultValue = "8")
+    int zipThreads;
+
+    @ConfigProperty(name = "quarkus.virtual-threads.enabled", defaultValue = "true")
+    boolean virtualThreads;
+
+    private ExecutorService zipExecutor;
+
+    private static final List<UploadStatus> USABLE_STATUSES = List.of(UploadStatus.COMPLETED, UploadStatus.DEDUPLICATED);
+
+    void onStart(@Observes StartupEvent ev) {
+        zipExecutor = TransferThreads.fixedPool("zip-prefetch", zipThreads, virtualThreads);
+    }
+
+    void onStop(@Observes ShutdownEvent ev) {
+        if(zipExecutor != null){
+            zipExecutor.shutdownNow();
+        }
+    }
+
     public String getFileName(FileEntity file){
         String originalFileName = file.getFileName();
         String mimeType = file.getMimeType();
@@ -48,18 +136,13 @@ public class FileService {
         return originalFileName;
     }
 
-    private String calcolateChecksum(byte[] fileBytes){
+    private String calcolateChecksum(MessageDigest digest){
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private MessageDigest newChecksumDigest(){
         try{
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hashBytes = digest.digest(fileBytes);
-
-            StringBuilder hexString = new StringBuilder();
-            for(byte b : hashBytes){
-                String hex =Integer.toHexString(0xff & b);
-                if(hex.length() == 1) hexString.append('0');
-                hexString.append(hex);
-            }
-            return hexString.toString();
+            return MessageDigest.getInstance("SHA-256");
         }catch (Exception e){
             throw new ApiException(
                     String.format("Error calculating checksum: %s", e.getMessage()),
@@ -69,86 +152,181 @@ public class FileService {
         }
     }
 
-    @Transactional
-    public FileEntity uploadFile(InputStream fileData, String fileName, Long fileSize, String mimeType, String keycloakId){
-        try{
-            log.infof("uploading file %s for keycloakId %s", fileName, keycloakId);
-
-            UserEntity user = userService.findByKeycloakId(keycloakId);
-            if(user == null){
-                throw new ApiException(
-                        String.format("user with keycloakId %s not found", keycloakId),
-                        Response.Status.NOT_FOUND,
-                        "LAM-404-003"
-                );
-            }
-
-            if(!userService.hasAvailableQuota(keycloakId, fileSize)){
-                throw new ApiException(
-                        String.format("Insufficient storage quota. Required: %d bytes", fileSize),
-                        Response.Status.BAD_REQUEST,
-                        "FILE-400-001"
-                );
-            }
+    /**
+     * Upload in un solo passaggio: lo stream ricevuto viene contato, hashato (SHA-256),
+     * cifrato e caricato su Azure mentre viene letto, con buffer di dimensione fissa.
+     * Nessuna transazione resta aperta durante l'upload verso Azure: blob e file vengono
+     * salvati alla fine in una transazione breve. Il checksum è noto solo a fine upload:
+     * se il contenuto esiste già il blob appena scritto viene eliminato e si crea un
+     * riferimento duplicato.
+     *
+     * @param declaredSize dimensione dichiarata dal client (Content-Length), può essere null
+     */
+    public FileEntity uploadFile(InputStream fileData, String fileName, Long declaredSize, String mimeType, String keycloakId){
+        log.infof("uploading file %s for keycloakId %s", fileName, keycloakId);
+
+        UserEntity user = userService.findByKeycloakId(keycloakId);
+        if(user == null){
+            throw new ApiException(
+                    String.format("user with keycloakId %s not found", keycloakId),
+                    Response.Status.NOT_FOUND,
+                    "LAM-404-003"
+            );
+        }
 
-            log.debugf("calculating checksum for file %s", fileName);
-            byte[] fileBytes = fileData.readAllBytes();
-            String checksum = calcolateChecksum(fileBytes);
-            log.debugf("checksum %s", checksum);
+        return uploadFile(fileData, fileName, declaredSize, mimeType, user, true);
+    }
 
-            FileEntity existingFile = FileEntity.find("checksum = ?1 and isDeleted = false", checksum)
-                    .firstResult();
+    /**
+     * Come {@link #uploadFile(InputStream, String, Long, String, String)} per un utente già caricato.
+     *
+     * @param accountStorage false se lo spazio è già stato riservato dal chiamante (upload batch);
+     *                       altrimenti declaredSize viene riservato prima dell'upload e confermato alla fine
+     */
+    public FileEntity uploadFile(InputStream fileData, String fileName, Long declaredSize, String mimeType, UserEntity user, boolean accountStorage){
+        try(QuotaService.Reservation reservation = accountStorage
+                    ? quotaService.reserve(user, declaredSize != null ? declaredSize : 0)
+                    : null){
+            return uploadFile(fileData, fileName, declaredSize, mimeType, user, reservation);
+        }
+    }
 
-            if(existingFile != null){
-                log.infof("file %s already exists. creating duplicate reference", fileName);
-                return virtualDuplication(existingFile, fileName, user);
+    /**
+     * Upload con una prenotazione già presa dal chiamante (upload diretti), confermata nella
+     * transazione del file; null se lo spazio è contabilizzato dal chiamante. Chiuderla resta
+     * compito del chiamante.
+     */
+    public FileEntity uploadFile(InputStream fileData, String fileName, Long declaredSize, String mimeType, UserEntity user,
+                                 QuotaService.Reservation reservation){
+        String keycloakId = user.getKeycloakId();
+        String storagePath = null;
+        ChunkedStorageService.StoredChunks chunks = null;
+        long bufferBytes = chunkedStorageService.shouldChunk(declaredSize)
+                ? chunkedStorageService.bufferBytes()
+                : azureStorageService.uploadBufferBytes(declaredSize) + encryptionService.streamBufferBytes(encryptionService.segmentSize());
+        try(TransferBudgetService.Lease lease = transferBudgetService.acquire(bufferBytes, "upload")){
+            CountingInputStream countingStream = new CountingInputStream(fileData, ValidationConstants.MAX_UPLOAD_FILE_SIZE);
+            MessageDigest digest = newChecksumDigest();
+            PartialFingerprint fingerprint = new PartialFingerprint();
+            InputStream hashingStream = fingerprint.observe(new DigestInputStream(countingStream, digest));
+
+            if(chunkedStorageService.shouldChunk(declaredSize)){
+                log.debugf("storing file %s as content-defined chunks", fileName);
+                chunks = chunkedStorageService.storeChunks(hashingStream, user.getId(), mimeType);
+                ChunkedStorageService.StoredChunks stored = chunks;
+                FileEntity newFile = FileEntity.builder()
+                        .fileName(fileName)
+                        .fileSize(countingStream.getCount())
+                        .mimeType(mimeType)
+                        .checksum(calcolateChecksum(digest))
+                        .partialFingerprint(fingerprint.finish())
+                        .storageMode(StorageMode.CHUNKED)
+                        .isEncrypted(true)
+                        .uploadStatus(UploadStatus.COMPLETED)
+                        .uploadedAt(LocalDateTime.now())
+                        .createdBy(user)
+                        .isVirusScanned(false)
+                        .isDeleted(false)
+                        .build();
+                QuarkusTransaction.requiringNew().run(() -> {
+                    newFile.persist();
+                    chunkedStorageService.saveManifest(newFile, stored);
+                    virusScanService.enqueue(newFile);
+                    if(reservation != null){
+                        quotaService.commit(reservation, newFile.getFileSize());
+                    }
+                });
+                log.infof("file %s uploaded successfully in %d chunks", fileName, stored.entries().size());
+                return newFile;
             }
 
             log.debugf("create encryption key for file %s", fileName);
-            String encryptionKey = encryptionService.generateKey();
+            KeyService.DataKey dataKey = keyService.newDataKey(user);
+            CipherSuite suite = encryptionService.defaultSuite();
+            String noncePrefix = encryptionService.generateNoncePrefix();
+            int segmentSize = encryptionService.segmentSize();
+            CompressionService.CompressedStream compressed = compressionService.compress(hashingStream, mimeType);
+            CountingInputStream storedStream = new CountingInputStream(compressed.stream(), Long.MAX_VALUE);
+            InputStream encryptedStream = encryptionService.encryptSegments(suite, storedStream, dataKey.key(), noncePrefix, segmentSize);
 
-            log.debugf("encrypting file %s", fileName);
-            InputStream fileStream =new ByteArrayInputStream(fileBytes);
-            InputStream encryptedStream = encryptionService.encrypt(fileStream, encryptionKey);
-
-            log.debugf("uploading encrypted file %s to Azure Storage", fileName);
             Map<String, String> metadata = new HashMap<>();
             metadata.put("originalFileName", fileName);
-            metadata.put("checksum", checksum);
             metadata.put("uploadedBy", keycloakId);
 
-            String storagePath = generateStoragePath(user.getId(), fileName);
+            storagePath = generateStoragePath(user.getId());
+            log.debugf("streaming encrypted file %s to Azure Storage", fileName);
+            azureStorageService.upload(storagePath, encryptedStream, declaredSize, metadata);
+
+            long fileSize = countingStream.getCount();
+            String checksum = calcolateChecksum(digest);
+            log.debugf("checksum %s, size %d bytes", checksum, fileSize);
 
-            byte[] encryptedBytes = encryptedStream.readAllBytes();
-            InputStream uploadStream = new ByteArrayInputStream(encryptedBytes);
-            azureStorageService.upload(storagePath,uploadStream,(long) encryptedBytes.length,metadata);
+            metadata.put("checksum", checksum);
+            azureStorageService.setMetadata(storagePath, metadata);
 
-            log.debugf("creating file record in database for file %s", fileName);
-            FileEntity newFile = FileEntity.builder()
-                    .fileName(fileName)
-                    .fileSize(fileSize)
-                    .mimeType(mimeType)
+            BlobEntity uploaded = BlobEntity.builder()
+                    .id(UUID.randomUUID())
                     .checksum(checksum)
+                    .sizeBytes(fileSize)
                     .storagePath(storagePath)
-                    .encryptionKey(encryptionKey)
-                    .isEncrypted(true)
-                    .encryptionAlgorithm("AES-GCM-256")
-                    .uploadStatus(UploadStatus.COMPLETED)
-                    .uploadedAt(LocalDateTime.now())
-                    .createdBy(user)
-                    .isVirusScanned(false)
-                    .isDeleted(false)
+                    .encryptionKey(dataKey.wrappedKey())
+                    .kek(dataKey.kek())
+                    .encryptionAlgorithm(suite)
+                    .encryptionIv(noncePrefix)
+                    .encryptionSegmentSize(segmentSize)
+                    .compressionCodec(compressed.codec())
+                    .storedSizeBytes(storedStream.getCount())
                     .build();
-
-            newFile.persist();
-
-            log.debug("incrementing user storage used");
-            userService.incrementStorageUsed(keycloakId, fileSize);
+            String partialFingerprint = fingerprint.finish();
+
+            // se la transazione fallisce lo storage appena scritto viene eliminato nel catch
+            FileEntity newFile = QuarkusTransaction.requiringNew().call(() -> {
+                BlobEntity blob = blobService.registerUploaded(uploaded);
+                boolean deduplicated = !blob.getId().equals(uploaded.getId());
+                if(deduplicated){
+                    log.infof("file %s already exists. creating duplicate reference", fileName);
+                    blobService.deleteStorageOnCommit(uploaded.getStoragePath());
+                }
+
+                log.debugf("creating file record in database for file %s", fileName);
+                FileEntity file = FileEntity.builder()
+                        .fileName(fileName)
+                        .fileSize(fileSize)
+                        .mimeType(mimeType)
+                        .checksum(checksum)
+                        .partialFingerprint(partialFingerprint)
+                        .blob(blob)
+                        .storageMode(StorageMode.BLOB)
+                        .isEncrypted(true)
+                        .uploadStatus(deduplicated ? UploadStatus.DEDUPLICATED : UploadStatus.COMPLETED)
+                        .uploadedAt(LocalDateTime.now())
+                        .createdBy(user)
+                        .isVirusScanned(false)
+                        .isDeleted(false)
+                        .build();
+
+                file.persist();
+                virusScanService.enqueue(file);
+
+                if(reservation != null){
+                    log.debug("committing user storage reservation");
+                    quotaService.commit(reservation, fileSize);
+                }
+                return file;
+            });
             log.infof("file %s uploaded successfully", fileName);
             return newFile;
 
-
         }catch (Exception e){
+            if(storagePath != null){
+                deleteOrphanBlob(storagePath);
+            }
+            if(chunks != null){
+                chunkedStorageService.discard(chunks);
+            }
+            if(e instanceof ApiException apiException){
+                throw apiException;
+            }
             throw new ApiException(
                     String.format("Errore durante l'upload del file %s", fileName),
                     Response.Status.INTERNAL_SERVER_ERROR,
@@ -158,38 +336,104 @@ public class FileService {
 
     }
 
+    private void deleteOrphanBlob(String storagePath){
+        try{
+            azureStorageService.delete(storagePath);
+        }catch (Exception e){
+            log.errorf(e, "Unable to delete orphan blob %s", storagePath);
+        }
+    }
+
+    /**
+     * Nuovo file che punta al blob di un file esistente: nessun dato viene copiato,
+     * viene solo incrementato il refCount del blob.
+     */
     private FileEntity virtualDuplication(FileEntity existingFile, String fileName, UserEntity user) {
-        log.infof("create duplicated record for the same file", existingFile.getStoragePath());
+        log.infof("create duplicated record for file %s", existingFile.getId());
+
+        boolean chunked = existingFile.getStorageMode() == StorageMode.CHUNKED;
+        BlobEntity blob = chunked ? null : blobService.acquire(existingFile.getBlob());
 
         FileEntity newFile = FileEntity.builder()
                 .fileName(fileName)
                 .fileSize(existingFile.getFileSize())
                 .mimeType(existingFile.getMimeType())
                 .checksum(existingFile.getChecksum())
-                .storagePath(existingFile.getStoragePath())
-                .encryptionKey(existingFile.getEncryptionKey())
+                .partialFingerprint(existingFile.getPartialFingerprint())
+                .blob(blob)
+                .storageMode(existingFile.getStorageMode())
                 .isEncrypted(true)
-                .encryptionAlgorithm("AES-256-GCM")
-                .uploadStatus(UploadStatus.COMPLETED)
+                .uploadStatus(UploadStatus.DEDUPLICATED)
                 .uploadedAt(LocalDateTime.now())
                 .createdBy(user)
-                .isVirusScanned(existingFile.getIsVirusScanned())
+                .isVirusScanned(false)
                 .isDeleted(false)
                 .build();
 
         newFile.persist();
+        virusScanService.enqueue(newFile);
+        if(chunked){
+            chunkedStorageService.copyManifest(existingFile, newFile);
+        }
 
         userService.incrementStorageUsed(user.getKeycloakId(), existingFile.getFileSize());
 
-        log.infof("duplicated file %s)",
-                 existingFile.getId());
+        log.infof("duplicated file %s", existingFile.getId());
 
         return newFile;
     }
 
-    private String generateStoragePath(UUID userId, String fileName) {
-        String sanitizedFileName = fileName.replaceAll("[^a-zA-Z0-9._-]", "_");
-        return String.format("files/%s/%s.enc", userId, sanitizedFileName);
+    /**
+     * Dedup prima dell'upload: il client invia dimensione e SHA-256 (o solo l'impronta parziale).
+     * Se l'utente possiede già un file con lo stesso contenuto viene creato subito il riferimento
+     * e il body non viene trasferito. Il match è limitato ai file dell'utente stesso: accettare
+     * un checksum come prova di possesso di contenuti altrui permetterebbe di ottenere file
+     * di altri utenti conoscendone solo l'hash.
+     */
+    @Transactional
+    public UploadPrecheckResponseDTO precheckUpload(UploadPrecheckRequestDTO request, String keycloakId) {
+        UserEntity user = userService.findByKeycloakId(keycloakId);
+        if(user == null){
+            throw new ApiException(
+                    String.format("user with keycloakId %s not found", keycloakId),
+                    Response.Status.NOT_FOUND,
+                    "LAM-404-003"
+            );
+        }
+
+        if(request.checksum() != null){
+            FileEntity existingFile = FileEntity.find(
+                            "checksum = ?1 and fileSize = ?2 and createdBy.id = ?3 and isDeleted = false and uploadStatus in ?4",
+                            request.checksum().toLowerCase(), request.fileSize(), user.getId(), USABLE_STATUSES)
+                    .firstResult();
+            if(existingFile == null){
+                return UploadPrecheckResponseDTO.uploadRequired(false);
+            }
+            log.infof("precheck hit for file %s: creating duplicate reference without upload", request.fileName());
+            FileEntity newFile = virtualDuplication(existingFile, request.fileName().trim(), user);
+            return UploadPrecheckResponseDTO.deduplicated(newFile);
+        }
+
+        if(request.partialFingerprint() != null){
+            boolean candidate = FileEntity.count(
+                    "partialFingerprint = ?1 and fileSize = ?2 and createdBy.id = ?3 and isDeleted = false and uploadStatus in ?4",
+                    request.partialFingerprint().toLowerCase(), request.fileSize(), user.getId(), USABLE_STATUSES) > 0;
+            return UploadPrecheckResponseDTO.uploadRequired(candidate);
+        }
+
+        throw new ApiException(
+                "Either checksum or partialFingerprint is required",
+                Response.Status.BAD_REQUEST,
+                "LAM-400-008"
+        );
+    }
+
+    /**
+     * Il path non dipende dal nome del file: due upload con lo stesso nome
+     * non devono mai sovrascrivere lo stesso blob.
+     */
+    public String generateStoragePath(UUID userId) {
+        return String.format("files/%s/%s.enc", userId, UUID.randomUUID());
     }
 
     @Transactional
@@ -198,29 +442,281 @@ public class FileService {
                 .firstResult();
     }
 
+    /**
+     * Soft delete: il file resta nello storico dei transfer ma rilascia il blob,
+     * che viene eliminato da Azure quando non ha più riferimenti.
+     */
     @Transactional
-    public byte[] downloadFileAsBytes(@NotBlank(message = "fileId is required") String fileId,@NotBlank String keycloakId) {
+    public void deleteFile(@NotBlank(message = "fileId is required") String fileId, @NotBlank String keycloakId) {
+        FileEntity fileEntity = getFileById(fileId, keycloakId);
+        if(fileEntity == null){
+            throw new ApiException(
+                    String.format("File with ID %s not found", fileId),
+                    Response.Status.NOT_FOUND,
+                    "LAM-404-001"
+            );
+        }
 
-        try{
-            FileEntity fileEntity = getFileById(fileId, keycloakId);
-            if(fileEntity == null){
-                throw new ApiException(
-                        String.format("File with ID %s not found", fileId),
-                        Response.Status.NOT_FOUND,
-                        "LAM-404-001"
-                );
+        BlobEntity blob = fileEntity.getBlob();
+        fileEntity.setIsDeleted(true);
+        fileEntity.setDeletedAt(LocalDateTime.now());
+        fileEntity.setBlob(null);
+        if(fileEntity.getUploadStatus().isUsable()){
+            userService.decrementStorageUsed(keycloakId, fileEntity.getFileSize());
+        }else{
+            // sessione di upload mai completata: lo spazio era solo riservato
+            quotaService.release(fileEntity.getQuotaReservationId(), fileEntity.getFileSize());
+        }
+        if(blob != null){
+            blobService.release(blob);
+        }
+        if(fileEntity.getStorageMode() == StorageMode.CHUNKED){
+            chunkedStorageService.releaseChunks(fileEntity);
+        }
+        log.infof("file %s deleted", fileId);
+    }
+
+    /**
+     * Scarica e decifra il file in uno spool: oltre la soglia il contenuto è su disco.
+     * Il chiamante deve chiudere lo spool.
+     */
+    @Transactional
+    public SpoolBuffer downloadFile(@NotBlank(message = "fileId is required") String fileId,@NotBlank String keycloakId) {
+        FileEntity fileEntity = findDownloadableFile(fileId, keycloakId);
+        try(TransferBudgetService.Lease lease = transferBudgetService.acquire(downloadBufferBytes(fileEntity), "download")){
+            SpoolBuffer spool = spoolService.create();
+            try{
+                writeFile(fileEntity, spool);
+                return spool;
+            }catch(RuntimeException e){
+                spool.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Download in streaming: il file viene letto da Azure, decifrato e scritto direttamente
+     * sulla risposta, senza spool. Il budget è riservato dopo la transazione che carica il
+     * file, così un 503 arriva prima degli header senza tenere una connessione al database
+     * durante l'attesa, e viene rilasciato a fine invio o da {@link PartialContentDTO#release()}.
+     * <p>
+     * Con un header Range vengono letti da Azure e decifrati solo i segmenti che contengono
+     * gli intervalli richiesti.
+     */
+    public PartialContentDTO streamFile(@NotBlank(message = "fileId is required") String fileId, @NotBlank String keycloakId,
+                                        String rangeHeader, String ifRange) {
+        FileEntity fileEntity = QuarkusTransaction.joiningExisting().call(() -> {
+            FileEntity downloadable = findDownloadableFile(fileId, keycloakId);
+            if(downloadable.getStorageMode() != StorageMode.CHUNKED){
+                // il body viene scritto dopo la fine della transazione: il blob deve essere già caricato
+                Hibernate.initialize(downloadable.getBlob());
+            }
+            return downloadable;
+        });
+        return streamFile(fileEntity, rangeHeader, ifRange);
+    }
+
+    private PartialContentDTO streamFile(FileEntity fileEntity, String rangeHeader, String ifRange) {
+        ContentValidators validators = validators(fileEntity);
+        String mimeType = fileEntity.getMimeType() != null ? fileEntity.getMimeType() : MediaType.APPLICATION_OCTET_STREAM;
+        List<ByteRange> ranges = ByteRange.parse(rangeHeader, ifRange, validators.strongEtag(), fileEntity.getFileSize());
+        if(ranges != null && ranges.isEmpty()){
+            return new PartialContentDTO(getFileName(fileEntity), mimeType, fileEntity.getFileSize(), validators, ranges, null, null);
+        }
+        String boundary = ranges != null && ranges.size() > 1 ? ByteRange.newBoundary() : null;
+        TransferBudgetService.Lease lease = transferBudgetService.acquire(streamBufferBytes(fileEntity), "download");
+        ReleasableOutput body = new ReleasableOutput(output -> {
+            if(ranges == null){
+                writeFile(fileEntity, output);
+            }else if(boundary == null){
+                writeRange(fileEntity, ranges.get(0), output);
+            }else{
+                ByteRange.writeMultipart(ranges, boundary, mimeType, fileEntity.getFileSize(),
+                        (range, part) -> writeRange(fileEntity, range, part), output);
+            }
+        }, lease);
+        return new PartialContentDTO(getFileName(fileEntity), mimeType, fileEntity.getFileSize(), validators, ranges, boundary, body);
+    }
+
+    /**
+     * Download con Range di un contenuto già in uno spool (zip dei transfer): l'intervallo
+     * viene letto direttamente dallo spool. Lo zip ha un ETag debole, quindi con If-Range si invia tutto.
+     * Lo spool passa al body: viene chiuso a fine invio o da {@link PartialContentDTO#release()}.
+     */
+    public PartialContentDTO streamSpool(FileDataResponseDTO data, ContentValidators validators, String rangeHeader, String ifRange) {
+        SpoolBuffer spool = data.fileData();
+        List<ByteRange> ranges = ByteRange.parse(rangeHeader, ifRange, validators.strongEtag(), data.fileSize());
+        if(ranges == null){
+            return new PartialContentDTO(data.fileName(), data.mimeType(), data.fileSize(), validators, null, null,
+                    new ReleasableOutput(spool::writeTo, spool));
+        }
+        if(ranges.isEmpty()){
+            spool.close();
+            return new PartialContentDTO(data.fileName(), data.mimeType(), data.fileSize(), validators, ranges, null, null);
+        }
+        String boundary = ranges.size() > 1 ? ByteRange.newBoundary() : null;
+        ReleasableOutput body = new ReleasableOutput(output -> {
+            if(boundary == null){
+                spool.writeRange(ranges.get(0), output);
+            }else{
+                ByteRange.writeMultipart(ranges, boundary, data.mimeType(), data.fileSize(), spool::writeRange, output);
             }
+        }, spool);
+        return new PartialContentDTO(data.fileName(), data.mimeType(), data.fileSize(), validators, ranges, boundary, body);
+    }
+
+    /**
+     * ETag forte dal checksum SHA-256 del file in chiaro, Last-Modified dal completamento dell'upload.
+     */
+    public static ContentValidators validators(FileEntity fileEntity) {
+        return ContentValidators.strong(fileEntity.getChecksum(),
+                fileEntity.getUploadedAt() != null ? fileEntity.getUploadedAt() : fileEntity.getCreatedAt());
+    }
+
+    /**
+     * Memoria usata da un download verso uno spool: lo spool in uscita (fino alla soglia)
+     * più quella dello streaming.
+     */
+    long downloadBufferBytes(FileEntity fileEntity) {
+        return spoolService.memoryThreshold() + streamBufferBytes(fileEntity);
+    }
+
+    /**
+     * Memoria usata dallo streaming di un file: i buffer di lettura e, per il formato a segmenti,
+     * la finestra di segmenti in decifratura. Il formato GCM legacy a messaggio unico viene
+     * verificato dal JDK tutto in memoria, dopo aver passato il ciphertext da uno spool.
+     */
+    long streamBufferBytes(FileEntity fileEntity) {
+        if(fileEntity.getStorageMode() == StorageMode.CHUNKED){
+            return chunkedStorageService.bufferBytes();
+        }
+        BlobEntity blob = fileEntity.getBlob();
+        if(blob.getEncryptionAlgorithm().isSegmented()){
+            return azureStorageService.streamBufferBytes(blob.getSizeBytes())
+                    + encryptionService.streamBufferBytes(blob.getEncryptionSegmentSize());
+        }
+        return spoolService.memoryThreshold() + fileEntity.getFileSize();
+    }
+
+    private FileEntity findDownloadableFile(String fileId, String keycloakId) {
+        FileEntity fileEntity = getFileById(fileId, keycloakId);
+        if(fileEntity == null){
+            throw new ApiException(
+                    String.format("File with ID %s not found", fileId),
+                    Response.Status.NOT_FOUND,
+                    "LAM-404-001"
+            );
+        }
+        checkDownloadable(fileEntity);
+        return fileEntity;
+    }
+
+    /**
+     * Controlli da fare prima di rispondere a un download, anche con 304: upload completato
+     * e scansione antivirus compatibile con la policy.
+     */
+    public void checkDownloadable(FileEntity fileEntity) {
+        if(!fileEntity.getUploadStatus().isUsable()){
+            throw new ApiException(
+                    String.format("File with ID %s is not available (status %s)", fileEntity.getId(), fileEntity.getUploadStatus()),
+                    Response.Status.CONFLICT,
+                    "LAM-409-004"
+            );
+        }
+        virusScanService.checkDownloadAllowed(fileEntity);
+    }
+
+    void writeFile(FileEntity fileEntity, OutputStream output) {
+        try{
             log.infof("Downloading file %s from azure", fileEntity.getFileName());
-            byte[] encryptedData = azureStorageService.downloadAsBytes(fileEntity.getStoragePath());
+            if(fileEntity.getStorageMode() == StorageMode.CHUNKED){
+                chunkedStorageService.writeTo(fileEntity, output);
+                return;
+            }
+            BlobEntity blob = fileEntity.getBlob();
+            if(blob.getEncryptionAlgorithm().isSegmented()){
+                // ogni segmento è autenticato prima di essere decompresso: niente spool intermedio
+                try(InputStream plain = compressionService.decompress(
+                        encryptionService.decryptSegments(blob.getEncryptionAlgorithm(), blobCacheService.openInputStream(blob),
+                                keyService.dataKey(blob), blob.getEncryptionIv(), blob.getEncryptionSegmentSize()),
+                        blob.getCompressionCodec())){
+                    plain.transferTo(output);
+                }
+                return;
+            }
 
-            log.infof("Decrypting file %s", fileEntity.getFileName());
-            byte[] decryptedData = encryptionService.decrypt(encryptedData, fileEntity.getEncryptionKey());
+            // formato legacy: il tag è verificato solo a fine messaggio, serve tutto il ciphertext
+            try(SpoolBuffer encrypted = spoolService.create()){
+                blobCacheService.download(blob, encrypted);
+                log.infof("Decrypting file %s", fileEntity.getFileName());
+                try(InputStream plain = compressionService.decompress(
+                        encryptionService.decrypt(encrypted.openInputStream(), keyService.dataKey(blob)), blob.getCompressionCodec())){
+                    long decrypted = plain.transferTo(output);
+                    log.infof("Decrypted to %d bytes", decrypted);
+                }
+            }
+        }catch (ApiException e){
+            throw e;
+        }catch (Exception e){
+            throw new ApiException(
+                    String.format("Error downloading file %s: %s", fileEntity.getId(), e.getMessage()),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-004"
+            );
+        }
+    }
 
-            log.infof("Decrypted to %d bytes", decryptedData.length);
-            return decryptedData;
+    /**
+     * Scrive un intervallo del file in chiaro. Per il formato a segmenti non compresso si leggono
+     * da Azure solo i segmenti che lo contengono; se il blob è compresso gli offset nel ciphertext
+     * non corrispondono a quelli del file, quindi si decomprime dall'inizio e ci si ferma a fine
+     * intervallo. Il formato legacy va comunque verificato per intero.
+     */
+    void writeRange(FileEntity fileEntity, ByteRange range, OutputStream output) {
+        try{
+            if(fileEntity.getStorageMode() == StorageMode.CHUNKED){
+                chunkedStorageService.writeRange(fileEntity, range, output);
+                return;
+            }
+            BlobEntity blob = fileEntity.getBlob();
+            CipherSuite suite = blob.getEncryptionAlgorithm();
+            if(suite.isSegmented() && blob.getCompressionCodec() == null){
+                int segmentSize = blob.getEncryptionSegmentSize();
+                int first = (int) (range.start() / segmentSize);
+                int last = (int) (range.end() / segmentSize);
+                long offset = EncryptionService.segmentOffset(first, segmentSize);
+                long end = Math.min(EncryptionService.segmentOffset(last + 1, segmentSize),
+                        EncryptionService.encryptedSize(blob.getSizeBytes(), segmentSize));
+                try(InputStream plain = encryptionService.decryptSegments(suite,
+                        blobCacheService.openRangeInputStream(blob, offset, end - offset),
+                        keyService.dataKey(blob), blob.getEncryptionIv(), segmentSize,
+                        first, EncryptionService.segmentCount(blob.getSizeBytes(), segmentSize))){
+                    ByteRange.transfer(plain, range.start() - (long) first * segmentSize, range.length(), output);
+                }
+                return;
+            }
+            if(suite.isSegmented()){
+                try(InputStream plain = compressionService.decompress(
+                        encryptionService.decryptSegments(suite, blobCacheService.openInputStream(blob),
+                                keyService.dataKey(blob), blob.getEncryptionIv(), blob.getEncryptionSegmentSize()),
+                        blob.getCompressionCodec())){
+                    ByteRange.transfer(plain, range.start(), range.length(), output);
+                }
+                return;
+            }
+            try(SpoolBuffer encrypted = spoolService.create()){
+                blobCacheService.download(blob, encrypted);
+                try(InputStream plain = compressionService.decompress(
+                        encryptionService.decrypt(encrypted.openInputStream(), keyService.dataKey(blob)), blob.getCompressionCodec())){
+                    ByteRange.transfer(plain, range.start(), range.length(), output);
+                }
+            }
+        }catch (ApiException e){
+            throw e;
         }catch (Exception e){
             throw new ApiException(
-                    String.format("Error downloading file %s: %s", fileId, e.getMessage()),
+                    String.format("Error downloading range %s of file %s: %s", range.contentRange(fileEntity.getFileSize()), fileEntity.getId(), e.getMessage()),
                     Response.Status.INTERNAL_SERVER_ERROR,
                     "LAM-500-004"
             );
@@ -230,7 +726,7 @@ public class FileService {
     public FileDataResponseDTO downloadSingleFile(FileEntity fileEntity) {
         log.infof("Single file download for file id: %s", fileEntity.getId());
 
-        byte[] fileData = downloadFileAsBytes(
+        SpoolBuffer fileData = downloadFile(
                 fileEntity.getId().toString(),
                 fileEntity.getCreatedBy().getKeycloakId()
         );
@@ -238,36 +734,44 @@ public class FileService {
         return new FileDataResponseDTO(
                 getFileName(fileEntity),
                 fileEntity.getMimeType(),
-                fileEntity.getFileSize(),
+                fileData.size(),
                 fileData
         );
     }
 
-    public FileDataResponseDTO downloadAsZip(List<FileEntity> files, String zipFileName) {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        try (ZipOutputStream zipOutputStream = new ZipOutputStream(byteArrayOutputStream)) {
-            for (FileEntity file : files) {
-                byte[] fileData = downloadFileAsBytes(
-                        file.getId().toString(),
-                        file.getCreatedBy().getKeycloakId()
-                );
-
-                ZipEntry zipEntry = new ZipEntry(getFileName(file));
-                zipOutputStream.putNextEntry(zipEntry);
-                zipOutputStream.write(fileData);
-                zipOutputStream.closeEntry();
-            }
-            zipOutputStream.finish();
-
-            byte[] zipData = byteArrayOutputStream.toByteArray();
+    /**
+     * Zip in streaming sulla risposta: il primo byte parte appena è pronto il primo file e
+     * nulla viene bufferizzato per intero. La dimensione non è nota in anticipo (niente
+     * Content-Length); per le richieste con Range si usa {@link #downloadAsZip}.
+     * Il budget è riservato dopo la transazione dei controlli e restituito a fine invio o da
+     * {@link ReleasableOutput#release()} se lo zip non viene scritto.
+     */
+    public ReleasableOutput streamZip(List<FileEntity> files) {
+        List<ZipSource> downloadable = prepareZip(files);
+        TransferBudgetService.Lease lease = transferBudgetService.acquire(zipBufferBytes(downloadable), "zip download");
+        return new ReleasableOutput(output -> writeZip(downloadable, output), lease);
+    }
 
+    /**
+     * Zip in uno spool, con dimensione nota: serve a rispondere alle richieste con Range.
+     */
+    public FileDataResponseDTO downloadAsZip(List<FileEntity> files, String zipFileName) {
+        List<ZipSource> downloadable = prepareZip(files);
+        long bufferBytes = spoolService.memoryThreshold() + zipBufferBytes(downloadable);
+        SpoolBuffer zipData = spoolService.create();
+        try (TransferBudgetService.Lease lease = transferBudgetService.acquire(bufferBytes, "zip download")) {
+            writeZip(downloadable, zipData);
             return new FileDataResponseDTO(
                     zipFileName,
                     "application/zip",
-                    (long) zipData.length,
+                    zipData.size(),
                     zipData
             );
+        } catch (ServiceUnavailableException e) {
+            zipData.close();
+            throw e;
         } catch (Exception e) {
+            zipData.close();
             throw new ApiException(
                     String.format("Error creating ZIP transferName: %s \n error: %s",zipFileName, e.getMessage()),
                     Response.Status.INTERNAL_SERVER_ERROR,
@@ -277,4 +781,153 @@ public class FileService {
 
     }
 
+    /**
+     * Controlli di download su tutti i file, prima di inviare qualsiasi byte, in una transazione
+     * che si chiude prima di attendere il budget. Lo zip viene scritto dopo, da thread senza
+     * sessione: blob e manifest dei file a chunk vengono caricati qui.
+     */
+    private List<ZipSource> prepareZip(List<FileEntity> files) {
+        return QuarkusTransaction.joiningExisting().call(() -> {
+            List<ZipSource> downloadable = new ArrayList<>(files.size());
+            for (FileEntity file : files) {
+                FileEntity checked = findDownloadableFile(file.getId().toString(), file.getCreatedBy().getKeycloakId());
+                if (checked.getStorageMode() == StorageMode.CHUNKED) {
+                    downloadable.add(new ZipSource(checked, chunkedStorageService.manifest(checked)));
+                } else {
+                    Hibernate.initialize(checked.getBlob());
+                    downloadable.add(new ZipSource(checked, null));
+                }
+            }
+            return downloadable;
+        });
+    }
+
+    /**
+     * Memoria dello zip: il file in scrittura più zip-prefetch file in decifratura, ognuno
+     * nel proprio spool.
+     */
+    private long zipBufferBytes(List<ZipSource> files) {
+        return (zipPrefetch + 1) * files.stream()
+                .mapToLong(source -> downloadBufferBytes(source.file()))
+                .max()
+                .orElse(0);
+    }
+
+    /**
+     * Scrive lo zip su output. Mentre un file viene copiato nello zip, i successivi
+     * zip-prefetch vengono già letti e decifrati in parallelo, ognuno in uno spool; l'ordine
+     * delle voci resta quello dei file.
+     */
+    private void writeZip(List<ZipSource> files, OutputStream output) throws IOException {
+        Deque<ZipPrefetch> window = new ArrayDeque<>();
+        int next = 0;
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(nonClosing(output))) {
+            for (ZipSource source : files) {
+                while (next < files.size() && window.size() <= zipPrefetch) {
+                    ZipPrefetch ahead = new ZipPrefetch(files.get(next++));
+                    ahead.result = zipExecutor.submit(ahead);
+                    window.addLast(ahead);
+                }
+                // resta nella finestra finché lo spool non è in mano a questo thread
+                SpoolBuffer ready = window.peekFirst().result.get();
+                window.removeFirst();
+                try (SpoolBuffer spool = ready) {
+                    zipOutputStream.putNextEntry(new ZipEntry(getFileName(source.file())));
+                    spool.writeTo(zipOutputStream);
+                    zipOutputStream.closeEntry();
+                }
+            }
+            zipOutputStream.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing zip");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ApiException apiException) {
+                throw apiException;
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } finally {
+            // client disconnesso o file non leggibile: le voci ancora in finestra vanno abbandonate
+            window.forEach(ZipPrefetch::abandon);
+        }
+    }
+
+    private SpoolBuffer decryptToSpool(ZipSource source) {
+        SpoolBuffer spool = spoolService.create();
+        try {
+            if (source.chunks() != null) {
+                chunkedStorageService.writeTo(source.file(), source.chunks(), spool);
+            } else {
+                writeFile(source.file(), spool);
+            }
+            return spool;
+        } catch (RuntimeException e) {
+            spool.close();
+            throw e;
+        }
+    }
+
+    /**
+     * File da mettere nello zip, con tutto ciò che serve per leggerlo senza sessione:
+     * chunks è il manifest per i file a chunk, null per gli altri.
+     */
+    private record ZipSource(FileEntity file, List<FileChunkEntity> chunks) {
+    }
+
+    /**
+     * Decifratura di una voce dello zip in anticipo. Se la voce viene abbandonata, lo spool
+     * viene chiuso da chi arriva per ultimo: subito se è già pronto, altrimenti dal task
+     * stesso quando termina.
+     */
+    /**
+     * Decifratura anticipata di una voce dello zip. Se la voce viene abbandonata lo spool è
+     * chiuso da chi arriva secondo tra il worker e abandon(); niente monitor, che sui
+     * virtual thread bloccherebbero il carrier.
+     */
+    private final class ZipPrefetch implements Callable<SpoolBuffer> {
+        private final ZipSource source;
+        private final AtomicBoolean abandoned = new AtomicBoolean();
+        private final AtomicReference<SpoolBuffer> spool = new AtomicReference<>();
+        private Future<SpoolBuffer> result;
+
+        private ZipPrefetch(ZipSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public SpoolBuffer call() {
+            SpoolBuffer decrypted = decryptToSpool(source);
+            spool.set(decrypted);
+            if (abandoned.get() && spool.compareAndSet(decrypted, null)) {
+                decrypted.close();
+                return null;
+            }
+            return decrypted;
+        }
+
+        void abandon() {
+            abandoned.set(true);
+            result.cancel(true);
+            SpoolBuffer ready = spool.getAndSet(null);
+            if (ready != null) {
+                ready.close();
+            }
+        }
+    }
+
+    // La chiusura dello zip non deve chiudere (ed eliminare) lo spool sottostante
+    private static OutputStream nonClosing(OutputStream output) {
+        return new FilterOutputStream(output) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
 }
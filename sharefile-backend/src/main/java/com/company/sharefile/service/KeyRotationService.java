@@ -0,0 +1,289 @@
+package com.company.sharefile.service;
+
+import com.company.sharefile.entity.UserKeyEntity;
+import com.company.sharefile.utils.TransferThreads;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rotazione delle KEK: una KEK disattivata (isActive = false, revokedAt null) non cifra più
+ * nuove chiavi e le DEK che protegge vengono ricifrate con la KEK attiva dello stesso utente.
+ * I blob senza KEK (chiave in chiaro, precedenti alla cifratura a busta) seguono lo stesso
+ * percorso verso la KEK di chi li ha caricati.
+ * <p>
+ * I blob vengono letti a pagine per id (keyset), ricifrati in parallelo e aggiornati con un
+ * UPDATE condizionale sulla vecchia KEK, una transazione per pagina. Lo stato della rotazione
+ * è il database stesso: un blob già spostato non rientra più nella query, quindi dopo un crash
+ * il job riprende da dove si era fermato. La KEK viene revocata solo quando nessun blob la usa più.
+ */
+@ApplicationScoped
+public class KeyRotationService {
+    @Inject
+    Logger log;
+
+    @Inject
+    EntityManager entityManager;
+
+    @Inject
+    KeyService keyService;
+
+    @Inject
+    MeterRegistry meterRegistry;
+
+    // Le KEK attive più vecchie di così vengono messe in rotazione
+    @ConfigProperty(name = "sharefile.keys.rotation.max-age", defaultValue = "90D")
+    Duration maxAge;
+
+    @ConfigProperty(name = "sharefile.keys.rotation.batch-size", defaultValue = "500")
+    int batchSize;
+
+    @ConfigProperty(name = "sharefile.keys.rotation.parallelism", defaultValue = "4")
+    int parallelism;
+
+    // Limite di chiavi ricifrate al secondo, per non contendere il database con il traffico
+    @ConfigProperty(name = "sharefile.keys.rotation.max-rows-per-second", defaultValue = "1000")
+    int maxRowsPerSecond;
+
+    private static final String ROTATING_BLOBS =
+            "SELECT b.id, b.encryption_key, b.kek_id, k.user_id FROM blobs b " +
+                    "JOIN user_encryption_keys k ON k.id = b.kek_id " +
+                    "WHERE k.is_active = false AND b.id > ?1 ORDER BY b.id LIMIT ?2";
+
+    // Proprietario di un blob legacy: chi ha caricato il primo file (o chunk) che lo usa
+    private static final String LEGACY_BLOBS =
+            "SELECT b.id, b.encryption_key, CAST(NULL AS uuid), coalesce(" +
+                    "(SELECT f.created_by FROM files f WHERE f.blob_id = b.id ORDER BY f.created_at LIMIT 1), " +
+                    "(SELECT f.created_by FROM file_chunks c JOIN files f ON f.id = c.file_id " +
+                    "WHERE c.blob_id = b.id ORDER BY f.created_at LIMIT 1)) " +
+                    "FROM blobs b WHERE b.kek_id IS NULL AND b.id > ?1 ORDER BY b.id LIMIT ?2";
+
+    private ExecutorService rewrapExecutor;
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong rate = new AtomicLong();
+    private Counter rewrapped;
+    private Counter failures;
+
+    private record KeyRecord(UUID blobId, String wrappedKey, UUID kekId, UUID userId) {
+    }
+
+    private record Rewrapped(KeyRecord source, String wrappedKey, UUID kekId) {
+    }
+
+    void onStart(@Observes StartupEvent ev) {
+        rewrapExecutor = TransferThreads.fixedPool("key-rotation", parallelism, false);
+        meterRegistry.gauge("sharefile.keys.rotation.pending", pending);
+        meterRegistry.gauge("sharefile.keys.rotation.rate", rate);
+        rewrapped = meterRegistry.counter("sharefile.keys.rotation.rewrapped");
+        failures = meterRegistry.counter("sharefile.keys.rotation.failures");
+    }
+
+    void onStop(@Observes ShutdownEvent ev) {
+        rewrapExecutor.shutdownNow();
+    }
+
+    /**
+     * Mette in rotazione una KEK: da subito le nuove chiavi dell'utente usano una KEK nuova.
+     */
+    public void retire(UUID kekId) {
+        UUID userId = QuarkusTransaction.requiringNew().call(() -> {
+            UserKeyEntity kek = UserKeyEntity.findById(kekId);
+            if(kek == null || !kek.isValid()){
+                return null;
+            }
+            kek.setIsActive(false);
+            return kek.getUser().getId();
+        });
+        if(userId != null){
+            keyService.evictKek(userId, kekId);
+            log.infof("key encryption key %s retired", kekId);
+        }
+    }
+
+    /**
+     * Un passaggio completo: ritira le KEK scadute, sposta le chiavi dei blob e revoca
+     * le KEK rimaste senza blob.
+     *
+     * @return numero di chiavi ricifrate
+     */
+    public long rotate() {
+        List<UUID> expired = QuarkusTransaction.requiringNew().call(() -> UserKeyEntity.<UserKeyEntity>list(
+                        "isActive = true and revokedAt is null and createdAt < ?1", LocalDateTime.now().minus(maxAge))
+                .stream().map(UserKeyEntity::getId).toList());
+        expired.forEach(this::retire);
+
+        pending.set(countPending());
+        long moved = drain(ROTATING_BLOBS) + drain(LEGACY_BLOBS);
+        revokeDrainedKeys();
+        pending.set(countPending());
+        return moved;
+    }
+
+    private long drain(String query) {
+        // Postgres ordina gli uuid byte per byte senza segno: il minimo è tutto zero
+        UUID cursor = new UUID(0L, 0L);
+        long moved = 0;
+        while(true){
+            long started = System.nanoTime();
+            List<KeyRecord> page = nextPage(query, cursor);
+            if(page.isEmpty()){
+                return moved;
+            }
+            cursor = page.get(page.size() - 1).blobId();
+
+            int updated = apply(rewrap(page));
+            moved += updated;
+            rewrapped.increment(updated);
+            pending.addAndGet(-updated);
+            throttle(page.size(), started);
+        }
+    }
+
+    private List<KeyRecord> nextPage(String query, UUID cursor) {
+        return QuarkusTransaction.requiringNew().call(() -> {
+            @SuppressWarnings("unchecked")
+            List<Object[]> rows = entityManager.createNativeQuery(query)
+                    .setParameter(1, cursor)
+                    .setParameter(2, batchSize)
+                    .getResultList();
+            List<KeyRecord> page = new ArrayList<>(rows.size());
+            for(Object[] row : rows){
+                page.add(new KeyRecord((UUID) row[0], (String) row[1], (UUID) row[2], (UUID) row[3]));
+            }
+            return page;
+        });
+    }
+
+    /**
+     * Ricifra la pagina in parallelo. Le KEK coinvolte vengono risolte prima (qui si accede al
+     * database), così i worker lavorano solo sulle chiavi in cache.
+     */
+    private List<Rewrapped> rewrap(List<KeyRecord> page) {
+        Map<UUID, UUID> targets = new HashMap<>();
+        for(KeyRecord record : page){
+            if(record.userId() != null){
+                targets.computeIfAbsent(record.userId(), keyService::activeKekId);
+            }
+        }
+
+        List<Callable<List<Rewrapped>>> slices = new ArrayList<>();
+        int sliceSize = Math.max(1, (page.size() + parallelism - 1) / parallelism);
+        for(int from = 0; from < page.size(); from += sliceSize){
+            List<KeyRecord> slice = page.subList(from, Math.min(page.size(), from + sliceSize));
+            slices.add(() -> {
+                List<Rewrapped> result = new ArrayList<>(slice.size());
+                for(KeyRecord record : slice){
+                    UUID target = record.userId() != null ? targets.get(record.userId()) : null;
+                    if(target == null || target.equals(record.kekId())){
+                        continue;
+                    }
+                    try{
+                        result.add(new Rewrapped(record, keyService.rewrap(record.wrappedKey(), record.kekId(), target), target));
+                    }catch(Exception e){
+                        failures.increment();
+                        log.errorf(e, "Failed to rewrap key of blob %s", record.blobId());
+                    }
+                }
+                return result;
+            });
+        }
+
+        List<Rewrapped> result = new ArrayList<>(page.size());
+        try{
+            for(Future<List<Rewrapped>> future : rewrapExecutor.invokeAll(slices)){
+                result.addAll(future.get());
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("key rotation interrupted", e);
+        }catch(Exception e){
+            throw new IllegalStateException("key rotation failed: " + e.getMessage(), e);
+        }
+        return result;
+    }
+
+    /**
+     * Salva una pagina in una transazione. La condizione sulla vecchia KEK scarta le righe
+     * cambiate nel frattempo (altra istanza che sta ruotando le stesse chiavi).
+     */
+    private int apply(List<Rewrapped> batch) {
+        if(batch.isEmpty()){
+            return 0;
+        }
+        return QuarkusTransaction.requiringNew().call(() -> {
+            int updated = 0;
+            for(Rewrapped entry : batch){
+                KeyRecord source = entry.source();
+                String sql = source.kekId() != null
+                        ? "UPDATE blobs SET encryption_key = ?1, kek_id = ?2 WHERE id = ?3 AND kek_id = ?4"
+                        : "UPDATE blobs SET encryption_key = ?1, kek_id = ?2 WHERE id = ?3 AND kek_id IS NULL";
+                Query update = entityManager.createNativeQuery(sql)
+                        .setParameter(1, entry.wrappedKey())
+                        .setParameter(2, entry.kekId())
+                        .setParameter(3, source.blobId());
+                if(source.kekId() != null){
+                    update.setParameter(4, source.kekId());
+                }
+                updated += update.executeUpdate();
+            }
+            return updated;
+        });
+    }
+
+    private void revokeDrainedKeys() {
+        List<UserKeyEntity> drained = QuarkusTransaction.requiringNew().call(() -> UserKeyEntity.<UserKeyEntity>list(
+                "from UserKeyEntity k where k.isActive = false and k.revokedAt is null " +
+                        "and not exists (select 1 from BlobEntity b where b.kek = k)"));
+        for(UserKeyEntity kek : drained){
+            UUID userId = QuarkusTransaction.requiringNew().call(() -> {
+                UserKeyEntity managed = UserKeyEntity.findById(kek.getId());
+                managed.revoke();
+                return managed.getUser().getId();
+            });
+            keyService.evictKek(userId, kek.getId());
+            log.infof("key encryption key %s revoked: no blobs left", kek.getId());
+        }
+    }
+
+    private long countPending() {
+        return QuarkusTransaction.requiringNew().call(() -> ((Number) entityManager.createNativeQuery(
+                        "SELECT count(*) FROM blobs b LEFT JOIN user_encryption_keys k ON k.id = b.kek_id " +
+                                "WHERE b.kek_id IS NULL OR k.is_active = false")
+                .getSingleResult()).longValue());
+    }
+
+    private void throttle(int rows, long startedNanos) {
+        long elapsedMillis = Duration.ofNanos(System.nanoTime() - startedNanos).toMillis();
+        long minimumMillis = maxRowsPerSecond > 0 ? rows * 1000L / maxRowsPerSecond : 0;
+        try{
+            if(elapsedMillis < minimumMillis){
+                Thread.sleep(minimumMillis - elapsedMillis);
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        long totalMillis = Math.max(1, Duration.ofNanos(System.nanoTime() - startedNanos).toMillis());
+        rate.set(rows * 1000L / totalMillis);
+    }
+}
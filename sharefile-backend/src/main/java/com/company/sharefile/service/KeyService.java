@@ -0,0 +1,191 @@
+package com.company.sharefile.service;
+
+import com.company.sharefile.entity.BlobEntity;
+import com.company.sharefile.entity.UserEntity;
+import com.company.sharefile.entity.UserKeyEntity;
+import com.company.sharefile.exception.ApiException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.ws.rs.core.Response;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.time.Duration;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * Cifratura a busta: ogni blob ha una propria chiave dati (DEK), salvata cifrata con la KEK
+ * attiva dell'utente che l'ha caricato; le KEK sono salvate cifrate con la master key
+ * dell'applicazione. Ruotare una KEK significa ricifrare le DEK (poche decine di byte per blob),
+ * non il contenuto su Azure.
+ * <p>
+ * Le chiavi in chiaro restano in cache limitate per numero e durata, così i download
+ * frequenti non ripetono lo unwrap.
+ */
+@ApplicationScoped
+public class KeyService {
+    @Inject
+    Logger log;
+
+    @Inject
+    EntityManager entityManager;
+
+    @Inject
+    EncryptionService encryptionService;
+
+    @Inject
+    MeterRegistry meterRegistry;
+
+    // Master key (AES-256, Base64) che cifra le KEK degli utenti
+    @ConfigProperty(name = "sharefile.encryption.master-key")
+    String masterKey;
+
+    @ConfigProperty(name = "sharefile.encryption.data-key-cache.max-entries", defaultValue = "10000")
+    int dataKeyCacheSize;
+
+    @ConfigProperty(name = "sharefile.encryption.data-key-cache.ttl", defaultValue = "10M")
+    Duration dataKeyCacheTtl;
+
+    private Cache<UUID, ActiveKek> activeKeks;
+    private Cache<UUID, String> keks;
+    private Cache<UUID, String> dataKeys;
+    private Counter unwraps;
+
+    /**
+     * DEK appena generata: key in chiaro per cifrare, wrappedKey da salvare sul blob insieme a kek.
+     */
+    public record DataKey(String key, String wrappedKey, UserKeyEntity kek) {
+    }
+
+    private record ActiveKek(UUID id, String key) {
+    }
+
+    void onStart(@Observes StartupEvent ev) {
+        if(Base64.getDecoder().decode(masterKey).length != 32){
+            throw new IllegalStateException("sharefile.encryption.master-key must be a Base64 encoded 256 bit key");
+        }
+        activeKeks = newCache();
+        keks = newCache();
+        dataKeys = newCache();
+        unwraps = meterRegistry.counter("sharefile.keys.unwraps");
+    }
+
+    public DataKey newDataKey(UserEntity user) {
+        return newDataKey(user.getId());
+    }
+
+    /**
+     * Genera una DEK e la cifra con la KEK attiva dell'utente (creata al primo utilizzo).
+     */
+    public DataKey newDataKey(UUID userId) {
+        ActiveKek kek = activeKeks.get(userId, this::loadActiveKek);
+        String key = encryptionService.generateKey();
+        return new DataKey(key, encryptionService.wrapKey(key, kek.key()),
+                entityManager.getReference(UserKeyEntity.class, kek.id()));
+    }
+
+    /**
+     * DEK in chiaro del blob. I blob senza KEK hanno la chiave salvata in chiaro
+     * (precedenti alla cifratura a busta, in attesa della rotazione).
+     */
+    public String dataKey(BlobEntity blob) {
+        if(blob.getKek() == null){
+            return blob.getEncryptionKey();
+        }
+        UUID kekId = blob.getKek().getId();
+        String wrapped = blob.getEncryptionKey();
+        // la DEK in chiaro non cambia con la rotazione: la cache è per blob
+        return dataKeys.get(blob.getId(), id -> {
+            unwraps.increment();
+            return encryptionService.unwrapKey(wrapped, kekKey(kekId));
+        });
+    }
+
+    /**
+     * KEK attiva dell'utente (creata se manca), la stessa usata per i nuovi blob.
+     */
+    public UUID activeKekId(UUID userId) {
+        return activeKeks.get(userId, this::loadActiveKek).id();
+    }
+
+    /**
+     * Ricifra una DEK con un'altra KEK (rotazione).
+     */
+    public String rewrap(String wrappedKey, UUID fromKekId, UUID toKekId) {
+        String key = fromKekId != null ? encryptionService.unwrapKey(wrappedKey, kekKey(fromKekId)) : wrappedKey;
+        return encryptionService.wrapKey(key, kekKey(toKekId));
+    }
+
+    /**
+     * Crea una nuova KEK attiva per l'utente, in una transazione propria.
+     */
+    public UUID createKek(UUID userId) {
+        UUID id = insertKek(userId);
+        activeKeks.invalidate(userId);
+        return id;
+    }
+
+    /**
+     * Da chiamare quando una KEK viene revocata: le voci in cache non devono sopravviverle.
+     */
+    public void evictKek(UUID userId, UUID kekId) {
+        activeKeks.invalidate(userId);
+        keks.invalidate(kekId);
+    }
+
+    private <V> Cache<UUID, V> newCache() {
+        return Caffeine.newBuilder()
+                .maximumSize(dataKeyCacheSize)
+                .expireAfterWrite(dataKeyCacheTtl)
+                .build();
+    }
+
+    // senza invalidate: viene chiamato anche dal caricamento di activeKeks per lo stesso utente
+    private UUID insertKek(UUID userId) {
+        String key = encryptionService.generateKey();
+        UUID id = QuarkusTransaction.requiringNew().call(() -> {
+            UserKeyEntity kek = UserKeyEntity.builder()
+                    .user(entityManager.getReference(UserEntity.class, userId))
+                    .encryptionKey(encryptionService.wrapKey(key, masterKey))
+                    .algorithm("AES-256-GCM")
+                    .isActive(true)
+                    .build();
+            kek.persist();
+            return kek.getId();
+        });
+        log.infof("created key encryption key %s for user %s", id, userId);
+        return id;
+    }
+
+    private ActiveKek loadActiveKek(UUID userId) {
+        UserKeyEntity kek = QuarkusTransaction.joiningExisting().call(() -> UserKeyEntity.findActiveByUser(userId));
+        UUID kekId = kek != null ? kek.getId() : insertKek(userId);
+        return new ActiveKek(kekId, kekKey(kekId));
+    }
+
+    private String kekKey(UUID kekId) {
+        return keks.get(kekId, id -> {
+            String wrapped = QuarkusTransaction.joiningExisting().call(() -> {
+                UserKeyEntity kek = UserKeyEntity.findById(id);
+                return kek != null ? kek.getEncryptionKey() : null;
+            });
+            if(wrapped == null){
+                throw new ApiException(
+                        String.format("Key encryption key %s not found", id),
+                        Response.Status.INTERNAL_SERVER_ERROR,
+                        "LAM-500-001"
+                );
+            }
+            return encryptionService.unwrapKey(wrapped, masterKey);
+        });
+    }
+}
@@ -0,0 +1,86 @@
+package com.company.sharefile.service;
+
+import io.quarkus.arc.DefaultBean;
+import jakarta.enterprise.context.ApplicationScoped;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Scanner locale in stile ClamAV per sviluppo e test: cerca firme fisse nel contenuto
+ * (di default la stringa di test EICAR) anche quando sono spezzate tra due scritture.
+ * Non è un antivirus: in produzione va sostituito da un bean che parla con un motore reale.
+ */
+@ApplicationScoped
+@DefaultBean
+public class LocalSignatureScanner implements VirusScanner {
+
+    private static final Map<String, byte[]> SIGNATURES = Map.of(
+            "Win.Test.EICAR_HDB-1",
+            "X5O!P%@AP[4\\PZX54(P^)7CC)7}$EICAR-STANDARD-ANTIVIRUS-TEST-FILE!$H+H*".getBytes(StandardCharsets.US_ASCII)
+    );
+
+    private static final int MAX_SIGNATURE_LENGTH = SIGNATURES.values().stream()
+            .mapToInt(signature -> signature.length)
+            .max()
+            .orElse(1);
+
+    @Override
+    public String name() {
+        return "local-signatures";
+    }
+
+    @Override
+    public ScanSession open(String fileName) {
+        return new SignatureSession();
+    }
+
+    private static final class SignatureSession extends ScanSession {
+        // ultimi byte della scrittura precedente, per le firme a cavallo di due blocchi
+        private byte[] tail = new byte[0];
+        private String detected;
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (detected != null || len == 0) {
+                return;
+            }
+            byte[] window = new byte[tail.length + len];
+            System.arraycopy(tail, 0, window, 0, tail.length);
+            System.arraycopy(b, off, window, tail.length, len);
+
+            for (Map.Entry<String, byte[]> signature : SIGNATURES.entrySet()) {
+                if (indexOf(window, signature.getValue()) >= 0) {
+                    detected = signature.getKey();
+                    return;
+                }
+            }
+            int keep = Math.min(window.length, MAX_SIGNATURE_LENGTH - 1);
+            tail = Arrays.copyOfRange(window, window.length - keep, window.length);
+        }
+
+        @Override
+        public ScanResult verdict() {
+            return detected != null ? ScanResult.infected(detected) : ScanResult.clean();
+        }
+
+        private static int indexOf(byte[] data, byte[] pattern) {
+            outer:
+            for (int i = 0; i <= data.length - pattern.length; i++) {
+                for (int j = 0; j < pattern.length; j++) {
+                    if (data[i + j] != pattern[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+}
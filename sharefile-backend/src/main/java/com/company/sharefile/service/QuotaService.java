@@ -0,0 +1,386 @@
+package com.company.sharefile.service;
+
+import com.company.sharefile.entity.UserEntity;
+import com.company.sharefile.exception.ApiException;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.Transactional;
+import jakarta.ws.rs.core.Response;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Prenotazione atomica della quota per gli upload: all'inizio i byte vengono riservati con un
+ * unico UPDATE condizionale (used + reserved + richiesta <= quota del piano) che registra anche
+ * la riga in quota_reservations; alla fine la prenotazione viene convertita in spazio usato
+ * (commit, nella transazione del file) o rilasciata. Nessuna lettura-modifica-scrittura.
+ * <p>
+ * Utenti "caldi" (più upload contemporanei sulla stessa istanza) ricevono un credito locale:
+ * un'unica prenotazione più grande da cui le richieste successive attingono in memoria,
+ * senza contesa sulla riga dell'utente. Il credito inutilizzato torna al database quando
+ * l'utente resta inattivo.
+ */
+@ApplicationScoped
+public class QuotaService {
+    @Inject
+    Logger log;
+
+    @Inject
+    EntityManager entityManager;
+
+    // Oltre questa durata una prenotazione non confermata viene rilasciata dal job di pulizia
+    @ConfigProperty(name = "sharefile.quota.reservation-ttl", defaultValue = "2H")
+    Duration reservationTtl;
+
+    // Dimensione del credito locale per gli utenti caldi (0 = disattivato)
+    @ConfigProperty(name = "sharefile.quota.local-grant-bytes", defaultValue = "268435456")
+    long localGrantBytes;
+
+    // Upload contemporanei sulla stessa istanza oltre i quali l'utente riceve un credito locale
+    @ConfigProperty(name = "sharefile.quota.hot-threshold", defaultValue = "2")
+    int hotThreshold;
+
+    @ConfigProperty(name = "sharefile.quota.credit-idle", defaultValue = "30S")
+    Duration creditIdle;
+
+    private final Map<UUID, UserCredit> credits = new ConcurrentHashMap<>();
+
+    /**
+     * Riserva bytes per l'utente. Con bytes pari a 0 (dimensione non nota) non viene riservato
+     * nulla e il controllo avviene solo al commit.
+     *
+     * @throws ApiException FILE-400-001 se la quota residua non è sufficiente
+     */
+    public Reservation reserve(UserEntity user, long bytes) {
+        UUID userId = user.getId();
+        UserCredit credit = credits.compute(userId, (id, current) -> {
+            UserCredit active = current != null ? current : new UserCredit();
+            active.inFlight.incrementAndGet();
+            active.lastUsed = System.nanoTime();
+            return active;
+        });
+
+        try{
+            if(bytes <= 0){
+                return new Reservation(userId, 0, null, null, credit);
+            }
+
+            Grant grant = credit.grant.get();
+            if(grant != null && grant.isExpired()){
+                retireGrant(credit);
+                grant = null;
+            }
+            if(grant != null && grant.take(bytes)){
+                return new Reservation(userId, bytes, grant.ledgerId, grant, credit);
+            }
+
+            UUID ledgerId = insertReservation(userId, bytes, LocalDateTime.now().plus(reservationTtl));
+            // il credito non usato conta come riservato: restituirlo può bastare a far passare la richiesta
+            if(ledgerId == null && retireGrant(credit)){
+                ledgerId = insertReservation(userId, bytes, LocalDateTime.now().plus(reservationTtl));
+            }
+            if(ledgerId == null){
+                throw new ApiException(
+                        String.format("Insufficient storage quota. Required: %d bytes", bytes),
+                        Response.Status.BAD_REQUEST,
+                        "FILE-400-001"
+                );
+            }
+
+            if(localGrantBytes > 0 && credit.inFlight.get() >= hotThreshold && credit.grant.get() == null){
+                openGrant(userId, credit);
+            }
+            return new Reservation(userId, bytes, ledgerId, null, credit);
+        }catch(RuntimeException e){
+            credit.inFlight.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Prenotazione per un upload che attraversa più richieste (sessioni a chunk, upload diretti):
+     * il chiamante ne conserva l'id e la riga resta valida fino a usableUntil più reservation-ttl.
+     * Non attinge al credito locale, perché la conferma può arrivare su un'altra istanza.
+     *
+     * @throws ApiException FILE-400-001 se la quota residua non è sufficiente
+     */
+    public UUID reserveDurable(UserEntity user, long bytes, LocalDateTime usableUntil) {
+        UUID ledgerId = insertReservation(user.getId(), bytes, usableUntil.plus(reservationTtl));
+        if(ledgerId == null){
+            throw new ApiException(
+                    String.format("Insufficient storage quota. Required: %d bytes", bytes),
+                    Response.Status.BAD_REQUEST,
+                    "FILE-400-001"
+            );
+        }
+        return ledgerId;
+    }
+
+    /**
+     * Riprende una prenotazione di {@link #reserveDurable} per confermarla con {@link #commit}.
+     * Con ledgerId null (upload iniziati prima delle prenotazioni) la quota è verificata solo al commit.
+     * La chiusura non la rilascia: un upload fallito può essere ritentato, l'abbandono va
+     * segnalato con {@link #release(UUID, long)}.
+     */
+    public Reservation resume(UUID userId, UUID ledgerId, long bytes) {
+        return new Reservation(userId, bytes, ledgerId, null, null);
+    }
+
+    /**
+     * Rilascia una prenotazione di {@link #reserveDurable}; già confermata o già rilasciata non cambia nulla.
+     */
+    public void release(UUID ledgerId, long bytes) {
+        if(ledgerId != null && bytes > 0){
+            releaseLedger(ledgerId, bytes);
+        }
+    }
+
+    /**
+     * Converte la prenotazione in spazio usato nella transazione del chiamante, insieme al file.
+     * Se actualBytes supera quanto riservato l'eccedenza viene verificata contro la quota.
+     * Se la transazione va in rollback la riga della prenotazione resta e viene rilasciata alla scadenza.
+     *
+     * @throws ApiException LAM-400-003 se l'eccedenza non rientra nella quota
+     */
+    @Transactional
+    public void commit(Reservation reservation, long actualBytes) {
+        int updated = reservation.ledgerId == null
+                ? entityManager.createNativeQuery(
+                        "UPDATE users u SET used_storage_bytes = u.used_storage_bytes + ?2 " +
+                                "FROM storage_plans p " +
+                                "WHERE u.id = ?1 AND p.id = u.storage_plan_id " +
+                                "AND u.used_storage_bytes + u.reserved_storage_bytes + ?2 <= p.storage_quota_bytes")
+                .setParameter(1, reservation.userId)
+                .setParameter(2, actualBytes)
+                .executeUpdate()
+                : entityManager.createNativeQuery(
+                        "WITH d AS (UPDATE quota_reservations SET bytes = bytes - ?2 WHERE id = ?1 AND bytes >= ?2 RETURNING user_id) " +
+                                "UPDATE users u SET used_storage_bytes = u.used_storage_bytes + ?3, " +
+                                "reserved_storage_bytes = greatest(u.reserved_storage_bytes - (SELECT count(*) FROM d) * ?2, 0) " +
+                                "FROM storage_plans p " +
+                                "WHERE u.id = ?4 AND p.id = u.storage_plan_id " +
+                                "AND (?3 <= ?2 OR u.used_storage_bytes + u.reserved_storage_bytes - (SELECT count(*) FROM d) * ?2 + ?3 <= p.storage_quota_bytes)")
+                .setParameter(1, reservation.ledgerId)
+                .setParameter(2, reservation.bytes)
+                .setParameter(3, actualBytes)
+                .setParameter(4, reservation.userId)
+                .executeUpdate();
+        if(updated == 0){
+            throw new ApiException(
+                    String.format("Storage quota exceeded. Required: %d bytes, reserved: %d bytes", actualBytes, reservation.bytes),
+                    Response.Status.BAD_REQUEST,
+                    "LAM-400-003"
+            );
+        }
+        reservation.committed = true;
+    }
+
+    /**
+     * Rilascia le prenotazioni scadute (upload interrotti, rollback dopo il commit, crediti di
+     * istanze terminate) e le righe ormai vuote.
+     */
+    @Scheduled(every = "${sharefile.quota.sweep-interval:5m}", identity = "sweep-quota-reservations")
+    void sweepExpired() {
+        int released = QuarkusTransaction.requiringNew().call(() -> entityManager.createNativeQuery(
+                        "WITH d AS (DELETE FROM quota_reservations WHERE expires_at < now() OR bytes = 0 RETURNING user_id, bytes), " +
+                                "s AS (SELECT user_id, sum(bytes) AS total FROM d GROUP BY user_id) " +
+                                "UPDATE users u SET reserved_storage_bytes = greatest(u.reserved_storage_bytes - s.total, 0) " +
+                                "FROM s WHERE u.id = s.user_id")
+                .executeUpdate());
+        if(released > 0){
+            log.infof("released expired quota reservations for %d users", released);
+        }
+    }
+
+    /**
+     * Restituisce al database i crediti locali degli utenti inattivi.
+     */
+    @Scheduled(every = "${sharefile.quota.credit-idle:30S}", identity = "return-idle-quota-credits")
+    void returnIdleCredits() {
+        long idleNanos = creditIdle.toNanos();
+        for(Map.Entry<UUID, UserCredit> entry : credits.entrySet()){
+            UserCredit credit = entry.getValue();
+            if(System.nanoTime() - credit.lastUsed < idleNanos){
+                continue;
+            }
+            retireGrant(credit);
+            credits.computeIfPresent(entry.getKey(), (id, current) ->
+                    current.inFlight.get() == 0 && current.grant.get() == null ? null : current);
+        }
+    }
+
+    private UUID insertReservation(UUID userId, long bytes, LocalDateTime expiresAt) {
+        List<?> ids = QuarkusTransaction.requiringNew().call(() -> entityManager.createNativeQuery(
+                        "WITH r AS (UPDATE users u SET reserved_storage_bytes = u.reserved_storage_bytes + ?2 " +
+                                "FROM storage_plans p " +
+                                "WHERE u.id = ?1 AND p.id = u.storage_plan_id " +
+                                "AND u.used_storage_bytes + u.reserved_storage_bytes + ?2 <= p.storage_quota_bytes " +
+                                "RETURNING u.id) " +
+                                "INSERT INTO quota_reservations (id, user_id, bytes, expires_at, created_at) " +
+                                "SELECT gen_random_uuid(), r.id, ?2, ?3, now() FROM r RETURNING id", UUID.class)
+                .setParameter(1, userId)
+                .setParameter(2, bytes)
+                .setParameter(3, expiresAt)
+                .getResultList());
+        return ids.isEmpty() ? null : (UUID) ids.get(0);
+    }
+
+    /**
+     * Toglie bytes dalla riga della prenotazione e da users.reserved_storage_bytes. Se la riga
+     * è già stata rilasciata dal job di pulizia non viene toccato nulla.
+     */
+    private void releaseLedger(UUID ledgerId, long bytes) {
+        try{
+            QuarkusTransaction.requiringNew().run(() -> entityManager.createNativeQuery(
+                            "WITH d AS (UPDATE quota_reservations SET bytes = bytes - ?2 WHERE id = ?1 AND bytes >= ?2 RETURNING user_id) " +
+                                    "UPDATE users u SET reserved_storage_bytes = greatest(u.reserved_storage_bytes - ?2, 0) " +
+                                    "FROM d WHERE u.id = d.user_id")
+                    .setParameter(1, ledgerId)
+                    .setParameter(2, bytes)
+                    .executeUpdate());
+        }catch(Exception e){
+            // la riga scade comunque: il job di pulizia libererà la quota
+            log.errorf(e, "Unable to release quota reservation %s", ledgerId);
+        }
+    }
+
+    private void openGrant(UUID userId, UserCredit credit) {
+        UUID ledgerId = insertReservation(userId, localGrantBytes, LocalDateTime.now().plus(reservationTtl));
+        if(ledgerId == null){
+            return;
+        }
+        // usabile solo per metà della validità: i prelievi devono finire prima che la riga scada
+        Grant grant = new Grant(ledgerId, localGrantBytes, System.nanoTime() + reservationTtl.toNanos() / 2);
+        if(!credit.grant.compareAndSet(null, grant)){
+            releaseLedger(ledgerId, localGrantBytes);
+            return;
+        }
+        log.debugf("local quota credit of %d bytes opened for user %s", localGrantBytes, userId);
+    }
+
+    private boolean retireGrant(UserCredit credit) {
+        Grant grant = credit.grant.get();
+        if(grant == null || !credit.grant.compareAndSet(grant, null)){
+            return false;
+        }
+        long remaining = grant.retire();
+        if(remaining > 0){
+            releaseLedger(grant.ledgerId, remaining);
+        }
+        return true;
+    }
+
+    private void release(Reservation reservation) {
+        if(reservation.grant != null && reservation.grant.giveBack(reservation.bytes)){
+            return;
+        }
+        releaseLedger(reservation.ledgerId, reservation.bytes);
+    }
+
+    /**
+     * Prenotazione in corso: va sempre chiusa, se non confermata con commit la quota viene restituita.
+     * Le prenotazioni riprese con {@link #resume} (credit null) non vengono rilasciate dalla chiusura.
+     */
+    public final class Reservation implements AutoCloseable {
+        private final UUID userId;
+        private final long bytes;
+        private final UUID ledgerId;
+        private final Grant grant;
+        private final UserCredit credit;
+        private volatile boolean committed;
+        private boolean closed;
+
+        private Reservation(UUID userId, long bytes, UUID ledgerId, Grant grant, UserCredit credit) {
+            this.userId = userId;
+            this.bytes = bytes;
+            this.ledgerId = ledgerId;
+            this.grant = grant;
+            this.credit = credit;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public void close() {
+            if(closed){
+                return;
+            }
+            closed = true;
+            if(credit == null){
+                return;
+            }
+            credit.inFlight.decrementAndGet();
+            credit.lastUsed = System.nanoTime();
+            if(!committed && bytes > 0){
+                release(this);
+            }
+        }
+    }
+
+    private static final class UserCredit {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicReference<Grant> grant = new AtomicReference<>();
+        private volatile long lastUsed = System.nanoTime();
+    }
+
+    /**
+     * Credito locale: una riga di quota_reservations di cui l'istanza distribuisce i byte in memoria.
+     * available negativo = credito ritirato, i byte restituiti dopo vanno tolti dalla riga.
+     */
+    private static final class Grant {
+        private final UUID ledgerId;
+        private final AtomicLong available;
+        private final long usableUntil;
+
+        private Grant(UUID ledgerId, long bytes, long usableUntil) {
+            this.ledgerId = ledgerId;
+            this.available = new AtomicLong(bytes);
+            this.usableUntil = usableUntil;
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - usableUntil > 0;
+        }
+
+        boolean take(long bytes) {
+            long current;
+            do{
+                current = available.get();
+                if(current < bytes){
+                    return false;
+                }
+            }while(!available.compareAndSet(current, current - bytes));
+            return true;
+        }
+
+        boolean giveBack(long bytes) {
+            long current;
+            do{
+                current = available.get();
+                if(current < 0){
+                    return false;
+                }
+            }while(!available.compareAndSet(current, current + bytes));
+            return true;
+        }
+
+        long retire() {
+            return Math.max(0, available.getAndSet(-1));
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package com.company.sharefile.service;
 
+import com.company.sharefile.entity.BlobEntity;
+import com.company.sharefile.entity.FileEntity;
 import com.company.sharefile.entity.TransferEntity;
 import com.company.sharefile.utils.TransferStatus;
+import com.company.sharefile.utils.UploadStatus;
 import io.quarkus.scheduler.Scheduled;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
@@ -17,9 +20,39 @@ public class ScheduledJobService {
     @Inject
     Logger log;
 
+    @Inject
+    BlobService blobService;
+
+    @Inject
+    DirectUploadService directUploadService;
+
+    @Inject
+    KeyRotationService keyRotationService;
+
+    @Inject
+    BlobCacheService blobCacheService;
+
+    @Inject
+    QuotaService quotaService;
+
     @ConfigProperty(name = "sharefile.jobs.cleanup-expired.enabled", defaultValue = "true")
     boolean cleanupExpiredEnabled;
 
+    @ConfigProperty(name = "sharefile.jobs.cleanup-upload-sessions.enabled", defaultValue = "true")
+    boolean cleanupUploadSessionsEnabled;
+
+    @ConfigProperty(name = "sharefile.jobs.cleanup-upload-sessions.max-age-hours", defaultValue = "24")
+    int uploadSessionMaxAgeHours;
+
+    @ConfigProperty(name = "sharefile.jobs.cleanup-upload-sessions.commit-timeout-minutes", defaultValue = "60")
+    int uploadSessionCommitTimeoutMinutes;
+
+    @ConfigProperty(name = "sharefile.jobs.cleanup-direct-uploads.enabled", defaultValue = "true")
+    boolean cleanupDirectUploadsEnabled;
+
+    @ConfigProperty(name = "sharefile.jobs.rotate-keys.enabled", defaultValue = "true")
+    boolean rotateKeysEnabled;
+
     @Scheduled(
             cron = "${sharefile.jobs.cleanup-expired.cron:0 0 2 * * ?}",
             identity = "clean-expired-transfers"
@@ -54,6 +87,8 @@ public class ScheduledJobService {
                     transfer.setIsExpired(true);
                     transfer.setStatus(TransferStatus.EXPIRED);
                     transfer.persist();
+                    // i blob non più scaricabili non devono occupare la cache locale
+                    blobCacheService.evictFiles(transfer.getFiles());
                     cleaned++;
 
                 } catch (Exception e) {
@@ -71,5 +106,95 @@ public class ScheduledJobService {
         }
     }
 
+    /**
+     * Elimina le sessioni di upload mai completate e rilascia il blob riservato.
+     * I blocchi non committati vengono rimossi automaticamente da Azure dopo 7 giorni.
+     * Una sessione in COMMITTING è scaduta solo se il commit è iniziato da più di
+     * commit-timeout-minutes; ogni sessione viene eliminata solo se è ancora nello stato letto,
+     * così un commit o un chunk arrivati nel frattempo non perdono la riga.
+     */
+    @Scheduled(
+            cron = "${sharefile.jobs.cleanup-upload-sessions.cron:0 0 * * * ?}",
+            identity = "clean-stale-upload-sessions"
+    )
+    @Transactional
+    public void cleanupStaleUploadSessions(){
+        if (!cleanupUploadSessionsEnabled) {
+            log.debug("Cleanup stale upload sessions job is disabled");
+            return;
+        }
+
+        try {
+            List<FileEntity> staleSessions = FileEntity.find(
+                    "(uploadStatus in ?1 and createdAt < ?2) or (uploadStatus = ?3 and commitStartedAt < ?4)",
+                    List.of(UploadStatus.PENDING, UploadStatus.UPLOADING, UploadStatus.FAILED),
+                    LocalDateTime.now().minusHours(uploadSessionMaxAgeHours),
+                    UploadStatus.COMMITTING,
+                    LocalDateTime.now().minusMinutes(uploadSessionCommitTimeoutMinutes)
+            ).list();
+
+            int removed = 0;
+            for (FileEntity session : staleSessions) {
+                BlobEntity blob = session.getBlob();
+                long deleted = FileEntity.delete("id = ?1 and uploadStatus = ?2", session.getId(), session.getUploadStatus());
+                if (deleted == 0) {
+                    continue;
+                }
+                if (blob != null) {
+                    blobService.release(blob);
+                }
+                quotaService.release(session.getQuotaReservationId(), session.getFileSize());
+                removed++;
+            }
+            log.infof("Cleanup completed: %d stale upload sessions removed", removed);
+        } catch (Exception e) {
+            log.errorf(e, "Error in cleanup stale upload sessions job");
+        }
+    }
+
+    /**
+     * Elimina gli upload diretti scaduti senza finalize e il relativo blob di staging.
+     */
+    @Scheduled(
+            cron = "${sharefile.jobs.cleanup-direct-uploads.cron:0 30 * * * ?}",
+            identity = "clean-expired-direct-uploads"
+    )
+    public void cleanupExpiredDirectUploads(){
+        if (!cleanupDirectUploadsEnabled) {
+            log.debug("Cleanup expired direct uploads job is disabled");
+            return;
+        }
 
+        try {
+            int removed = directUploadService.cleanupExpired();
+            log.infof("Cleanup completed: %d expired direct uploads removed", removed);
+        } catch (Exception e) {
+            log.errorf(e, "Error in cleanup expired direct uploads job");
+        }
+    }
+
+    /**
+     * Rotazione delle KEK: ricifra a lotti le chiavi dei blob protette da KEK ritirate
+     * e revoca quelle rimaste senza blob. Riprende da sola dopo un'interruzione.
+     */
+    @Scheduled(
+            cron = "${sharefile.jobs.rotate-keys.cron:0 15 3 * * ?}",
+            identity = "rotate-key-encryption-keys",
+            concurrentExecution = Scheduled.ConcurrentExecution.SKIP
+    )
+    public void rotateKeyEncryptionKeys(){
+        if (!rotateKeysEnabled) {
+            log.debug("Key rotation job is disabled");
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        try {
+            long moved = keyRotationService.rotate();
+            log.infof("Key rotation completed: %d keys rewrapped (took %dms)",
+                    moved, System.currentTimeMillis() - startTime);
+        } catch (Exception e) {
+            log.errorf(e, "Error in key rotation job");
+        }
+    }
 }
@@ -0,0 +1,103 @@
+package com.company.sharefile.service;
+
+import com.company.sharefile.utils.BufferPool;
+import com.company.sharefile.utils.SpoolBuffer;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.stream.Stream;
+
+/**
+ * Crea i {@link SpoolBuffer} usati quando un contenuto va bufferizzato per intero:
+ * fino a memory-threshold in buffer del pool, oltre su file temporanei in directory.
+ * I file vengono eliminati alla chiusura dello spool; quelli rimasti (crash, richieste
+ * interrotte) vengono rimossi all'avvio e periodicamente.
+ */
+@ApplicationScoped
+public class SpoolService {
+    @Inject
+    Logger log;
+
+    @ConfigProperty(name = "sharefile.spool.directory", defaultValue = "${java.io.tmpdir}/sharefile-spool")
+    String directory;
+
+    @ConfigProperty(name = "sharefile.spool.memory-threshold", defaultValue = "8388608")
+    long memoryThreshold;
+
+    @ConfigProperty(name = "sharefile.spool.pool-buffer-size", defaultValue = "65536")
+    int poolBufferSize;
+
+    // Memoria massima trattenuta dal pool quando i buffer non sono in uso
+    @ConfigProperty(name = "sharefile.spool.pool-max-bytes", defaultValue = "67108864")
+    long poolMaxBytes;
+
+    @ConfigProperty(name = "sharefile.spool.max-age-minutes", defaultValue = "60")
+    long maxAgeMinutes;
+
+    private Path spoolDirectory;
+    private BufferPool pool;
+
+    void onStart(@Observes StartupEvent ev) {
+        spoolDirectory = Paths.get(directory);
+        pool = new BufferPool(poolBufferSize, (int) (poolMaxBytes / poolBufferSize));
+        try{
+            Files.createDirectories(spoolDirectory);
+        }catch(IOException e){
+            log.errorf(e, "Unable to create spool directory %s", spoolDirectory);
+        }
+        deleteStaleFiles(Duration.ZERO);
+    }
+
+    public SpoolBuffer create() {
+        return new SpoolBuffer(pool, memoryThreshold, spoolDirectory);
+    }
+
+    /**
+     * Memoria massima di uno spool: oltre la soglia i dati sono su disco.
+     */
+    public long memoryThreshold() {
+        return memoryThreshold;
+    }
+
+    @Scheduled(every = "${sharefile.spool.cleanup-interval:15m}", identity = "clean-stale-spool-files")
+    void cleanupStaleFiles() {
+        deleteStaleFiles(Duration.ofMinutes(maxAgeMinutes));
+    }
+
+    private void deleteStaleFiles(Duration maxAge) {
+        Instant cutoff = Instant.now().minus(maxAge);
+        try(Stream<Path> files = Files.list(spoolDirectory)){
+            files.filter(file -> file.getFileName().toString().startsWith("spool-"))
+                    .filter(file -> isOlderThan(file, cutoff))
+                    .forEach(file -> {
+                        try{
+                            Files.deleteIfExists(file);
+                            log.infof("deleted stale spool file %s", file);
+                        }catch(IOException e){
+                            log.warnf("Unable to delete spool file %s: %s", file, e.getMessage());
+                        }
+                    });
+        }catch(IOException e){
+            log.warnf("Unable to list spool directory %s: %s", spoolDirectory, e.getMessage());
+        }
+    }
+
+    private static boolean isOlderThan(Path file, Instant cutoff) {
+        try{
+            return Files.getLastModifiedTime(file).toInstant().isBefore(cutoff);
+        }catch(IOException e){
+            return false;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.company.sharefile.service;
+
+import com.company.sharefile.dto.v1.records.response.TransferBudgetDTO;
+import com.company.sharefile.exception.ServiceUnavailableException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Budget globale dei byte in memoria per i trasferimenti. Ogni percorso che bufferizza dati
+ * (upload, chunk, download, zip) acquisisce una stima della memoria che userà prima di
+ * iniziare e la rilascia alla fine. Se il budget è esaurito la richiesta attende in coda
+ * (FIFO) fino a queue-timeout, poi riceve 503 con Retry-After.
+ *
+ * Le unità del semaforo sono KB per restare negli int anche con budget di molti GB;
+ * una richiesta più grande dell'intero budget lo occupa tutto e passa da sola.
+ */
+@ApplicationScoped
+public class TransferBudgetService {
+    private static final long UNIT = 1024;
+
+    @Inject
+    Logger log;
+
+    @Inject
+    MeterRegistry meterRegistry;
+
+    @ConfigProperty(name = "sharefile.transfer.budget.max-bytes", defaultValue = "1073741824")
+    long maxBytes;
+
+    @ConfigProperty(name = "sharefile.transfer.budget.queue-timeout-ms", defaultValue = "10000")
+    long queueTimeoutMs;
+
+    @ConfigProperty(name = "sharefile.transfer.budget.retry-after-seconds", defaultValue = "5")
+    long retryAfterSeconds;
+
+    private int totalUnits;
+    private Semaphore budget;
+    private Counter admitted;
+    private Counter rejected;
+
+    void onStart(@Observes StartupEvent ev) {
+        totalUnits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / UNIT));
+        budget = new Semaphore(totalUnits, true);
+
+        meterRegistry.gauge("sharefile.transfer.budget.total.bytes", this, service -> (double) service.totalUnits * UNIT);
+        meterRegistry.gauge("sharefile.transfer.budget.available.bytes", this, service -> (double) service.budget.availablePermits() * UNIT);
+        meterRegistry.gauge("sharefile.transfer.budget.queue.depth", this, service -> service.budget.getQueueLength());
+        admitted = meterRegistry.counter("sharefile.transfer.budget.admitted");
+        rejected = meterRegistry.counter("sharefile.transfer.budget.rejected");
+    }
+
+    /**
+     * Riserva bytes dal budget; da usare in try-with-resources.
+     *
+     * @param purpose descrizione per i log (es. "download")
+     */
+    public Lease acquire(long bytes, String purpose) {
+        int units = (int) Math.max(1, Math.min(totalUnits, (bytes + UNIT - 1) / UNIT));
+        boolean acquired;
+        try{
+            acquired = budget.tryAcquire(units, queueTimeoutMs, TimeUnit.MILLISECONDS);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if(!acquired){
+            rejected.increment();
+            log.warnf("transfer budget exhausted: %s of %d bytes rejected (%d queued)", purpose, bytes, budget.getQueueLength());
+            throw new ServiceUnavailableException(
+                    "Server is busy with other transfers, retry later",
+                    retryAfterSeconds,
+                    "LAM-503-001"
+            );
+        }
+        admitted.increment();
+        return new Lease(units);
+    }
+
+    public TransferBudgetDTO getStatus() {
+        long available = (long) budget.availablePermits() * UNIT;
+        long total = (long) totalUnits * UNIT;
+        return new TransferBudgetDTO(
+                total,
+                available,
+                total - available,
+                budget.getQueueLength(),
+                (long) admitted.count(),
+                (long) rejected.count()
+        );
+    }
+
+    /**
+     * Può essere chiuso da più thread (fine del body, fine della richiesta): i permessi tornano al budget una sola volta.
+     */
+    public class Lease implements AutoCloseable {
+        private final int units;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(int units) {
+            this.units = units;
+        }
+
+        @Override
+        public void close() {
+            if(released.compareAndSet(false, true)){
+                budget.release(units);
+            }
+        }
+    }
+}
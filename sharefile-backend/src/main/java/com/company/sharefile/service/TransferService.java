@@ -1,7 +1,7 @@
 package com.company.sharefile.service;
 
 import com.company.sharefile.dto.v1.records.request.TransferRequestDTO;
-import com.company.sharefile.dto.v1.records.response.FileDataResponseDTO;
+import com.company.sharefile.dto.v1.records.response.PartialContentDTO;
 import com.company.sharefile.dto.v1.records.response.TransferResponseDTO;
 import com.company.sharefile.entity.FileEntity;
 import com.company.sharefile.entity.TransferEntity;
@@ -9,8 +9,10 @@ import com.company.sharefile.entity.TransferRecipientEntity;
 import com.company.sharefile.entity.UserEntity;
 import com.company.sharefile.exception.ApiException;
 import com.company.sharefile.repository.UserRepository;
+import com.company.sharefile.utils.ContentValidators;
 import com.company.sharefile.utils.GeneratorUtils;
 import com.company.sharefile.utils.TransferStatus;
+import io.quarkus.narayana.jta.QuarkusTransaction;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import jakarta.persistence.EntityManager;
@@ -20,6 +22,7 @@ import jakarta.validation.constraints.Email;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.Size;
 import jakarta.ws.rs.core.Response;
+import org.hibernate.Hibernate;
 import org.jboss.logging.Logger;
 
 import java.time.LocalDateTime;
@@ -40,8 +43,26 @@ public class TransferService {
     @Inject
     NotificationService notificationService;
 
+    @Inject
+    EntityManager entityManager;
+
+    // Checksum e data dei file di un transfer scaricabile dal destinatario, in una sola query
+    private static final String TRANSFER_VALIDATORS =
+            "select f from TransferEntity t " +
+                    "join t.recipients r join t.files f " +
+                    "where t.shareLink = ?1 and lower(r.recipientEmail) = lower(?2) and r.accessToken = ?3 " +
+                    "and (t.expiresAt is null or t.expiresAt > ?4) " +
+                    "and (t.downloadLimit is null or t.downloadCount < t.downloadLimit)";
+
+    private record FileVersion(UUID id, String checksum, LocalDateTime modified) {
+        static FileVersion of(FileEntity file) {
+            return new FileVersion(file.getId(), file.getChecksum(),
+                    file.getUploadedAt() != null ? file.getUploadedAt() : file.getCreatedAt());
+        }
+    }
 
-    private TransferEntity validateTransferRequest(String shareLink, String email, String accessToken) {
+
+    private TransferRecipientEntity validateTransferRequest(String shareLink, String email, String accessToken) {
         TransferEntity transfer = TransferEntity.find("shareLink", shareLink).firstResult();
         if(transfer == null){
             throw new ApiException(
@@ -96,6 +117,11 @@ public class TransferService {
             );
         }
 
+        return recipient;
+    }
+
+    private void recordDownload(TransferRecipientEntity recipient) {
+        TransferEntity transfer = recipient.getTransfer();
         int transferUpdated = TransferEntity.update(
                 "downloadCount = downloadCount + 1 WHERE id = ?1",
                 transfer.getId()
@@ -113,28 +139,94 @@ public class TransferService {
         if (recipientUpdated == 0) {
             log.errorf("Failed to update recipient download count for id: %s", recipient.getId());
         }
+    }
 
+    /**
+     * Validatori del contenuto del transfer per le richieste condizionali, senza leggere blob.
+     * Null se il transfer non è scaricabile da questo destinatario: l'errore preciso lo dà
+     * {@link #download}. Un 304 non deve scavalcare i controlli su upload e antivirus dei file.
+     */
+    @Transactional
+    public ContentValidators validators(String shareLink, String email, String accessToken) {
+        List<FileEntity> files = entityManager.createQuery(TRANSFER_VALIDATORS, FileEntity.class)
+                .setParameter(1, shareLink)
+                .setParameter(2, email)
+                .setParameter(3, accessToken)
+                .setParameter(4, LocalDateTime.now())
+                .getResultList();
+        if(files.isEmpty()){
+            return null;
+        }
+        files.forEach(fileService::checkDownloadable);
+        return validators(files.stream().map(FileVersion::of).toList());
+    }
 
-        return transfer;
+    /**
+     * Un solo file: ETag forte del file. Zip: ETag debole dai checksum dei file, perché lo zip
+     * viene ricostruito a ogni download e i suoi byte non sono garantiti identici.
+     */
+    private ContentValidators validators(List<FileVersion> files) {
+        if(files.size() == 1){
+            return ContentValidators.strong(files.get(0).checksum(), files.get(0).modified());
+        }
+        List<String> parts = new ArrayList<>(files.size());
+        LocalDateTime lastModified = null;
+        for(FileVersion file : files){
+            parts.add(file.id() + ":" + file.checksum());
+            if(lastModified == null || file.modified().isAfter(lastModified)){
+                lastModified = file.modified();
+            }
+        }
+        return ContentValidators.weak(parts, lastModified);
     }
 
-    @Transactional
-    public FileDataResponseDTO download(
+    /**
+     * Download di un transfer, anche per intervalli (Range). Un download viene contato solo
+     * se la risposta parte dal primo byte: le riprese di un download interrotto non consumano
+     * il limite di download. Validazione e conteggio sono in transazioni separate: il budget
+     * dei trasferimenti viene atteso senza tenere una connessione al database, e se il
+     * conteggio fallisce il budget già riservato viene restituito.
+     */
+    public PartialContentDTO download(
             @NotBlank @Size(min = 16, max = 16) String shareLink,
             @Email String email,
-            @Size(min = 1, max = 64) @NotBlank String accessToken) {
+            @Size(min = 1, max = 64) @NotBlank String accessToken,
+            String rangeHeader,
+            String ifRange) {
 
         log.infof("Downloading transfer with shareLink: %s for email: %s", shareLink, email);
 
         try {
-            TransferEntity transfer = validateTransferRequest(shareLink, email, accessToken);
+            TransferRecipientEntity recipient = QuarkusTransaction.requiringNew().call(() -> {
+                TransferRecipientEntity validated = validateTransferRequest(shareLink, email, accessToken);
+                validated.getTransfer().getFiles().forEach(file -> Hibernate.initialize(file.getCreatedBy()));
+                return validated;
+            });
+            TransferEntity transfer = recipient.getTransfer();
             List<FileEntity> files = transfer.getFiles();
 
+            PartialContentDTO content;
             if(files.size() == 1) {
-                return fileService.downloadSingleFile(files.get(0));
+                FileEntity file = files.get(0);
+                content = fileService.streamFile(file.getId().toString(), file.getCreatedBy().getKeycloakId(), rangeHeader, ifRange);
+            } else if(rangeHeader == null) {
+                // zip scritto direttamente sulla risposta mentre i file successivi vengono decifrati
+                content = new PartialContentDTO(transfer.getTitle().concat(".zip"), "application/zip", null,
+                        validators(files.stream().map(FileVersion::of).toList()), null, null, fileService.streamZip(files));
             } else {
-                return fileService.downloadAsZip(files, transfer.getTitle().concat(".zip"));
+                // per gli intervalli serve la dimensione: lo zip passa da uno spool
+                content = fileService.streamSpool(fileService.downloadAsZip(files, transfer.getTitle().concat(".zip")),
+                        validators(files.stream().map(FileVersion::of).toList()), rangeHeader, ifRange);
             }
+            if(content.coversFirstByte()){
+                try{
+                    QuarkusTransaction.requiringNew().run(() -> recordDownload(recipient));
+                }catch(RuntimeException e){
+                    content.release();
+                    throw e;
+                }
+            }
+            return content;
 
         } catch(ApiException e) {
             throw e;
@@ -207,6 +299,10 @@ public class TransferService {
                 log.warnf("File is deleted for id: %s", fileId);
                 continue;
             }
+            if(!fileEntity.getUploadStatus().isUsable()){
+                log.warnf("File upload not completed for id: %s", fileId);
+                continue;
+            }
             if(fileEntity.getCreatedBy().getId() != userEntity.getId()){
                 log.warnf("File does not belong to user for id: %s", fileId);
                 continue;
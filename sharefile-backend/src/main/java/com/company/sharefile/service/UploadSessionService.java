@@ -0,0 +1,498 @@
+package com.company.sharefile.service;
+
+import com.company.sharefile.config.ValidationConstants;
+import com.company.sharefile.dto.v1.records.request.UploadSessionRequestDTO;
+import com.company.sharefile.dto.v1.records.response.ByteRangeDTO;
+import com.company.sharefile.dto.v1.records.response.UploadSessionResponseDTO;
+import com.company.sharefile.entity.BlobEntity;
+import com.company.sharefile.entity.FileEntity;
+import com.company.sharefile.entity.UploadChunkEntity;
+import com.company.sharefile.entity.UserEntity;
+import com.company.sharefile.exception.ApiException;
+import com.company.sharefile.utils.PartialFingerprint;
+import com.company.sharefile.utils.UploadStatus;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import jakarta.transaction.Transactional;
+import jakarta.ws.rs.core.Response;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Upload riprendibili a chunk: ogni chunk viene cifrato come segmento indipendente
+ * e caricato come blocco Azure (stage), il commit finale compone il blob nell'ordine corretto.
+ * I chunk possono arrivare in parallelo e in qualsiasi ordine.
+ */
+@ApplicationScoped
+public class UploadSessionService {
+    @Inject
+    Logger log;
+
+    @Inject
+    AzureStorageService azureStorageService;
+
+    @Inject
+    EncryptionService encryptionService;
+
+    @Inject
+    KeyService keyService;
+
+    @Inject
+    UserService userService;
+
+    @Inject
+    FileService fileService;
+
+    @Inject
+    BlobService blobService;
+
+    @Inject
+    TransferBudgetService transferBudgetService;
+
+    @Inject
+    VirusScanService virusScanService;
+
+    @Inject
+    EntityManager entityManager;
+
+    @Inject
+    QuotaService quotaService;
+
+    @ConfigProperty(name = "sharefile.upload.session.min-chunk-size", defaultValue = "262144")
+    int minChunkSize;
+
+    @ConfigProperty(name = "sharefile.upload.session.max-chunk-size", defaultValue = "16777216")
+    int maxChunkSize;
+
+    // Oltre questa età la sessione viene eliminata dal job di pulizia: la prenotazione di quota deve durare altrettanto
+    @ConfigProperty(name = "sharefile.jobs.cleanup-upload-sessions.max-age-hours", defaultValue = "24")
+    int sessionMaxAgeHours;
+
+    // Limite Azure di blocchi per block blob
+    private static final int MAX_BLOCKS = 50_000;
+
+    void onStart(@Observes StartupEvent ev) {
+        relaxUploadStatusCheck();
+        QuarkusTransaction.requiringNew().run(UploadChunkEntity::markLegacyStaged);
+    }
+
+    /**
+     * Lo schema è aggiornato da Hibernate, che non modifica i vincoli esistenti: il check sui
+     * valori di upload_status creato prima dello stato COMMITTING lo rifiuterebbe.
+     */
+    private void relaxUploadStatusCheck() {
+        QuarkusTransaction.requiringNew().run(() -> entityManager.createNativeQuery(
+                "DO $$ DECLARE c text; BEGIN " +
+                        "FOR c IN SELECT con.conname FROM pg_constraint con " +
+                        "WHERE con.conrelid = 'files'::regclass AND con.contype = 'c' " +
+                        "AND pg_get_constraintdef(con.oid) LIKE '%upload_status%' " +
+                        "AND pg_get_constraintdef(con.oid) NOT LIKE '%COMMITTING%' LOOP " +
+                        "EXECUTE format('ALTER TABLE files DROP CONSTRAINT %I', c); " +
+                        "END LOOP; END $$").executeUpdate());
+    }
+
+    @Transactional
+    public UploadSessionResponseDTO createSession(UploadSessionRequestDTO request, String keycloakId) {
+        log.infof("creating upload session for file %s, keycloakId %s", request.fileName(), keycloakId);
+
+        UserEntity user = userService.findByKeycloakId(keycloakId);
+        if(user == null){
+            throw new ApiException(
+                    String.format("user with keycloakId %s not found", keycloakId),
+                    Response.Status.NOT_FOUND,
+                    "LAM-404-003"
+            );
+        }
+
+        long fileSize = request.fileSize();
+        if(fileSize > ValidationConstants.MAX_UPLOAD_FILE_SIZE){
+            throw new ApiException(
+                    String.format("File %s exceeds the maximum allowed size of 500MB", request.fileName()),
+                    Response.Status.BAD_REQUEST,
+                    "LAM-400-003"
+            );
+        }
+
+        int chunkSize = request.chunkSize();
+        if(chunkSize > maxChunkSize || (chunkSize < minChunkSize && chunkSize < fileSize)){
+            throw new ApiException(
+                    String.format("chunkSize must be between %d and %d bytes", minChunkSize, maxChunkSize),
+                    Response.Status.BAD_REQUEST,
+                    "LAM-400-004"
+            );
+        }
+
+        long totalChunks = totalChunks(fileSize, chunkSize);
+        if(totalChunks > MAX_BLOCKS){
+            throw new ApiException(
+                    String.format("Too many chunks (%d), max %d", totalChunks, MAX_BLOCKS),
+                    Response.Status.BAD_REQUEST,
+                    "LAM-400-004"
+            );
+        }
+
+        // lo spazio è riservato subito: una sessione senza quota fallisce prima del trasferimento, non al commit
+        UUID reservationId = quotaService.reserveDurable(user, fileSize, LocalDateTime.now().plusHours(sessionMaxAgeHours));
+
+        // Blob riservato alla sessione: il checksum viene assegnato solo dopo la verifica al commit
+        KeyService.DataKey dataKey = keyService.newDataKey(user);
+        BlobEntity blob = BlobEntity.builder()
+                .sizeBytes(fileSize)
+                .storagePath(fileService.generateStoragePath(user.getId()))
+                .encryptionKey(dataKey.wrappedKey())
+                .kek(dataKey.kek())
+                .encryptionIv(encryptionService.generateNoncePrefix())
+                .encryptionSegmentSize(chunkSize)
+                .encryptionAlgorithm(encryptionService.defaultSuite())
+                .refCount(1L)
+                .build();
+        blob.persist();
+
+        FileEntity session = FileEntity.builder()
+                .fileName(request.fileName().trim())
+                .fileSize(fileSize)
+                .mimeType(request.mimeType() != null ? request.mimeType() : ValidationConstants.DEFAULT_MIME_TYPE)
+                .checksum(request.checksum().toLowerCase())
+                .blob(blob)
+                .isEncrypted(true)
+                .uploadStatus(UploadStatus.PENDING)
+                .quotaReservationId(reservationId)
+                .createdBy(user)
+                .isVirusScanned(false)
+                .isDeleted(false)
+                .build();
+        session.persist();
+
+        log.infof("upload session %s created: %d chunks of %d bytes", session.getId(), totalChunks, chunkSize);
+        return toResponse(session, List.of());
+    }
+
+    public UploadSessionResponseDTO getSession(UUID sessionId, String keycloakId) {
+        FileEntity session = findSession(sessionId, keycloakId);
+        return toResponse(session, UploadChunkEntity.findByFileOrdered(session.getId()));
+    }
+
+    /**
+     * Riceve il chunk N: al massimo chunkSize byte in memoria, cifrati e caricati come blocco.
+     * Nessuna transazione resta aperta durante l'upload verso Azure.
+     */
+    public void uploadChunk(UUID sessionId, int chunkIndex, InputStream chunkData, String keycloakId) {
+        FileEntity session = findSession(sessionId, keycloakId);
+        if(session.getUploadStatus() != UploadStatus.PENDING && session.getUploadStatus() != UploadStatus.UPLOADING){
+            throw new ApiException(
+                    String.format("Upload session %s is %s", sessionId, session.getUploadStatus()),
+                    Response.Status.CONFLICT,
+                    "LAM-409-004"
+            );
+        }
+
+        BlobEntity blob = session.getBlob();
+        int totalChunks = totalChunks(session.getFileSize(), blob.getEncryptionSegmentSize());
+        if(chunkIndex < 0 || chunkIndex >= totalChunks){
+            throw new ApiException(
+                    String.format("Chunk index %d out of range [0, %d)", chunkIndex, totalChunks),
+                    Response.Status.BAD_REQUEST,
+                    "LAM-400-011"
+            );
+        }
+
+        int expectedSize = expectedChunkSize(session, chunkIndex);
+        String blockId = blockId(chunkIndex);
+        // chunk in chiaro e cifrato in memoria insieme
+        try(TransferBudgetService.Lease lease = transferBudgetService.acquire(2L * expectedSize, "upload chunk")){
+            byte[] plain = readChunk(chunkData, chunkIndex, expectedSize);
+            String checksum = sha256(plain);
+            String claimed = QuarkusTransaction.requiringNew().call(() ->
+                    UploadChunkEntity.claim(session.getId(), chunkIndex, expectedSize, blockId, checksum));
+            if(!checksum.equals(claimed)){
+                throw new ApiException(
+                        String.format("Chunk %d of session %s was already received with different content", chunkIndex, sessionId),
+                        Response.Status.CONFLICT,
+                        "LAM-409-009"
+                );
+            }
+            // stesso contenuto, stesso nonce: un nuovo invio produce lo stesso ciphertext
+            stageChunk(blob, plain, chunkIndex, totalChunks, blockId);
+        }
+
+        QuarkusTransaction.requiringNew().run(() -> {
+            UploadChunkEntity.markStaged(session.getId(), chunkIndex);
+            FileEntity.update("uploadStatus = ?1 where id = ?2 and uploadStatus = ?3",
+                    UploadStatus.UPLOADING, session.getId(), UploadStatus.PENDING);
+        });
+        log.debugf("chunk %d/%d stored for session %s", chunkIndex + 1, totalChunks, sessionId);
+    }
+
+    private byte[] readChunk(InputStream chunkData, int chunkIndex, int expectedSize) {
+        try{
+            byte[] plain = chunkData.readNBytes(expectedSize);
+            if(plain.length != expectedSize || chunkData.read() != -1){
+                throw new ApiException(
+                        String.format("Chunk %d must be exactly %d bytes", chunkIndex, expectedSize),
+                        Response.Status.BAD_REQUEST,
+                        "LAM-400-012"
+                );
+            }
+            return plain;
+        }catch(ApiException e){
+            throw e;
+        }catch(Exception e){
+            throw new ApiException(
+                    String.format("Error reading chunk %d: %s", chunkIndex, e.getMessage()),
+                    Response.Status.BAD_REQUEST,
+                    "LAM-400-002"
+            );
+        }
+    }
+
+    private void stageChunk(BlobEntity blob, byte[] plain, int chunkIndex, int totalChunks, String blockId) {
+        boolean lastChunk = chunkIndex == totalChunks - 1;
+        byte[] encrypted = encryptionService.encryptSegment(blob.getEncryptionAlgorithm(),
+                plain, plain.length, keyService.dataKey(blob), blob.getEncryptionIv(), chunkIndex, lastChunk);
+        azureStorageService.stageBlock(blob.getStoragePath(), blockId, encrypted);
+    }
+
+    private static String sha256(byte[] data) {
+        try{
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        }catch(Exception e){
+            throw new ApiException(
+                    String.format("Error hashing chunk: %s", e.getMessage()),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-003"
+            );
+        }
+    }
+
+    /**
+     * Compone il blob dai blocchi ricevuti e ne verifica il checksum rileggendolo
+     * e decifrandolo in streaming prima di rendere il file utilizzabile.
+     * La sessione viene prima rivendicata con un UPDATE condizionale (stato COMMITTING):
+     * di più commit concorrenti ne prosegue uno solo e la quota viene addebitata una volta.
+     */
+    public FileEntity commitSession(UUID sessionId, String keycloakId) {
+        FileEntity session = findSession(sessionId, keycloakId);
+        if(session.getUploadStatus().isUsable()){
+            return session;
+        }
+        if(session.getUploadStatus() == UploadStatus.FAILED || session.getUploadStatus() == UploadStatus.COMMITTING){
+            throw new ApiException(
+                    String.format("Upload session %s is %s", sessionId, session.getUploadStatus()),
+                    Response.Status.CONFLICT,
+                    "LAM-409-004"
+            );
+        }
+
+        BlobEntity blob = session.getBlob();
+        int totalChunks = totalChunks(session.getFileSize(), blob.getEncryptionSegmentSize());
+        List<UploadChunkEntity> chunks = UploadChunkEntity.findByFileOrdered(session.getId());
+        List<String> blockIds = new ArrayList<>(totalChunks);
+        for(UploadChunkEntity chunk : chunks){
+            if(chunk.getChunkIndex() != blockIds.size() || chunk.getSizeBytes() != expectedChunkSize(session, chunk.getChunkIndex())){
+                break;
+            }
+            blockIds.add(chunk.getBlockId());
+        }
+        if(blockIds.size() != totalChunks){
+            throw new ApiException(
+                    String.format("Upload session %s is incomplete: %d/%d chunks received", sessionId, blockIds.size(), totalChunks),
+                    Response.Status.CONFLICT,
+                    "LAM-409-005"
+            );
+        }
+
+        int claimed = QuarkusTransaction.requiringNew().call(() -> FileEntity.update(
+                "uploadStatus = ?1, commitStartedAt = ?2 where id = ?3 and uploadStatus in ?4",
+                UploadStatus.COMMITTING, LocalDateTime.now(), session.getId(), List.of(UploadStatus.PENDING, UploadStatus.UPLOADING)));
+        if(claimed == 0){
+            FileEntity current = findSession(sessionId, keycloakId);
+            if(current.getUploadStatus().isUsable()){
+                return current;
+            }
+            throw new ApiException(
+                    String.format("Upload session %s is %s", sessionId, current.getUploadStatus()),
+                    Response.Status.CONFLICT,
+                    "LAM-409-004"
+            );
+        }
+
+        try{
+            return commitClaimed(session, blob, blockIds, keycloakId);
+        }catch(RuntimeException e){
+            // commit non riuscito: la sessione torna disponibile per un nuovo tentativo
+            QuarkusTransaction.requiringNew().run(() -> FileEntity.update(
+                    "uploadStatus = ?1 where id = ?2 and uploadStatus = ?3",
+                    UploadStatus.UPLOADING, session.getId(), UploadStatus.COMMITTING));
+            throw e;
+        }
+    }
+
+    private FileEntity commitClaimed(FileEntity session, BlobEntity blob, List<String> blockIds, String keycloakId) {
+        UUID sessionId = session.getId();
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("originalFileName", session.getFileName());
+        metadata.put("checksum", session.getChecksum());
+        metadata.put("uploadedBy", keycloakId);
+        azureStorageService.commitBlockList(blob.getStoragePath(), blockIds, metadata);
+
+        PartialFingerprint fingerprint = new PartialFingerprint();
+        String checksum = readBackChecksum(sessionId, blob, fingerprint);
+        if(!checksum.equals(session.getChecksum())){
+            log.warnf("checksum mismatch for session %s: expected %s, got %s", sessionId, session.getChecksum(), checksum);
+            QuarkusTransaction.requiringNew().run(() -> {
+                FileEntity file = FileEntity.findById(session.getId(), LockModeType.PESSIMISTIC_WRITE);
+                if(file == null || file.getUploadStatus() != UploadStatus.COMMITTING){
+                    // sessione già rimossa dalla pulizia, che ha rilasciato anche il blob
+                    return;
+                }
+                UploadChunkEntity.delete("file.id", file.getId());
+                file.setUploadStatus(UploadStatus.FAILED);
+                file.setBlob(null);
+                blobService.release(blob);
+                quotaService.release(file.getQuotaReservationId(), file.getFileSize());
+            });
+            throw new ApiException(
+                    String.format("Checksum mismatch for upload session %s", sessionId),
+                    Response.Status.BAD_REQUEST,
+                    "LAM-400-007"
+            );
+        }
+
+        return QuarkusTransaction.requiringNew().call(() -> {
+            // il lock esclude la pulizia delle sessioni: un commit rimosso perché scaduto non prosegue
+            FileEntity file = FileEntity.findById(session.getId(), LockModeType.PESSIMISTIC_WRITE);
+            if(file == null || file.getUploadStatus() != UploadStatus.COMMITTING){
+                throw new ApiException(
+                        String.format("Upload session %s is no longer committing", sessionId),
+                        Response.Status.CONFLICT,
+                        "LAM-409-004"
+                );
+            }
+            // Contenuto già presente: il file punta al blob esistente e quello appena composto viene rilasciato
+            BlobEntity existing = blobService.acquireByChecksum(checksum);
+            if(existing != null){
+                file.setBlob(existing);
+                file.setUploadStatus(UploadStatus.DEDUPLICATED);
+                blobService.release(blob);
+            }else{
+                BlobEntity.update("checksum = ?1 where id = ?2", checksum, blob.getId());
+                file.setUploadStatus(UploadStatus.COMPLETED);
+            }
+            file.setPartialFingerprint(fingerprint.finish());
+            file.setUploadedAt(LocalDateTime.now());
+            virusScanService.enqueue(file);
+            UploadChunkEntity.delete("file.id", file.getId());
+            quotaService.commit(quotaService.resume(file.getCreatedBy().getId(), file.getQuotaReservationId(), file.getFileSize()),
+                    file.getFileSize());
+            log.infof("upload session %s committed: file %s", sessionId, file.getFileName());
+            return file;
+        });
+    }
+
+    private String readBackChecksum(UUID sessionId, BlobEntity blob, OutputStream fingerprint) {
+        // buffer di lettura dello stream Azure più la finestra di segmenti per la decifratura
+        long bufferBytes = azureStorageService.streamBufferBytes(blob.getSizeBytes())
+                + encryptionService.streamBufferBytes(blob.getEncryptionSegmentSize());
+        try(TransferBudgetService.Lease lease = transferBudgetService.acquire(bufferBytes, "upload verification");
+            InputStream encrypted = azureStorageService.openInputStream(blob.getStoragePath())){
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            OutputStream sink = new DigestOutputStream(fingerprint, digest);
+            encryptionService.decryptSegments(blob.getEncryptionAlgorithm(), encrypted, keyService.dataKey(blob), blob.getEncryptionIv(),
+                    blob.getEncryptionSegmentSize(), sink);
+            return HexFormat.of().formatHex(digest.digest());
+        }catch(ApiException e){
+            throw e;
+        }catch(Exception e){
+            throw new ApiException(
+                    String.format("Error verifying upload session %s: %s", sessionId, e.getMessage()),
+                    Response.Status.INTERNAL_SERVER_ERROR,
+                    "LAM-500-003"
+            );
+        }
+    }
+
+    private FileEntity findSession(UUID sessionId, String keycloakId) {
+        FileEntity session = FileEntity.find(
+                        "from FileEntity f left join fetch f.blob where f.id = ?1 and f.createdBy.keycloakId = ?2 and f.isDeleted = false",
+                        sessionId, keycloakId)
+                .firstResult();
+        if(session == null || session.getBlob() == null || session.getBlob().getEncryptionSegmentSize() == null){
+            throw new ApiException(
+                    String.format("Upload session %s not found", sessionId),
+                    Response.Status.NOT_FOUND,
+                    "LAM-404-005"
+            );
+        }
+        return session;
+    }
+
+    private UploadSessionResponseDTO toResponse(FileEntity session, List<UploadChunkEntity> chunks) {
+        int chunkSize = session.getBlob().getEncryptionSegmentSize();
+        List<Integer> received = new ArrayList<>(chunks.size());
+        List<ByteRangeDTO> ranges = new ArrayList<>();
+        long rangeStart = -1;
+        long rangeEnd = -1;
+        for(UploadChunkEntity chunk : chunks){
+            received.add(chunk.getChunkIndex());
+            long start = (long) chunk.getChunkIndex() * chunkSize;
+            long end = start + chunk.getSizeBytes() - 1;
+            if(rangeStart >= 0 && start == rangeEnd + 1){
+                rangeEnd = end;
+                continue;
+            }
+            if(rangeStart >= 0){
+                ranges.add(new ByteRangeDTO(rangeStart, rangeEnd));
+            }
+            rangeStart = start;
+            rangeEnd = end;
+        }
+        if(rangeStart >= 0){
+            ranges.add(new ByteRangeDTO(rangeStart, rangeEnd));
+        }
+
+        return new UploadSessionResponseDTO(
+                session.getId(),
+                session.getFileName(),
+                session.getFileSize(),
+                chunkSize,
+                totalChunks(session.getFileSize(), chunkSize),
+                session.getUploadStatus(),
+                received,
+                ranges
+        );
+    }
+
+    private int expectedChunkSize(FileEntity session, int chunkIndex) {
+        int segmentSize = session.getBlob().getEncryptionSegmentSize();
+        long offset = (long) chunkIndex * segmentSize;
+        return (int) Math.min(segmentSize, session.getFileSize() - offset);
+    }
+
+    private static int totalChunks(long fileSize, int chunkSize) {
+        return (int) ((fileSize + chunkSize - 1) / chunkSize);
+    }
+
+    // Azure richiede block id Base64 tutti della stessa lunghezza
+    private static String blockId(int chunkIndex) {
+        return Base64.getEncoder().encodeToString(String.format("chunk-%06d", chunkIndex).getBytes(StandardCharsets.UTF_8));
+    }
+}
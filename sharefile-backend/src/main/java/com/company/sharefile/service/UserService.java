@@ -71,6 +71,7 @@ public class UserService {
             newUser.setIsActive(true);
             newUser.setStoragePlan(planService.getPlanByType(PlanType.BASIC));
             newUser.setUsedStorageBytes(0L);
+            newUser.setReservedStorageBytes(0L);
 
             userRepository.persist(newUser);
 
@@ -142,71 +143,81 @@ public class UserService {
         }
     }
 
+    /**
+     * Un'unica query: quota del piano meno spazio usato e riservato dagli upload in corso.
+     */
     public boolean hasAvailableQuota(@NotBlank String keycloakId, long requiredBytes){
-        UserEntity user = userRepository.findByKeycloakId(keycloakId);
-        if(user == null ){
-            throw new ApiException(
-                    String.format("User not found in local DB for keycloakId: %s", keycloakId),
-                    jakarta.ws.rs.core.Response.Status.NOT_FOUND,
-                    "LAM-404-002"
-            );
-        }
-        long availableBytes = user.getStoragePlan().getStorageQuotaBytes() - user.getUsedStorageBytes();
-        return availableBytes >= requiredBytes;
+        return availableBytes(keycloakId) >= requiredBytes;
     }
 
     public long getAvailableStorage(@NotBlank String keycloakId){
-        UserEntity user = userRepository.findByKeycloakId(keycloakId);
-        if(user == null ){
+        return Math.max(0, availableBytes(keycloakId));
+    }
+
+    private long availableBytes(String keycloakId){
+        Long available = userRepository.getEntityManager().createQuery(
+                        "select p.storageQuotaBytes - u.usedStorageBytes - u.reservedStorageBytes " +
+                                "from UserEntity u join u.storagePlan p where u.keycloakId = ?1", Long.class)
+                .setParameter(1, keycloakId)
+                .getResultStream()
+                .findFirst()
+                .orElse(null);
+        if(available == null){
             throw new ApiException(
                     String.format("User not found in local DB for keycloakId: %s", keycloakId),
                     jakarta.ws.rs.core.Response.Status.NOT_FOUND,
                     "LAM-404-002"
             );
         }
-        return Math.max(0,user.getStoragePlan().getStorageQuotaBytes() - user.getUsedStorageBytes());
+        return available;
     }
 
+    /**
+     * Incremento atomico e condizionale: fallisce se supera la quota del piano
+     * (contando anche lo spazio riservato dagli upload in corso).
+     */
     @Transactional
     public void incrementStorageUsed(@NotBlank String keycloakId, long bytesToAdd){
         log.infof("UserService: Incrementing storage used for user with keycloakId: %s, bytesToAdd: %d", keycloakId, bytesToAdd);
-        UserEntity user = findByKeycloakId(keycloakId);
-        if(user == null ){
-            throw new ApiException(
-                    String.format("User not found in local DB for keycloakId: %s", keycloakId),
-                    Response.Status.NOT_FOUND,
-                    "LAM-404-002"
-            );
-        }
-
-        long newStorageUsed = user.getUsedStorageBytes() + bytesToAdd;
-        if(newStorageUsed > user.getStoragePlan().getStorageQuotaBytes()){
+        int updated = userRepository.getEntityManager().createNativeQuery(
+                        "UPDATE users u SET used_storage_bytes = u.used_storage_bytes + ?2 " +
+                                "FROM storage_plans p " +
+                                "WHERE u.keycloak_id = ?1 AND p.id = u.storage_plan_id " +
+                                "AND u.used_storage_bytes + u.reserved_storage_bytes + ?2 <= p.storage_quota_bytes")
+                .setParameter(1, keycloakId)
+                .setParameter(2, bytesToAdd)
+                .executeUpdate();
+        if(updated == 0){
+            if(findByKeycloakId(keycloakId) == null){
+                throw new ApiException(
+                        String.format("User not found in local DB for keycloakId: %s", keycloakId),
+                        Response.Status.NOT_FOUND,
+                        "LAM-404-002"
+                );
+            }
             throw new ApiException(
-                    String.format("Storage quota exceeded. Used: %d bytes, Available: %d bytes",newStorageUsed, user.getStoragePlan().getStorageQuotaBytes()),
+                    String.format("Storage quota exceeded. Required: %d bytes", bytesToAdd),
                     Response.Status.BAD_REQUEST,
                     "LAM-400-003"
             );
         }
-        user.setUsedStorageBytes(newStorageUsed);
-        userRepository.persist(user);
     }
 
     @Transactional
     public void decrementStorageUsed(@NotBlank String keycloakId, long bytesToSubtract){
         log.infof("UserService: Decrementing storage used for user with keycloakId: %s, bytesToSubtract: %d", keycloakId, bytesToSubtract);
-        UserEntity user = userRepository.findByKeycloakId(keycloakId);
-        if(user == null ){
+        int updated = userRepository.getEntityManager().createNativeQuery(
+                        "UPDATE users SET used_storage_bytes = greatest(used_storage_bytes - ?2, 0) WHERE keycloak_id = ?1")
+                .setParameter(1, keycloakId)
+                .setParameter(2, bytesToSubtract)
+                .executeUpdate();
+        if(updated == 0){
             throw new ApiException(
                     String.format("User not found in local DB for keycloakId: %s", keycloakId),
                     Response.Status.NOT_FOUND,
                     "LAM-404-002"
             );
         }
-
-        long newStorageUsed = Math.max(0, user.getUsedStorageBytes() - bytesToSubtract);
-
-        user.setUsedStorageBytes(newStorageUsed);
-        userRepository.persist(user);
     }
 
     public QuotaInfo getCurrentUserQuota(){
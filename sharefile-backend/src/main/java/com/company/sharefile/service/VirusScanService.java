@@ -0,0 +1,316 @@
+package com.company.sharefile.service;
+
+import com.company.sharefile.config.ValidationConstants;
+import com.company.sharefile.entity.FileEntity;
+import com.company.sharefile.entity.ScanJobEntity;
+import com.company.sharefile.exception.ApiException;
+import com.company.sharefile.exception.ServiceUnavailableException;
+import com.company.sharefile.utils.ScanJobStatus;
+import com.company.sharefile.utils.TransferThreads;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.arc.Arc;
+import io.quarkus.arc.ManagedContext;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.core.Response;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scansione antivirus asincrona: l'upload accoda un job nella stessa transazione del file e
+ * risponde subito; un pool di worker prende i job dalla coda su Postgres, decifra il file in
+ * streaming verso lo scanner e accumula i verdetti, che vengono scritti su FileEntity a lotti.
+ * Il verdetto vale per il contenuto: tutti i file con lo stesso checksum lo ricevono insieme.
+ */
+@ApplicationScoped
+public class VirusScanService {
+    @Inject
+    Logger log;
+
+    @Inject
+    FileService fileService;
+
+    @Inject
+    VirusScanner scanner;
+
+    @Inject
+    TransferBudgetService transferBudgetService;
+
+    @Inject
+    MeterRegistry meterRegistry;
+
+    public static final String RESULT_CLEAN = "CLEAN";
+    public static final String RESULT_INFECTED = "INFECTED";
+    public static final String RESULT_FAILED = "FAILED";
+
+    /**
+     * ALLOW: nessun controllo; BLOCK_INFECTED: blocca solo i file infetti;
+     * REQUIRE_CLEAN: scaricabili solo dopo una scansione pulita.
+     */
+    public enum DownloadPolicy {
+        ALLOW,
+        BLOCK_INFECTED,
+        REQUIRE_CLEAN
+    }
+
+    @ConfigProperty(name = "sharefile.scan.enabled", defaultValue = "true")
+    boolean enabled;
+
+    @ConfigProperty(name = "sharefile.scan.concurrency", defaultValue = "2")
+    int concurrency;
+
+    @ConfigProperty(name = "sharefile.scan.max-attempts", defaultValue = "3")
+    int maxAttempts;
+
+    // Attesa prima di un nuovo tentativo, moltiplicata per il numero di tentativi fatti
+    @ConfigProperty(name = "sharefile.scan.retry-backoff", defaultValue = "1M")
+    Duration retryBackoff;
+
+    // Job RUNNING da più di così vengono rimessi in coda (worker o istanza terminati)
+    @ConfigProperty(name = "sharefile.scan.lock-timeout", defaultValue = "30M")
+    Duration lockTimeout;
+
+    @ConfigProperty(name = "sharefile.scan.download-policy", defaultValue = "BLOCK_INFECTED")
+    DownloadPolicy downloadPolicy;
+
+    @ConfigProperty(name = "quarkus.virtual-threads.enabled", defaultValue = "true")
+    boolean virtualThreads;
+
+    private ExecutorService scanExecutor;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Queue<ScanOutcome> outcomes = new ConcurrentLinkedQueue<>();
+    private Counter cleanCounter;
+    private Counter infectedCounter;
+    private Counter failedCounter;
+
+    void onStart(@Observes StartupEvent ev) {
+        scanExecutor = TransferThreads.fixedPool("virus-scan", concurrency, virtualThreads);
+        cleanCounter = meterRegistry.counter("sharefile.scan.results", "result", "clean");
+        infectedCounter = meterRegistry.counter("sharefile.scan.results", "result", "infected");
+        failedCounter = meterRegistry.counter("sharefile.scan.results", "result", "failed");
+        meterRegistry.gauge("sharefile.scan.in-flight", inFlight);
+        log.infof("virus scan pipeline %s with scanner %s, concurrency %d",
+                enabled ? "enabled" : "disabled", scanner.name(), concurrency);
+    }
+
+    void onStop(@Observes ShutdownEvent ev) {
+        if(scanExecutor != null){
+            scanExecutor.shutdownNow();
+        }
+        // i verdetti già calcolati non vanno persi; i job interrotti tornano in coda dopo lockTimeout
+        flushResults();
+    }
+
+    /**
+     * Accoda la scansione di un file appena reso utilizzabile, nella transazione del chiamante.
+     * Se lo stesso contenuto è già stato scansionato il verdetto viene copiato senza nuovo job.
+     */
+    public void enqueue(FileEntity file) {
+        FileEntity scanned = FileEntity.find(
+                        "checksum = ?1 and isVirusScanned = true and id <> ?2", file.getChecksum(), file.getId())
+                .firstResult();
+        if(scanned != null){
+            file.setIsVirusScanned(true);
+            file.setVirusScanResult(scanned.getVirusScanResult());
+            return;
+        }
+        file.setIsVirusScanned(false);
+        file.setVirusScanResult(ValidationConstants.DEFAULT_VIRUS_SCAN_RESULT);
+        ScanJobEntity.builder()
+                .file(file)
+                .status(ScanJobStatus.QUEUED)
+                .build()
+                .persist();
+    }
+
+    /**
+     * Controllo da fare prima di servire il contenuto di un file.
+     */
+    public void checkDownloadAllowed(FileEntity file) {
+        if(downloadPolicy == DownloadPolicy.ALLOW){
+            return;
+        }
+        String result = file.getVirusScanResult();
+        if(Boolean.TRUE.equals(file.getIsVirusScanned()) && result != null && result.startsWith(RESULT_INFECTED)){
+            throw new ApiException(
+                    String.format("File with ID %s has been flagged by the virus scan", file.getId()),
+                    Response.Status.FORBIDDEN,
+                    "LAM-403-002"
+            );
+        }
+        if(downloadPolicy == DownloadPolicy.REQUIRE_CLEAN && !Boolean.TRUE.equals(file.getIsVirusScanned())){
+            throw new ApiException(
+                    String.format("File with ID %s has not been virus scanned yet", file.getId()),
+                    Response.Status.CONFLICT,
+                    "LAM-409-008"
+            );
+        }
+    }
+
+    @Scheduled(every = "${sharefile.scan.poll-interval:5s}", identity = "virus-scan-poll",
+            concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void poll() {
+        if(!enabled){
+            return;
+        }
+        int free = concurrency - inFlight.get();
+        if(free <= 0){
+            return;
+        }
+        List<UUID> claimed = QuarkusTransaction.requiringNew().call(() -> {
+            int requeued = ScanJobEntity.requeueStale(LocalDateTime.now().minus(lockTimeout));
+            if(requeued > 0){
+                log.warnf("%d stale scan jobs requeued", requeued);
+            }
+            return ScanJobEntity.claim(free);
+        });
+        for(UUID jobId : claimed){
+            inFlight.incrementAndGet();
+            scanExecutor.submit(() -> {
+                try{
+                    outcomes.add(scan(jobId));
+                }finally{
+                    inFlight.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    private ScanOutcome scan(UUID jobId) {
+        // i worker non hanno un request context: serve per le letture Panache durante il download
+        ManagedContext requestContext = Arc.container().requestContext();
+        requestContext.activate();
+        try{
+            FileEntity file = QuarkusTransaction.requiringNew().call(() -> {
+                ScanJobEntity job = ScanJobEntity.<ScanJobEntity>find(
+                                "from ScanJobEntity j join fetch j.file f left join fetch f.blob where j.id = ?1", jobId)
+                        .firstResult();
+                return job != null ? job.getFile() : null;
+            });
+            if(file == null || file.getIsDeleted() || !file.getUploadStatus().isUsable()){
+                return ScanOutcome.skipped(jobId);
+            }
+
+            try(TransferBudgetService.Lease lease = transferBudgetService.acquire(fileService.downloadBufferBytes(file), "virus scan");
+                VirusScanner.ScanSession session = scanner.open(file.getFileName())){
+                fileService.writeFile(file, session);
+                VirusScanner.ScanResult result = session.verdict();
+                log.infof("virus scan of file %s: %s", file.getId(), result.infected() ? result.signature() : RESULT_CLEAN);
+                return ScanOutcome.scanned(jobId, file.getId(), file.getChecksum(), result);
+            }
+        }catch(ServiceUnavailableException e){
+            // budget dei trasferimenti esaurito: non è un errore della scansione
+            log.debugf("virus scan job %s deferred: %s", jobId, e.getMessage());
+            return ScanOutcome.deferred(jobId);
+        }catch(Exception e){
+            log.warnf(e, "virus scan job %s failed", jobId);
+            return ScanOutcome.failed(jobId, e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+        }finally{
+            requestContext.terminate();
+        }
+    }
+
+    /**
+     * Scrive i verdetti accumulati in un'unica transazione.
+     */
+    @Scheduled(every = "${sharefile.scan.flush-interval:2s}", identity = "virus-scan-flush",
+            concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void flushResults() {
+        List<ScanOutcome> batch = new ArrayList<>();
+        ScanOutcome outcome;
+        while((outcome = outcomes.poll()) != null){
+            batch.add(outcome);
+        }
+        if(batch.isEmpty()){
+            return;
+        }
+        try{
+            QuarkusTransaction.requiringNew().run(() -> batch.forEach(this::apply));
+            log.debugf("%d virus scan results saved", batch.size());
+        }catch(Exception e){
+            // i job restano RUNNING e verranno ripresi dopo lockTimeout
+            log.errorf(e, "Error saving %d virus scan results", batch.size());
+        }
+    }
+
+    private void apply(ScanOutcome outcome) {
+        ScanJobEntity job = ScanJobEntity.findById(outcome.jobId());
+        if(job == null){
+            return;
+        }
+
+        if(outcome.deferred()){
+            // torna in coda senza consumare il tentativo preso da claim
+            job.setStatus(ScanJobStatus.QUEUED);
+            job.setAttempts(job.getAttempts() - 1);
+            job.setAvailableAt(LocalDateTime.now().plus(retryBackoff));
+            return;
+        }
+
+        if(outcome.error() != null){
+            if(job.getAttempts() < maxAttempts){
+                job.setStatus(ScanJobStatus.QUEUED);
+                job.setAvailableAt(LocalDateTime.now().plus(retryBackoff.multipliedBy(job.getAttempts())));
+                job.setLastError(outcome.error().length() > 512 ? outcome.error().substring(0, 512) : outcome.error());
+                return;
+            }
+            FileEntity.update("virusScanResult = ?1 where id = ?2", RESULT_FAILED, job.getFile().getId());
+            failedCounter.increment();
+            job.delete();
+            return;
+        }
+
+        if(outcome.result() != null){
+            String result = outcome.result().infected()
+                    ? truncate(RESULT_INFECTED + ": " + outcome.result().signature())
+                    : RESULT_CLEAN;
+            FileEntity.update("isVirusScanned = true, virusScanResult = ?1 where id = ?2 or (checksum = ?3 and isVirusScanned = false)",
+                    result, outcome.fileId(), outcome.checksum());
+            ScanJobEntity.delete("status = ?1 and file.id in (select f.id from FileEntity f where f.checksum = ?2)",
+                    ScanJobStatus.QUEUED, outcome.checksum());
+            (outcome.result().infected() ? infectedCounter : cleanCounter).increment();
+        }
+        job.delete();
+    }
+
+    private static String truncate(String value) {
+        return value.length() > ValidationConstants.MAX_VIRUS_SCAN_RESULT_LENGTH
+                ? value.substring(0, ValidationConstants.MAX_VIRUS_SCAN_RESULT_LENGTH)
+                : value;
+    }
+
+    private record ScanOutcome(UUID jobId, UUID fileId, String checksum, VirusScanner.ScanResult result, String error,
+                               boolean deferred) {
+        static ScanOutcome scanned(UUID jobId, UUID fileId, String checksum, VirusScanner.ScanResult result) {
+            return new ScanOutcome(jobId, fileId, checksum, result, null, false);
+        }
+
+        static ScanOutcome skipped(UUID jobId) {
+            return new ScanOutcome(jobId, null, null, null, null, false);
+        }
+
+        static ScanOutcome failed(UUID jobId, String error) {
+            return new ScanOutcome(jobId, null, null, null, error, false);
+        }
+
+        static ScanOutcome deferred(UUID jobId) {
+            return new ScanOutcome(jobId, null, null, null, null, true);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.company.sharefile.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Motore antivirus usato dalla pipeline di scansione. Il contenuto in chiaro viene scritto
+ * in una sessione (come l'INSTREAM di clamd) e il verdetto è disponibile a fine scrittura.
+ * Per sostituire lo scanner locale basta un altro bean che implementi questa interfaccia.
+ */
+public interface VirusScanner {
+
+    String name();
+
+    ScanSession open(String fileName) throws IOException;
+
+    abstract class ScanSession extends OutputStream {
+        /**
+         * Da chiamare dopo aver scritto tutto il contenuto.
+         */
+        public abstract ScanResult verdict() throws IOException;
+    }
+
+    /**
+     * @param signature nome della firma rilevata, null se il contenuto è pulito
+     */
+    record ScanResult(boolean infected, String signature) {
+        public static ScanResult clean() {
+            return new ScanResult(false, null);
+        }
+
+        public static ScanResult infected(String signature) {
+            return new ScanResult(true, signature);
+        }
+    }
+}
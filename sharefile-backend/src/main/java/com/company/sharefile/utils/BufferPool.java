@@ -0,0 +1,33 @@
+package com.company.sharefile.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool di buffer di dimensione fissa riusati tra le richieste: evita di allocare
+ * array grandi e di breve vita a ogni trasferimento. Se il pool è vuoto si alloca,
+ * se è pieno il buffer restituito viene lasciato al GC.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final ArrayBlockingQueue<byte[]> buffers;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public byte[] take() {
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    public void give(byte[] buffer) {
+        if (buffer.length == bufferSize) {
+            buffers.offer(buffer);
+        }
+    }
+}
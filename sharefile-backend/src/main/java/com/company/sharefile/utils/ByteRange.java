@@ -0,0 +1,180 @@
+package com.company.sharefile.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Intervallo di byte di una richiesta HTTP Range, estremi inclusi.
+ */
+public record ByteRange(long start, long end) {
+
+    // Oltre questo numero di intervalli la richiesta viene servita per intero (RFC 9110, 14.2)
+    public static final int MAX_RANGES = 16;
+
+    private static final int COPY_BUFFER = 8192;
+
+    /**
+     * Scrive su output la parte di contenuto indicata da range.
+     */
+    @FunctionalInterface
+    public interface Writer {
+        void write(ByteRange range, OutputStream output) throws IOException;
+    }
+
+    public long length() {
+        return end - start + 1;
+    }
+
+    public String contentRange(long size) {
+        return String.format("bytes %d-%d/%d", start, end, size);
+    }
+
+    public static String unsatisfiedContentRange(long size) {
+        return String.format("bytes */%d", size);
+    }
+
+    /**
+     * Come {@link #parse(String, long)}, ma con If-Range: se il validatore non corrisponde
+     * all'ETag attuale (o la risorsa non ne ha uno) si risponde con il contenuto intero.
+     * Le date non sono supportate come validatore.
+     */
+    public static List<ByteRange> parse(String header, String ifRange, String etag, long size) {
+        if (ifRange != null && (etag == null || !etag.equals(ifRange.trim()))) {
+            return null;
+        }
+        return parse(header, size);
+    }
+
+    /**
+     * Interpreta l'header Range per una risorsa di size byte.
+     *
+     * Gli intervalli vengono ordinati e quelli sovrapposti o contigui uniti (RFC 9110, 14.2):
+     * nessun byte viene inviato due volte e il primo intervallo è quello che parte più in basso.
+     *
+     * @return null se l'header manca o non è valido (si risponde con il contenuto intero),
+     *         lista vuota se nessun intervallo è soddisfacibile (416)
+     */
+    public static List<ByteRange> parse(String header, long size) {
+        if (header == null || !header.trim().toLowerCase().startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.trim().substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            String value = spec.trim();
+            int dash = value.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            String first = value.substring(0, dash).trim();
+            String last = value.substring(dash + 1).trim();
+            try {
+                if (first.isEmpty()) {
+                    // suffisso: gli ultimi N byte
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && size > 0) {
+                        ranges.add(new ByteRange(Math.max(0, size - suffix), size - 1));
+                    }
+                    continue;
+                }
+                long start = Long.parseLong(first);
+                long end = last.isEmpty() ? size - 1 : Long.parseLong(last);
+                if (start < 0 || (!last.isEmpty() && end < start)) {
+                    return null;
+                }
+                if (start < size) {
+                    ranges.add(new ByteRange(start, Math.min(end, size - 1)));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return coalesce(ranges);
+    }
+
+    private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        List<ByteRange> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingLong(ByteRange::start));
+        List<ByteRange> merged = new ArrayList<>(sorted.size());
+        ByteRange current = sorted.get(0);
+        for (ByteRange next : sorted.subList(1, sorted.size())) {
+            if (next.start() <= current.end() + 1) {
+                current = new ByteRange(current.start(), Math.max(current.end(), next.end()));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    /**
+     * Copia length byte di in su out dopo averne saltati skip.
+     */
+    public static void transfer(InputStream in, long skip, long length, OutputStream out) throws IOException {
+        in.skipNBytes(skip);
+        byte[] buffer = new byte[(int) Math.min(COPY_BUFFER, Math.max(1, length))];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException(String.format("content ended %d bytes before the end of the range", remaining));
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    public static String newBoundary() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    /**
+     * Lunghezza del body multipart/byteranges, da mandare come Content-Length.
+     */
+    public static long multipartLength(List<ByteRange> ranges, String boundary, String contentType, long size) {
+        long length = closingDelimiter(boundary).length;
+        for (ByteRange range : ranges) {
+            length += range.partHeader(boundary, contentType, size).length + range.length();
+        }
+        return length;
+    }
+
+    /**
+     * Body multipart/byteranges (RFC 9110, 14.6): una parte per intervallo, nell'ordine di {@link #parse}.
+     */
+    public static void writeMultipart(List<ByteRange> ranges, String boundary, String contentType, long size,
+                                      Writer writer, OutputStream output) throws IOException {
+        for (ByteRange range : ranges) {
+            output.write(range.partHeader(boundary, contentType, size));
+            writer.write(range, output);
+        }
+        output.write(closingDelimiter(boundary));
+    }
+
+    private byte[] partHeader(String boundary, String contentType, long size) {
+        return String.format("\r\n--%s\r\nContent-Type: %s\r\nContent-Range: %s\r\n\r\n",
+                boundary, contentType, contentRange(size)).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] closingDelimiter(String boundary) {
+        return String.format("\r\n--%s--\r\n", boundary).getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,36 @@
+package com.company.sharefile.utils;
+
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Indice di una cache limitata per peso (byte), con politica di eviction intercambiabile.
+ * L'indice decide solo cosa tenere: chi lo usa libera la risorsa associata (file su disco)
+ * nella callback di eviction, che non viene chiamata per le rimozioni esplicite.
+ */
+public interface CacheIndex<K, V> {
+
+    /**
+     * Valore in cache, null se assente. Conta come accesso per la politica di eviction.
+     */
+    V get(K key);
+
+    /**
+     * @return il valore sostituito, null se la chiave non c'era
+     */
+    V put(K key, V value);
+
+    V remove(K key);
+
+    /**
+     * @param policy lru oppure tinylfu (W-TinyLFU: protegge le voci usate spesso dalle
+     *               letture occasionali di contenuti grandi)
+     */
+    static <K, V> CacheIndex<K, V> create(String policy, long maxWeight, ToLongFunction<V> weigher, BiConsumer<K, V> onEvict) {
+        return switch (policy.trim().toLowerCase()) {
+            case "lru" -> new LruCacheIndex<>(maxWeight, weigher, onEvict);
+            case "tinylfu", "w-tinylfu" -> new TinyLfuCacheIndex<>(maxWeight, weigher, onEvict);
+            default -> throw new IllegalStateException("Unknown cache eviction policy: " + policy);
+        };
+    }
+}
@@ -0,0 +1,93 @@
+package com.company.sharefile.utils;
+
+import com.company.sharefile.exception.ApiException;
+import jakarta.ws.rs.core.Response;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * InputStream che calcola lo SHA-256 dei byte letti e, a fine stream, lo confronta
+ * con quello atteso insieme alla dimensione: in caso di differenza la lettura fallisce
+ * prima che chi consuma lo stream possa considerare il contenuto completo.
+ */
+public class ChecksumVerifyingInputStream extends FilterInputStream {
+    private final String expectedChecksum;
+    private final long expectedSize;
+    private final MessageDigest digest;
+    private long count;
+    private boolean verified;
+    private boolean mismatch;
+
+    public ChecksumVerifyingInputStream(InputStream in, String expectedChecksum, long expectedSize) {
+        super(in);
+        this.expectedChecksum = expectedChecksum.toLowerCase();
+        this.expectedSize = expectedSize;
+        try{
+            this.digest = MessageDigest.getInstance("SHA-256");
+        }catch(NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean isMismatch() {
+        return mismatch;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b == -1) {
+            verify();
+        } else {
+            digest.update((byte) b);
+            count++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n == -1) {
+            verify();
+        } else if (n > 0) {
+            digest.update(b, off, n);
+            count += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // i byte saltati non verrebbero hashati
+        int read = read(new byte[(int) Math.min(n, 8192)]);
+        return Math.max(read, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void verify() {
+        if (verified) {
+            return;
+        }
+        verified = true;
+        String checksum = HexFormat.of().formatHex(digest.digest());
+        if (count != expectedSize || !checksum.equals(expectedChecksum)) {
+            mismatch = true;
+            throw new ApiException(
+                    String.format("Uploaded content does not match: expected %d bytes with checksum %s, got %d bytes with checksum %s",
+                            expectedSize, expectedChecksum, count, checksum),
+                    Response.Status.BAD_REQUEST,
+                    "LAM-400-010"
+            );
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.company.sharefile.utils;
+
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * Algoritmi AEAD con cui può essere cifrato un blob. L'id è il valore salvato in
+ * blobs.encryption_algorithm: un blob si decifra sempre con la suite con cui è stato scritto.
+ * Tutte le suite usano chiavi da 256 bit, nonce da 12 byte e tag da 16 byte, quindi il
+ * layout dei segmenti è lo stesso.
+ */
+public enum CipherSuite {
+
+    // Formato legacy: IV + ciphertext + tag, un solo messaggio GCM
+    AES_256_GCM("AES-256-GCM", "AES", "AES/GCM/NoPadding", false),
+    AES_256_GCM_STREAM("AES-256-GCM-STREAM", "AES", "AES/GCM/NoPadding", true),
+    CHACHA20_POLY1305_STREAM("CHACHA20-POLY1305-STREAM", "ChaCha20", "ChaCha20-Poly1305", true);
+
+    public static final int TAG_BYTES = 16;
+
+    private final String id;
+    private final String keyAlgorithm;
+    private final String transformation;
+    private final boolean segmented;
+
+    CipherSuite(String id, String keyAlgorithm, String transformation, boolean segmented) {
+        this.id = id;
+        this.keyAlgorithm = keyAlgorithm;
+        this.transformation = transformation;
+        this.segmented = segmented;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    public String getTransformation() {
+        return transformation;
+    }
+
+    public boolean isSegmented() {
+        return segmented;
+    }
+
+    public AlgorithmParameterSpec parameterSpec(byte[] nonce) {
+        return keyAlgorithm.equals("AES") ? new GCMParameterSpec(TAG_BYTES * 8, nonce) : new IvParameterSpec(nonce);
+    }
+
+    /**
+     * Risolve l'id salvato sul blob, accettando le varianti scritte dalle versioni precedenti.
+     */
+    public static CipherSuite fromId(String id) {
+        if (id == null) {
+            return null;
+        }
+        for (CipherSuite suite : values()) {
+            if (suite.id.equalsIgnoreCase(id)) {
+                return suite;
+            }
+        }
+        if (id.equalsIgnoreCase("AES-GCM-256")) {
+            return AES_256_GCM;
+        }
+        throw new IllegalArgumentException("Unknown cipher suite: " + id);
+    }
+}
@@ -0,0 +1,22 @@
+package com.company.sharefile.utils;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+/**
+ * Salva la suite con il suo id canonico ("AES-256-GCM-STREAM") invece del nome dell'enum,
+ * compatibile con i valori già presenti nella colonna.
+ */
+@Converter
+public class CipherSuiteConverter implements AttributeConverter<CipherSuite, String> {
+
+    @Override
+    public String convertToDatabaseColumn(CipherSuite suite) {
+        return suite != null ? suite.getId() : null;
+    }
+
+    @Override
+    public CipherSuite convertToEntityAttribute(String id) {
+        return CipherSuite.fromId(id);
+    }
+}
@@ -0,0 +1,82 @@
+package com.company.sharefile.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Adatta un compressore "push" (OutputStream) a una pipeline "pull": i byte compressi
+ * vengono prodotti man mano che lo stream viene letto, con un buffer di dimensione fissa
+ * per la lettura della sorgente.
+ */
+public class CompressingInputStream extends InputStream {
+    private static final int READ_SIZE = 64 * 1024;
+
+    @FunctionalInterface
+    public interface CompressorFactory {
+        OutputStream wrap(OutputStream output) throws IOException;
+    }
+
+    private final InputStream source;
+    private final ExposedBuffer buffer = new ExposedBuffer();
+    private final OutputStream compressor;
+    private final byte[] readBuffer = new byte[READ_SIZE];
+    private int position;
+    private boolean finished;
+
+    public CompressingInputStream(InputStream source, CompressorFactory factory) throws IOException {
+        this.source = source;
+        this.compressor = factory.wrap(buffer);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = read(single, 0, 1);
+        return read < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (position >= buffer.size()) {
+            if (finished) {
+                return -1;
+            }
+            buffer.reset();
+            position = 0;
+            int read = source.read(readBuffer);
+            if (read < 0) {
+                compressor.close();
+                finished = true;
+            } else {
+                compressor.write(readBuffer, 0, read);
+            }
+        }
+        int count = Math.min(len, buffer.size() - position);
+        System.arraycopy(buffer.array(), position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            source.close();
+        } finally {
+            if (!finished) {
+                finished = true;
+                compressor.close();
+            }
+        }
+    }
+
+    private static class ExposedBuffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+}
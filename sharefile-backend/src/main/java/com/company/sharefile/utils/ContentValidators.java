@@ -0,0 +1,98 @@
+package com.company.sharefile.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Validatori di un contenuto scaricabile (RFC 9110, 8.8): ETag e Last-Modified.
+ * Servono a rispondere 304 alle richieste condizionali senza leggere né decifrare il blob.
+ *
+ * @param etag         ETag già quotato, con prefisso W/ se debole; null se manca il checksum
+ * @param lastModified troncato al secondo, la precisione dell'header
+ */
+public record ContentValidators(String etag, Instant lastModified) {
+
+    // IMF-fixdate: RFC_1123_DATE_TIME non mette lo zero davanti ai giorni a una cifra
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH).withZone(ZoneOffset.UTC);
+
+    /**
+     * ETag forte dal checksum SHA-256 del contenuto in chiaro: stesso checksum, stessi byte.
+     */
+    public static ContentValidators strong(String checksum, LocalDateTime lastModified) {
+        return new ContentValidators(checksum != null ? "\"" + checksum + "\"" : null, toInstant(lastModified));
+    }
+
+    /**
+     * ETag debole da più parti (ad esempio i checksum dei file di uno zip): cambia se cambia
+     * una parte, ma non garantisce byte identici, quindi non vale per If-Range.
+     */
+    public static ContentValidators weak(List<String> parts, LocalDateTime lastModified) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            parts.stream().sorted().forEach(part -> digest.update((part + "\n").getBytes(StandardCharsets.UTF_8)));
+            return new ContentValidators("W/\"" + HexFormat.of().formatHex(digest.digest()) + "\"", toInstant(lastModified));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * ETag utilizzabile per If-Range: solo i validatori forti.
+     */
+    public String strongEtag() {
+        return etag != null && !etag.startsWith("W/") ? etag : null;
+    }
+
+    public String lastModifiedHeader() {
+        return lastModified != null ? HTTP_DATE.format(lastModified) : null;
+    }
+
+    /**
+     * Vero se il client ha già questa versione. If-None-Match (confronto debole) ha la precedenza:
+     * se presente If-Modified-Since viene ignorato.
+     */
+    public boolean notModified(String ifNoneMatch, String ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            if (etag == null) {
+                return false;
+            }
+            for (String candidate : ifNoneMatch.split(",")) {
+                String value = candidate.trim();
+                if (value.equals("*") || opaque(value).equals(opaque(etag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (ifModifiedSince != null && lastModified != null) {
+            try {
+                Instant since = ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+                return !lastModified.isAfter(since);
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static String opaque(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private static Instant toInstant(LocalDateTime dateTime) {
+        return dateTime != null ? dateTime.atZone(ZoneId.systemDefault()).toInstant().truncatedTo(ChronoUnit.SECONDS) : null;
+    }
+}
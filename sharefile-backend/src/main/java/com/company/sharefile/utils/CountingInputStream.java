@@ -0,0 +1,67 @@
+package com.company.sharefile.utils;
+
+import com.company.sharefile.exception.ApiException;
+import jakarta.ws.rs.core.Response;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * InputStream che conta i byte letti e interrompe la lettura
+ * se viene superato il limite massimo consentito.
+ */
+public class CountingInputStream extends FilterInputStream {
+    private final long maxBytes;
+    private long count;
+
+    public CountingInputStream(InputStream in, long maxBytes) {
+        super(in);
+        this.maxBytes = maxBytes;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            add(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            add(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        add(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void add(long n) {
+        count += n;
+        if (count > maxBytes) {
+            throw new ApiException(
+                    String.format("File exceeds the maximum allowed size of %d bytes", maxBytes),
+                    Response.Status.BAD_REQUEST,
+                    "LAM-400-003"
+            );
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.company.sharefile.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Content-defined chunking (FastCDC con normalized chunking): i punti di taglio dipendono
+ * dal contenuto, quindi una modifica di pochi KB cambia solo i chunk che la contengono
+ * e i confini successivi si riallineano.
+ *
+ * Gear hash su finestra implicita di 64 byte; prima della dimensione media si usa una
+ * maschera più selettiva, dopo una più permissiva, per concentrare le dimensioni attorno
+ * alla media. La tabella gear è generata da un seed fisso: cambiarla invalida la dedup
+ * con i chunk già salvati.
+ */
+public class FastCdcChunker {
+    private static final long[] GEAR = gearTable(0x5368617265466c65L);
+
+    private final InputStream input;
+    private final int minSize;
+    private final int maxSize;
+    private final int averageSize;
+    private final long maskSmall;
+    private final long maskLarge;
+    private final byte[] buffer;
+    private int length;
+    private boolean eof;
+
+    public FastCdcChunker(InputStream input, int minSize, int averageSize, int maxSize) {
+        if (minSize <= 0 || minSize > averageSize || averageSize > maxSize) {
+            throw new IllegalArgumentException("Chunk sizes must satisfy 0 < min <= avg <= max");
+        }
+        this.input = input;
+        this.minSize = minSize;
+        this.averageSize = averageSize;
+        this.maxSize = maxSize;
+        int bits = 31 - Integer.numberOfLeadingZeros(averageSize);
+        this.maskSmall = highBits(bits + 2);
+        this.maskLarge = highBits(Math.max(1, bits - 2));
+        this.buffer = new byte[maxSize];
+    }
+
+    /**
+     * Prossimo chunk, null a fine stream. Ogni chunk è un array nuovo di dimensione esatta.
+     */
+    public byte[] next() throws IOException {
+        fill();
+        if (length == 0) {
+            return null;
+        }
+        int cut = cutPoint(buffer, length);
+        byte[] chunk = Arrays.copyOf(buffer, cut);
+        System.arraycopy(buffer, cut, buffer, 0, length - cut);
+        length -= cut;
+        return chunk;
+    }
+
+    private void fill() throws IOException {
+        while (!eof && length < buffer.length) {
+            int read = input.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                eof = true;
+            } else {
+                length += read;
+            }
+        }
+    }
+
+    private int cutPoint(byte[] data, int available) {
+        if (available <= minSize) {
+            return available;
+        }
+        int normal = Math.min(averageSize, available);
+        int limit = Math.min(maxSize, available);
+        long fingerprint = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[i] & 0xff];
+            if ((fingerprint & maskSmall) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[i] & 0xff];
+            if ((fingerprint & maskLarge) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    // Con lo shift a sinistra i bit alti dipendono da più byte della finestra
+    private static long highBits(int bits) {
+        return bits >= 64 ? -1L : ((1L << bits) - 1) << (64 - bits);
+    }
+
+    // SplitMix64: sequenza stabile indipendentemente dalla versione della JVM
+    private static long[] gearTable(long seed) {
+        long[] table = new long[256];
+        long state = seed;
+        for (int i = 0; i < table.length; i++) {
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            table[i] = z ^ (z >>> 31);
+        }
+        return table;
+    }
+}
@@ -0,0 +1,77 @@
+package com.company.sharefile.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Eviction LRU: quando il peso supera il limite si eliminano le voci usate meno di recente.
+ * ReentrantLock e non synchronized: le letture arrivano da virtual thread.
+ */
+public final class LruCacheIndex<K, V> implements CacheIndex<K, V> {
+
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+    private final BiConsumer<K, V> onEvict;
+    private long weight;
+
+    public LruCacheIndex(long maxWeight, ToLongFunction<V> weigher, BiConsumer<K, V> onEvict) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.onEvict = onEvict;
+    }
+
+    @Override
+    public V get(K key) {
+        lock.lock();
+        try {
+            return entries.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public V put(K key, V value) {
+        List<Map.Entry<K, V>> evicted = new ArrayList<>();
+        V previous;
+        lock.lock();
+        try {
+            previous = entries.put(key, value);
+            weight += weigher.applyAsLong(value) - (previous != null ? weigher.applyAsLong(previous) : 0);
+            Iterator<Map.Entry<K, V>> eldest = entries.entrySet().iterator();
+            while (weight > maxWeight && eldest.hasNext()) {
+                Map.Entry<K, V> entry = eldest.next();
+                eldest.remove();
+                weight -= weigher.applyAsLong(entry.getValue());
+                evicted.add(Map.entry(entry.getKey(), entry.getValue()));
+            }
+        } finally {
+            lock.unlock();
+        }
+        // fuori dal lock: la callback elimina file
+        evicted.forEach(entry -> onEvict.accept(entry.getKey(), entry.getValue()));
+        return previous;
+    }
+
+    @Override
+    public V remove(K key) {
+        lock.lock();
+        try {
+            V value = entries.remove(key);
+            if (value != null) {
+                weight -= weigher.applyAsLong(value);
+            }
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
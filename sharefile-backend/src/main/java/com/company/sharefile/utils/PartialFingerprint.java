@@ -0,0 +1,105 @@
+package com.company.sharefile.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Impronta parziale di un file: SHA-256 del primo MB seguito dall'ultimo MB
+ * (senza sovrapposizione per file sotto i 2MB). Insieme alla dimensione è un
+ * pre-filtro economico per la deduplicazione: il client può calcolarla senza
+ * leggere l'intero file.
+ *
+ * Il primo MB viene hashato mentre passa, dell'ultimo MB si tiene solo un buffer
+ * circolare: la memoria usata è al massimo 1MB qualunque sia la dimensione del file.
+ */
+public class PartialFingerprint extends OutputStream {
+    public static final int EDGE_SIZE = 1024 * 1024;
+
+    private final MessageDigest digest;
+    private final byte[] tail = new byte[EDGE_SIZE];
+    private long count;
+    private int tailPosition;
+    private long tailCount;
+
+    public PartialFingerprint() {
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (count < EDGE_SIZE) {
+            int head = (int) Math.min(len, EDGE_SIZE - count);
+            digest.update(b, off, head);
+            count += head;
+            off += head;
+            len -= head;
+        }
+        count += len;
+        tailCount += len;
+        if (len >= EDGE_SIZE) {
+            System.arraycopy(b, off + len - EDGE_SIZE, tail, 0, EDGE_SIZE);
+            tailPosition = 0;
+            return;
+        }
+        int first = Math.min(len, EDGE_SIZE - tailPosition);
+        System.arraycopy(b, off, tail, tailPosition, first);
+        System.arraycopy(b, off + first, tail, 0, len - first);
+        tailPosition = (tailPosition + len) % EDGE_SIZE;
+    }
+
+    /**
+     * Stream che aggiorna l'impronta con i byte letti.
+     */
+    public InputStream observe(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    PartialFingerprint.this.write(b);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    PartialFingerprint.this.write(b, off, n);
+                }
+                return n;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Completa l'impronta; da chiamare una sola volta a fine stream.
+     */
+    public String finish() {
+        int tailLength = (int) Math.min(tailCount, EDGE_SIZE);
+        int start = Math.floorMod(tailPosition - tailLength, EDGE_SIZE);
+        int first = Math.min(tailLength, EDGE_SIZE - start);
+        digest.update(tail, start, first);
+        digest.update(tail, 0, tailLength - first);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -0,0 +1,55 @@
+package com.company.sharefile.utils;
+
+import jakarta.ws.rs.core.StreamingOutput;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Body di una risposta che trattiene una risorsa (budget dei trasferimenti, spool) fino alla
+ * fine dell'invio. La risorsa viene chiusa dal body dopo la scrittura oppure, se il body non
+ * viene mai scritto (HEAD, errore dopo la preparazione, client disconnesso), da
+ * {@link #release()} a fine richiesta. Se il body è già partito release() non fa nulla:
+ * la risorsa non viene chiusa mentre è in uso.
+ */
+public final class ReleasableOutput implements StreamingOutput {
+    private static final int PENDING = 0;
+    private static final int WRITING = 1;
+    private static final int RELEASED = 2;
+
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    private final StreamingOutput body;
+    private final AutoCloseable resource;
+
+    public ReleasableOutput(StreamingOutput body, AutoCloseable resource) {
+        this.body = body;
+        this.resource = resource;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        if (!state.compareAndSet(PENDING, WRITING)) {
+            throw new IOException("Response already released");
+        }
+        try {
+            body.write(output);
+        } finally {
+            closeResource();
+        }
+    }
+
+    public void release() {
+        if (state.compareAndSet(PENDING, RELEASED)) {
+            closeResource();
+        }
+    }
+
+    private void closeResource() {
+        try {
+            resource.close();
+        } catch (Exception e) {
+            throw new IllegalStateException("Error releasing response resource", e);
+        }
+    }
+}
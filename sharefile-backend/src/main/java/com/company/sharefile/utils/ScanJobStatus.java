@@ -0,0 +1,18 @@
+package com.company.sharefile.utils;
+
+
+public enum ScanJobStatus {
+
+    QUEUED("In coda"),
+    RUNNING("In esecuzione");
+
+    private final String displayName;
+
+    ScanJobStatus(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+}
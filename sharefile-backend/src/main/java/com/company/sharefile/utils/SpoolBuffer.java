@@ -0,0 +1,229 @@
+package com.company.sharefile.utils;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Buffer di spool: i dati restano in memoria (buffer del pool) finché non superano la soglia,
+ * poi vengono riversati su un file temporaneo e riletti tramite MappedByteBuffer a finestre.
+ * La memoria usata non dipende quindi dalla dimensione del contenuto.
+ *
+ * Va sempre chiuso: close() restituisce i buffer al pool ed elimina il file temporaneo.
+ * Non è thread-safe: un solo writer, poi letture.
+ */
+public class SpoolBuffer extends OutputStream {
+    // Finestra di mapping in lettura: limita lo spazio di indirizzamento, non la memoria
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+    private final BufferPool pool;
+    private final long memoryThreshold;
+    private final Path directory;
+    private final List<byte[]> segments = new ArrayList<>();
+    private int segmentPosition;
+    private long size;
+    private Path file;
+    private FileChannel channel;
+    private boolean closed;
+
+    public SpoolBuffer(BufferPool pool, long memoryThreshold, Path directory) {
+        this.pool = pool;
+        this.memoryThreshold = memoryThreshold;
+        this.directory = directory;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isOnDisk() {
+        return channel != null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (channel == null && size + len > memoryThreshold) {
+            spillToDisk();
+        }
+        if (channel != null) {
+            ByteBuffer source = ByteBuffer.wrap(b, off, len);
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        } else {
+            int remaining = len;
+            int offset = off;
+            while (remaining > 0) {
+                if (segments.isEmpty() || segmentPosition == pool.getBufferSize()) {
+                    segments.add(pool.take());
+                    segmentPosition = 0;
+                }
+                int count = Math.min(remaining, pool.getBufferSize() - segmentPosition);
+                System.arraycopy(b, offset, segments.get(segments.size() - 1), segmentPosition, count);
+                segmentPosition += count;
+                offset += count;
+                remaining -= count;
+            }
+        }
+        size += len;
+    }
+
+    /**
+     * Nuovo stream di lettura dall'inizio; ne possono essere aperti più di uno.
+     */
+    public InputStream openInputStream() throws IOException {
+        ensureOpen();
+        return channel != null ? new MappedInputStream() : new SegmentInputStream();
+    }
+
+    public void writeTo(OutputStream output) throws IOException {
+        try (InputStream input = openInputStream()) {
+            input.transferTo(output);
+        }
+    }
+
+    /**
+     * Scrive solo l'intervallo richiesto: la lettura si posiziona senza scorrere i byte precedenti.
+     */
+    public void writeRange(ByteRange range, OutputStream output) throws IOException {
+        try (InputStream input = openInputStream()) {
+            ByteRange.transfer(input, range.start(), range.length(), output);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        releaseSegments();
+        if (channel != null) {
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void spillToDisk() throws IOException {
+        Files.createDirectories(directory);
+        file = Files.createTempFile(directory, "spool-", ".tmp");
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        for (int i = 0; i < segments.size(); i++) {
+            int length = i == segments.size() - 1 ? segmentPosition : pool.getBufferSize();
+            ByteBuffer source = ByteBuffer.wrap(segments.get(i), 0, length);
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        }
+        releaseSegments();
+    }
+
+    private void releaseSegments() {
+        segments.forEach(pool::give);
+        segments.clear();
+        segmentPosition = 0;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Spool buffer already closed");
+        }
+    }
+
+    private class SegmentInputStream extends InputStream {
+        private long position;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            if (position >= size) {
+                return -1;
+            }
+            int segmentSize = pool.getBufferSize();
+            int index = (int) (position / segmentSize);
+            int offset = (int) (position % segmentSize);
+            int count = (int) Math.min(Math.min(len, segmentSize - offset), size - position);
+            System.arraycopy(segments.get(index), offset, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            ensureOpen();
+            long skipped = Math.max(0, Math.min(n, size - position));
+            position += skipped;
+            return skipped;
+        }
+    }
+
+    private class MappedInputStream extends InputStream {
+        private long windowStart;
+        private MappedByteBuffer window;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            if (window == null || !window.hasRemaining()) {
+                long next = window == null ? 0 : windowStart + window.capacity();
+                if (next >= size) {
+                    return -1;
+                }
+                windowStart = next;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(MAP_WINDOW, size - windowStart));
+            }
+            int count = Math.min(len, window.remaining());
+            window.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            ensureOpen();
+            long current = window == null ? 0 : windowStart + window.position();
+            long target = Math.min(size, current + Math.max(0, n));
+            if (window != null && target < windowStart + window.capacity()) {
+                window.position((int) (target - windowStart));
+            } else {
+                // rimappa dalla posizione di arrivo; a fine file la finestra è vuota e read restituisce -1
+                windowStart = target;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, target, Math.min(MAP_WINDOW, size - target));
+            }
+            return target - current;
+        }
+    }
+}
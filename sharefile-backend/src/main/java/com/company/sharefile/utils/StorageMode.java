@@ -0,0 +1,17 @@
+package com.company.sharefile.utils;
+
+public enum StorageMode {
+
+    BLOB("Blob singolo"),
+    CHUNKED("Chunk deduplicati");
+
+    private final String displayName;
+
+    StorageMode(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+}
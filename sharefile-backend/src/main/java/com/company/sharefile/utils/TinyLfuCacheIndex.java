@@ -0,0 +1,50 @@
+package com.company.sharefile.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Eviction W-TinyLFU (Caffeine): una voce nuova entra al posto di una vecchia solo se è
+ * stata richiesta più spesso, quindi un download isolato di un file grande non svuota la cache.
+ */
+public final class TinyLfuCacheIndex<K, V> implements CacheIndex<K, V> {
+
+    // Caffeine pesa in int: il peso è in KiB
+    private static final long WEIGHT_UNIT = 1024;
+
+    private final Cache<K, V> cache;
+
+    public TinyLfuCacheIndex(long maxWeight, ToLongFunction<V> weigher, BiConsumer<K, V> onEvict) {
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(Math.max(1, maxWeight / WEIGHT_UNIT))
+                .weigher((K key, V value) -> (int) Math.min(Integer.MAX_VALUE,
+                        (weigher.applyAsLong(value) + WEIGHT_UNIT - 1) / WEIGHT_UNIT))
+                .evictionListener((K key, V value, RemovalCause cause) -> {
+                    if (cause.wasEvicted()) {
+                        onEvict.accept(key, value);
+                    }
+                })
+                // manutenzione nel thread che scrive: lo spazio su disco si libera subito
+                .executor(Runnable::run)
+                .build();
+    }
+
+    @Override
+    public V get(K key) {
+        return cache.getIfPresent(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return cache.asMap().put(key, value);
+    }
+
+    @Override
+    public V remove(K key) {
+        return cache.asMap().remove(key);
+    }
+}
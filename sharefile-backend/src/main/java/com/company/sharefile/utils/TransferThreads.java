@@ -0,0 +1,22 @@
+package com.company.sharefile.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Pool a dimensione fissa per i trasferimenti interni. Con i virtual thread attivi
+ * i worker sono virtuali (una lettura Azure bloccata non occupa un carrier), ma il
+ * numero resta limitato per non moltiplicare memoria e connessioni verso lo storage.
+ */
+public final class TransferThreads {
+
+    private TransferThreads() {
+    }
+
+    public static ExecutorService fixedPool(String name, int size, boolean virtual) {
+        if (virtual) {
+            return Executors.newFixedThreadPool(size, Thread.ofVirtual().name(name + "-", 0).factory());
+        }
+        return Executors.newFixedThreadPool(size, Thread.ofPlatform().name(name + "-", 0).daemon(true).factory());
+    }
+}
@@ -5,6 +5,7 @@ public enum UploadStatus {
 
     PENDING("In attesa"),
     UPLOADING("Caricamento in corso"),
+    COMMITTING("Finalizzazione in corso"),
     COMPLETED("Completato"),
     FAILED("Fallito"),
     DEDUPLICATED("Deduplicato");